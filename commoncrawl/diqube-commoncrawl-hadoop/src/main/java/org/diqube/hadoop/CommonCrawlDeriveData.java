@@ -20,7 +20,9 @@
  */
 package org.diqube.hadoop;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.LocalDateTime;
@@ -33,34 +35,66 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import org.apache.hadoop.conf.Configuration;
 import org.diqube.util.Triple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Derives some data from the input which is read from WAT files.
+ * 
+ * <p>
+ * This class is thread-safe, a single instance can be used by multiple threads of a mapper. Each thread uses its own
+ * {@link IpGeoCache}, so the threads do not contend on a shared cache. The counters of all caches are summed up, see
+ * {@link #getIpCacheHits()} etc.
  *
  * @author Bastian Gloeckle
  */
 public class CommonCrawlDeriveData {
   private static final Logger logger = LoggerFactory.getLogger(CommonCrawlDeriveData.class);
 
-  private static final String GEOLITE_CITY_4 = "/GeoLite2-City-Blocks-IPv4.csv";
-  private static final String GEOLITE_CITY_6 = "/GeoLite2-City-Blocks-IPv6.csv";
-  private static final String GEOLITE_CITY_DESCRIPTION = "/GeoLite2-City-Locations-en.csv";
-  private static final String GEOLITE_COUNTRY_4 = "/GeoLite2-Country-Blocks-IPv4.csv";
-  private static final String GEOLITE_COUNTRY_6 = "/GeoLite2-Country-Blocks-IPv6.csv";
-  private static final String GEOLITE_COUNTRY_DESCRIPTION = "/GeoLite2-Country-Locations-en.csv";
-  private static final String GEOLITE_ASN_4 = "/GeoIPASNum2.csv";
-  private static final String GEOLITE_ASN_6 = "/GeoIPASNum2v6.csv";
+  /** Holder for parsing IPs in {@link #deriveData(Map)}, one per thread. */
+  private static final ThreadLocal<IpAddress> PARSED_IP = ThreadLocal.withInitial(IpAddress::new);
+  /** Parsed IPs of a batch, see {@link #deriveData(List)}, one array per thread. Entries are re-used. */
+  private static final ThreadLocal<IpAddress[]> BATCH_IPS = ThreadLocal.withInitial(() -> new IpAddress[0]);
+
+  /**
+   * Job configuration key: {@link IpRangeIndex.Backend} that resolves the GeoLite tables when merging them, see
+   * {@link IpGeoResolver#merge(IpValueResolver, IpValueResolver, IpAsnResolver, IpRangeIndex.Backend)}.
+   */
+  public static final String CONF_GEOIP_BACKEND = "diqube.commoncrawl.geoip.backend";
+
+  /* package */ static final String GEOLITE_CITY_4 = "/GeoLite2-City-Blocks-IPv4.csv";
+  /* package */ static final String GEOLITE_CITY_6 = "/GeoLite2-City-Blocks-IPv6.csv";
+  /* package */ static final String GEOLITE_CITY_DESCRIPTION = "/GeoLite2-City-Locations-en.csv";
+  /* package */ static final String GEOLITE_COUNTRY_4 = "/GeoLite2-Country-Blocks-IPv4.csv";
+  /* package */ static final String GEOLITE_COUNTRY_6 = "/GeoLite2-Country-Blocks-IPv6.csv";
+  /* package */ static final String GEOLITE_COUNTRY_DESCRIPTION = "/GeoLite2-Country-Locations-en.csv";
+  /* package */ static final String GEOLITE_ASN_4 = "/GeoIPASNum2.csv";
+  /* package */ static final String GEOLITE_ASN_6 = "/GeoIPASNum2v6.csv";
 
   public static final String IP_CITY = "ip_city";
   public static final String IP_COUNTRY = "ip_country";
   public static final String IP_ASN = "ip_asn";
+  /**
+   * Holds the {@link IpGeoResolver} entry (Integer) of the IP in the result of {@link #deriveData(Map)}, instead of the
+   * strings of {@link #IP_CITY}, {@link #IP_COUNTRY} and {@link #IP_ASN}. This allows to transport the compact entry
+   * until the final row is built, where it is replaced by the strings using {@link #addIpValues(Map, int)}.
+   */
+  public static final String IP_GEO_ENTRY = "ip_geo_entry";
 
   public static final String TLD = "tld";
   public static final String DOMAIN = "domain";
@@ -82,37 +116,317 @@ public class CommonCrawlDeriveData {
   public static final String TOP_LINK_DOMAINS_DOMAIN = "domain";
   public static final String TOP_LINK_DOMAINS_COUNT = "count";
 
-  private IpValueResolver cityResolver;
-  private IpValueResolver countryResolver;
-  private IpAsnResolver asnResolver;
+  /**
+   * 64 bit fingerprint of the raw JSON of the record (long), which is not calculated by this class but added by the
+   * mapper, see {@link WatRecordBuffer#getFingerprint()}.
+   */
+  public static final String FINGERPRINT = "fingerprint";
+
+  /**
+   * The (dotted) fields of the input data that are read by {@link #deriveData(Map)}. Other fields of the input do not
+   * need to be available, see {@link WatJsonRowBuilder}.
+   */
+  public static final List<String> INPUT_FIELDS = Arrays.asList( //
+      "Envelope.WARC-Header-Metadata.WARC-IP-Address", "Envelope.WARC-Header-Metadata.WARC-Target-URI",
+      "Envelope.WARC-Header-Metadata.WARC-Date",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers.Cache-Control",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers.Expires",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers.Date",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers.Server",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.Links");
+
+  /**
+   * Hadoop counters holding the time in milliseconds that was needed to load the GeoIP data, see
+   * {@link CommonCrawlDeriveData#getLoadTimesMs()}.
+   */
+  public static enum GeoIpLoadCounter {
+    SNAPSHOT_MS, CITY_CSV_MS, COUNTRY_CSV_MS, ASN_CSV_MS, MERGE_MS
+  }
+
+  private IpGeoResolver geoResolver;
+  private Map<GeoIpLoadCounter, Long> loadTimesMs = new ConcurrentHashMap<>();
+  /** The cache of each thread using this instance. */
+  private ThreadLocal<IpGeoCache> ipCache;
+  /** All caches created for {@link #ipCache}, to sum up their counters. */
+  private List<IpGeoCache> ipCaches = new CopyOnWriteArrayList<>();
 
   public CommonCrawlDeriveData() throws IOException {
-    logger.info("Loading GeoIP data...");
+    this(IpGeoCache.DEFAULT_CAPACITY, IpGeoCache.DEFAULT_POLICY, IpRangeIndex.Backend.SORTED_RANGES);
+  }
+
+  /**
+   * @return A new instance using the {@link IpGeoCache} and the GeoIP backend configured in the given job
+   *         configuration, see {@link IpGeoCache#CONF_CAPACITY}, {@link IpGeoCache#CONF_POLICY} and
+   *         {@link #CONF_GEOIP_BACKEND}.
+   */
+  public static CommonCrawlDeriveData fromConfiguration(Configuration conf) throws IOException {
+    return new CommonCrawlDeriveData(conf.getInt(IpGeoCache.CONF_CAPACITY, IpGeoCache.DEFAULT_CAPACITY),
+        conf.getEnum(IpGeoCache.CONF_POLICY, IpGeoCache.DEFAULT_POLICY),
+        conf.getEnum(CONF_GEOIP_BACKEND, IpRangeIndex.Backend.SORTED_RANGES));
+  }
+
+  /**
+   * @param ipCacheCapacity
+   *          Capacity of the {@link IpGeoCache} of each thread.
+   * @param ipCachePolicy
+   *          {@link IpGeoCache.EvictionPolicy} of the {@link IpGeoCache} of each thread.
+   * @param geoIpBackend
+   *          Backend to merge the GeoLite tables with. If the snapshot was merged with a different backend, its source
+   *          tables are merged again.
+   */
+  public CommonCrawlDeriveData(int ipCacheCapacity, IpGeoCache.EvictionPolicy ipCachePolicy,
+      IpRangeIndex.Backend geoIpBackend) throws IOException {
+    ipCache = ThreadLocal.withInitial(() -> {
+      IpGeoCache res = new IpGeoCache(ipCacheCapacity, ipCachePolicy);
+      ipCaches.add(res);
+      return res;
+    });
+
+    File snapshotFile = GeoIpSnapshot.locate();
+    if (snapshotFile != null) {
+      logger.info("Loading GeoIP data from snapshot {}...", snapshotFile);
+      long startNanos = System.nanoTime();
+
+      GeoIpSnapshot snapshot = GeoIpSnapshot.open(snapshotFile);
+      geoResolver = snapshot.getGeoResolver();
+      recordLoadTime(GeoIpLoadCounter.SNAPSHOT_MS, startNanos);
+
+      if (geoResolver.getSourceBackend() != geoIpBackend) {
+        logger.info("GeoIP snapshot was merged using {}, merging its source tables using {}...",
+            geoResolver.getSourceBackend(), geoIpBackend);
+        startNanos = System.nanoTime();
+        geoResolver = IpGeoResolver.merge(snapshot.getCityResolver(), snapshot.getCountryResolver(),
+            snapshot.getAsnResolver(), geoIpBackend);
+        recordLoadTime(GeoIpLoadCounter.MERGE_MS, startNanos);
+      }
+
+      logger.info("GeoIP data loaded: {}", loadTimesMs);
+      return;
+    }
+
+    logger.info("Loading GeoIP data from CSV...");
+
+    // the tables are independent of each other, load them concurrently.
+    ExecutorService executor = Executors.newFixedThreadPool(3,
+        new ThreadFactoryBuilder().setNameFormat("geoip-load-%d").setDaemon(true).build());
+    IpValueResolver cityResolver;
+    IpValueResolver countryResolver;
+    IpAsnResolver asnResolver;
+    try {
+      Future<IpValueResolver> cityFuture = executor.submit(() -> {
+        long startNanos = System.nanoTime();
+        IpValueResolver res = new IpValueResolver();
+        res.load(CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_CITY_4), //
+            CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_CITY_6), //
+            CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_CITY_DESCRIPTION), //
+            "city_name");
+        recordLoadTime(GeoIpLoadCounter.CITY_CSV_MS, startNanos);
+        return res;
+      });
+
+      Future<IpValueResolver> countryFuture = executor.submit(() -> {
+        long startNanos = System.nanoTime();
+        IpValueResolver res = new IpValueResolver();
+        res.load(CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_COUNTRY_4), //
+            CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_COUNTRY_6), //
+            CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_COUNTRY_DESCRIPTION), //
+            "country_name");
+        recordLoadTime(GeoIpLoadCounter.COUNTRY_CSV_MS, startNanos);
+        return res;
+      });
+
+      Future<IpAsnResolver> asnFuture = executor.submit(() -> {
+        long startNanos = System.nanoTime();
+        IpAsnResolver res = new IpAsnResolver();
+        res.load(CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_ASN_4), //
+            CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_ASN_6));
+        recordLoadTime(GeoIpLoadCounter.ASN_CSV_MS, startNanos);
+        return res;
+      });
+
+      // Future#get makes the fully built resolvers visible to this thread.
+      cityResolver = getLoaded(cityFuture);
+      countryResolver = getLoaded(countryFuture);
+      asnResolver = getLoaded(asnFuture);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    long startNanos = System.nanoTime();
+    geoResolver = IpGeoResolver.merge(cityResolver, countryResolver, asnResolver, geoIpBackend);
+    recordLoadTime(GeoIpLoadCounter.MERGE_MS, startNanos);
+
+    logger.info("GeoIP data loaded: {}", loadTimesMs);
+  }
+
+  private void recordLoadTime(GeoIpLoadCounter counter, long startNanos) {
+    loadTimesMs.put(counter, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  private <T> T getLoaded(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while loading GeoIP data.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("Could not load GeoIP data", e.getCause());
+    }
+  }
+
+  /**
+   * @return The time in milliseconds needed to load the GeoIP data, by the individual steps. Only the steps that were
+   *         actually executed are contained.
+   */
+  public Map<GeoIpLoadCounter, Long> getLoadTimesMs() {
+    return loadTimesMs;
+  }
+
+  /**
+   * @return Sum of {@link IpGeoCache#getHits()} of the caches of all threads. Only exact if no thread is using this
+   *         instance concurrently.
+   */
+  public long getIpCacheHits() {
+    return ipCaches.stream().mapToLong(IpGeoCache::getHits).sum();
+  }
+
+  /**
+   * @return Sum of {@link IpGeoCache#getMisses()} of the caches of all threads, see {@link #getIpCacheHits()}.
+   */
+  public long getIpCacheMisses() {
+    return ipCaches.stream().mapToLong(IpGeoCache::getMisses).sum();
+  }
+
+  /**
+   * @return Sum of {@link IpGeoCache#getEvictions()} of the caches of all threads, see {@link #getIpCacheHits()}.
+   */
+  public long getIpCacheEvictions() {
+    return ipCaches.stream().mapToLong(IpGeoCache::getEvictions).sum();
+  }
+
+  /**
+   * Add the GeoIP values ({@link #IP_CITY}, {@link #IP_COUNTRY}, {@link #IP_ASN}) to derived data.
+   * 
+   * @param geoEntry
+   *          The value of {@link #IP_GEO_ENTRY} that was provided by {@link #deriveData(Map)}.
+   */
+  public void addIpValues(Map<String, Object> derived, int geoEntry) {
+    String city = geoResolver.getCity(geoEntry);
+    derived.put(IP_CITY, (city != null) ? city : "");
+
+    derived.put(IP_COUNTRY, getIpCountry(geoEntry));
+
+    String asn = geoResolver.getAsn(geoEntry);
+    derived.put(IP_ASN, (asn != null) ? asn : "");
+  }
+
+  /**
+   * Add the GeoIP values of the given {@link IpGeoResolver} entry to the derived data of a row, see
+   * {@link #addIpValues(Map, int)}.
+   */
+  public void addIpValues(DiqubeRow.DiqubeData derived, int geoEntry) {
+    String city = geoResolver.getCity(geoEntry);
+    derived.withData(IP_CITY, (city != null) ? city : "");
 
-    cityResolver = new IpValueResolver();
-    cityResolver.load(CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_CITY_4), //
-        CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_CITY_6), //
-        CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_CITY_DESCRIPTION), //
-        "city_name");
+    derived.withData(IP_COUNTRY, getIpCountry(geoEntry));
 
-    countryResolver = new IpValueResolver();
-    countryResolver.load(CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_COUNTRY_4), //
-        CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_COUNTRY_6), //
-        CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_COUNTRY_DESCRIPTION), //
-        "country_name");
+    String asn = geoResolver.getAsn(geoEntry);
+    derived.withData(IP_ASN, (asn != null) ? asn : "");
+  }
 
-    asnResolver = new IpAsnResolver();
-    asnResolver.load(CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_ASN_4), //
-        CommonCrawlDeriveData.class.getResourceAsStream(GEOLITE_ASN_6));
+  /**
+   * @return The value that {@link #addIpValues(Map, int)} would add for {@link #IP_COUNTRY}.
+   */
+  public String getIpCountry(int geoEntry) {
+    String country = geoResolver.getCountry(geoEntry);
+    return (country != null) ? country : "";
+  }
 
-    logger.info("GeoIP data loaded.");
+  /**
+   * @return The ID of the value that {@link #addIpValues(Map, int)} would add for {@link #IP_COUNTRY}, see
+   *         {@link IpGeoResolver#getCountryId(int)}.
+   */
+  public int getIpCountryId(int geoEntry) {
+    return geoResolver.getCountryId(geoEntry);
   }
 
+  /**
+   * Derive data from the given input. Note that the result contains the {@link #IP_GEO_ENTRY} instead of the resolved
+   * GeoIP values, see {@link #addIpValues(Map, int)}.
+   */
   public Map<String, Object> deriveData(Map<String, Object> data) {
+    String ip = ipOf(data);
+
+    int geoEntry = -1;
+    if (ip != null) {
+      IpGeoCache cache = ipCache.get();
+      IpAddress parsedIp = PARSED_IP.get();
+      geoEntry = cache.get(ip, parsedIp);
+      if (geoEntry == IpGeoCache.NOT_CACHED) {
+        // a single lookup for city, country and ASN. Note that no host names are resolved.
+        geoEntry = geoResolver.resolve(parsedIp);
+        cache.put(parsedIp, geoEntry);
+      }
+    }
+
+    return deriveData(data, geoEntry);
+  }
+
+  /**
+   * Derive data for a batch of inputs. The result is the same as calling {@link #deriveData(Map)} for each input, but
+   * the IPs of all inputs are resolved at once using {@link IpGeoResolver#resolveBatch(IpAddress[], int, int[])}.
+   * 
+   * @return The derived data of each input at the same index.
+   */
+  public List<Map<String, Object>> deriveData(List<Map<String, Object>> data) {
+    int[] geoEntries = new int[data.size()];
+    int[] batchIndices = new int[data.size()];
+    int batchSize = 0;
+    IpAddress[] batchIps = BATCH_IPS.get();
+    if (batchIps.length < data.size()) {
+      int oldLength = batchIps.length;
+      batchIps = Arrays.copyOf(batchIps, data.size());
+      for (int i = oldLength; i < batchIps.length; i++)
+        batchIps[i] = new IpAddress();
+      BATCH_IPS.set(batchIps);
+    }
+
+    IpGeoCache cache = ipCache.get();
+    for (int i = 0; i < data.size(); i++) {
+      geoEntries[i] = -1;
+      String ip = ipOf(data.get(i));
+      if (ip == null)
+        continue;
+
+      int cachedEntry = cache.get(ip, batchIps[batchSize]);
+      if (cachedEntry != IpGeoCache.NOT_CACHED)
+        geoEntries[i] = cachedEntry;
+      else {
+        batchIndices[batchSize] = i;
+        batchSize++;
+      }
+    }
+
+    int[] batchEntries = new int[batchSize];
+    geoResolver.resolveBatch(batchIps, batchSize, batchEntries);
+    for (int i = 0; i < batchSize; i++) {
+      geoEntries[batchIndices[i]] = batchEntries[i];
+      cache.put(batchIps[i], batchEntries[i]);
+    }
+
+    List<Map<String, Object>> res = new ArrayList<>(data.size());
+    for (int i = 0; i < data.size(); i++)
+      res.add(deriveData(data.get(i), geoEntries[i]));
+    return res;
+  }
+
+  private Map<String, Object> deriveData(Map<String, Object> data, int geoEntry) {
     Map<String, Object> res = new HashMap<>();
 
     deriveServer(res, data);
-    deriveIp(res, data);
+    deriveIp(res, geoEntry);
     deriveDomain(res, data);
     deriveCache(res, data);
     deriveTopLinkDomains(res, data);
@@ -120,23 +434,16 @@ public class CommonCrawlDeriveData {
     return res;
   }
 
-  private void deriveIp(Map<String, Object> res, Map<String, Object> data) {
-    String ip = (String) CommonCrawlUtil.resolveValue(data, "Envelope.WARC-Header-Metadata.WARC-IP-Address");
-
-    if (ip != null) {
-      String city = cityResolver.resolve(ip);
-      res.put(IP_CITY, (city != null) ? city : "");
-
-      String country = countryResolver.resolve(ip);
-      res.put(IP_COUNTRY, (country != null) ? country : "");
+  private String ipOf(Map<String, Object> data) {
+    return (String) CommonCrawlUtil.resolveValue(data, "Envelope.WARC-Header-Metadata.WARC-IP-Address");
+  }
 
-      String asn = asnResolver.resolveAsn(ip);
-      res.put(IP_ASN, (asn != null) ? asn : "");
-    } else {
-      res.put(IP_CITY, "");
-      res.put(IP_COUNTRY, "");
-      res.put(IP_ASN, "");
-    }
+  /**
+   * @param geoEntry
+   *          The entry of {@link #geoResolver} for the IP or -1.
+   */
+  private void deriveIp(Map<String, Object> res, int geoEntry) {
+    res.put(IP_GEO_ENTRY, geoEntry);
   }
 
   private void deriveDomain(Map<String, Object> res, Map<String, Object> data) {
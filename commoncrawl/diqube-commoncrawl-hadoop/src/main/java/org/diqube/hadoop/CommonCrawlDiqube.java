@@ -20,31 +20,26 @@
  */
 package org.diqube.hadoop;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.archive.io.ArchiveReader;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.archive.io.ArchiveRecord;
 import org.diqube.data.column.ColumnPage;
 import org.diqube.data.table.TableShard;
@@ -52,11 +47,6 @@ import org.diqube.loader.columnshard.ColumnShardBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.io.ByteStreams;
-
 /**
  * Map/Reduce job that reads metadata files (wat files) provided by http://commoncrawl.org/.
  * 
@@ -83,216 +73,540 @@ public class CommonCrawlDiqube {
    * to a lot of columns being created, which means that the memory limit might be reached after only a few rows, not
    * even filling a full {@link ColumnPage} of a new {@link TableShard} (see {@link ColumnShardBuilder#PROPOSAL_ROWS}).
    * 
-   * Use <code>false</code> to include all links.
+   * Use <code>false</code> to include all links. Only used if no {@link FieldProjection#CONF_FIELDS} are configured,
+   * otherwise the links are included if they are selected.
    */
   private static final boolean FILTER_FULL_LINK_LIST = true;
 
-  public static class CommonCrawlMapper extends Mapper<Text, ArchiveReader, BytesWritable, BytesWritable> {
+  /** Job configuration key: Number of reducers, which is the number of .diqube files created. */
+  public static final String CONF_REDUCERS = "diqube.commoncrawl.reducers";
+  /**
+   * Job configuration key: Memory in MB at which each reducer (or each mapper, see {@link #CONF_MAP_ONLY}) flushes its
+   * data, see {@link DiqubeOutputFormat}. Defaults to {@link #DEFAULT_REDUCER_MEMORY_FLUSH_MB} or, when running without
+   * reducers, to half of the memory of a map task ({@link MRJobConfig#MAP_MEMORY_MB}).
+   */
+  public static final String CONF_MEMORY_FLUSH_MB = "diqube.commoncrawl.memoryflushmb";
+  public static final long DEFAULT_REDUCER_MEMORY_FLUSH_MB = 12 * 1024L;
+  /**
+   * Job configuration key: <code>true</code> to run without reducers: {@link CommonCrawlDirectMapper} then writes a
+   * .diqube file per map task, i.e. per input split. The rows are not sorted by their bucket then.
+   */
+  public static final String CONF_MAP_ONLY = "diqube.commoncrawl.maponly";
+
+  /**
+   * Base class of the mappers: parses the records of the input files, derives data from them and hands the resulting
+   * rows over to {@link #writeRow(CommonCrawlRowWritable, Map, long, Mapper.Context)}.
+   * 
+   * <p>
+   * If {@link #CONF_THREADS} is greater than 1, the work is pipelined across multiple threads: A reader thread reads
+   * the records from the input into buffers, a pool of worker threads parses the records and derives the data and the
+   * thread of the mapper writes the rows to the context. The stages are connected by bounded queues, a fixed number of
+   * {@link PipelineItem}s circulates between them. The context is only accessed while holding its monitor (like
+   * Hadoop's MultithreadedMapper does) and each worker thread uses its own {@link IpGeoCache}.
+   */
+  public static abstract class CommonCrawlBaseMapper<KEYOUT, VALUEOUT>
+      extends Mapper<Text, ArchiveRecord, KEYOUT, VALUEOUT> {
     /**
-     * Field names in the input JSON format which will be converted to LONGs, although they are presented as Strings in
-     * the input.
-     * 
-     * It is unfortunate, but the commoncrawl JSON seems to provide only strings as input, but some fields are clearly
-     * numbers, we therefore use this list to convert the values of those fields.
+     * Job configuration key: Number of records that are enriched at once, see
+     * {@link CommonCrawlDeriveData#deriveData(List)}. Values <= 1 disable batching.
+     */
+    public static final String CONF_BATCH_SIZE = "diqube.commoncrawl.batchsize";
+    /**
+     * Job configuration key: Number of threads that parse records and derive data in each mapper. Values <= 1 process
+     * everything on the thread of the mapper. If greater than 1, {@link #CONF_BATCH_SIZE} is not used.
      */
-    private static final Set<String> LONG_FIELDS = new HashSet<>(Arrays.asList( //
-        "Container.Gzip-Metadata.Footer-Length", "Container.Gzip-Metadata.Deflate-Length",
-        "Container.Gzip-Metadata.Header-Length", "Container.Gzip-Metadata.Inflated-Length", "Container.Offset", //
-        "Envelope.WARC-Header-Length", "Envelope.Actual-Content-Length", "Envelope.WARC-Header-Metadata.Content-Length",
-        "Envelope.Payload-Metadata.Trailing-Slop-Length",
-        "Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers-Length",
-        "Envelope.Payload-Metadata.HTTP-Response-Metadata.Entity-Length",
-        "Envelope.Payload-Metadata.HTTP-Response-Metadata.Entity-Trailing-Slop-Bytes"));
+    public static final String CONF_THREADS = "diqube.commoncrawl.mapper.threads";
 
     private CommonCrawlDeriveData derive = null;
+    private WatRecordBuffer recordBuffer = new WatRecordBuffer();
+    private FieldProjection projection;
+    private WatSchema schema;
+    private WatJsonRowBuilder rowBuilder;
+    /** All row builders in use, to report {@link WatJsonRowBuilder.Counter#DROPPED_VALUES}. */
+    private List<WatJsonRowBuilder> rowBuilders = new ArrayList<>();
+    /** Row that is re-used if batching is disabled. */
+    private CommonCrawlRowWritable row;
+    private int batchSize;
+    /** Inputs of {@link CommonCrawlDeriveData#deriveData(List)} of the current batch. */
+    private List<Map<String, Object>> batch = new ArrayList<>();
+    /** Rows of the current batch, same indices as {@link #batch}. Entries are re-used. */
+    private List<CommonCrawlRowWritable> batchRows = new ArrayList<>();
+    /** Fingerprints of the records of the current batch, same indices as {@link #batch}. */
+    private List<Long> batchFingerprints = new ArrayList<>();
 
-    @SuppressWarnings("unchecked")
     @Override
-    protected void map(Text fileName, ArchiveReader archiveReader, Context ctx)
-        throws IOException, InterruptedException {
-      if (derive == null)
-        derive = new CommonCrawlDeriveData();
-
-      JsonFactory jsonFactory = new JsonFactory();
-      ObjectMapper mapper = new ObjectMapper(jsonFactory);
-      for (ArchiveRecord archiveRecord : archiveReader) {
-        // only work on those records that have actual JSON content and that contains the metadata of the crawl.
-        if (archiveRecord.getHeader().getMimetype().equals("application/json") && //
-            archiveRecord.getHeader().getHeaderValue("WARC-Type").equals("metadata")) {
-
-          // Filter out entries that do not denote a valid URI - e.g. the data seems to contain results from retrieving
-          // the target data file itself (= the .wat file). We only want to work on real internet URIs.
-          String targetUriString = (String) archiveRecord.getHeader().getHeaderValue("WARC-Target-URI");
-          try {
-            URI targetUri = new URI(targetUriString);
-            if (targetUri.getScheme() == null) {
-              logger.info("Ignoring entry for WARC-Target-URI '{}' as it does not contain a scheme.", targetUriString);
-              continue;
-            }
-          } catch (URISyntaxException e) {
-            logger.info("Ignoring entry for WARC-Target-URI '{}' as it is not a well-formed URI.", targetUriString);
-            continue;
-          }
+    protected void setup(Context ctx) throws IOException, InterruptedException {
+      Configuration conf = ctx.getConfiguration();
+      derive = CommonCrawlDeriveData.fromConfiguration(conf);
+      batchSize = conf.getInt(CONF_BATCH_SIZE, 1);
+      projection = FieldProjection.fromConfiguration(conf);
+      schema = WatSchema.fromConfiguration(conf);
+      rowBuilder = new WatJsonRowBuilder(FILTER_FULL_LINK_LIST, projection, schema);
+      rowBuilders.add(rowBuilder);
+      row = new CommonCrawlRowWritable(conf);
+
+      for (Map.Entry<CommonCrawlDeriveData.GeoIpLoadCounter, Long> loadTime : derive.getLoadTimesMs().entrySet())
+        ctx.getCounter(loadTime.getKey()).increment(loadTime.getValue());
+    }
 
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          ByteStreams.copy(archiveRecord, baos);
-          byte[] jsonInputBytes = baos.toByteArray();
+    @Override
+    protected void cleanup(Context ctx) throws IOException, InterruptedException {
+      flushBatch(ctx);
+
+      ctx.getCounter(IpGeoCache.Counter.HITS).increment(derive.getIpCacheHits());
+      ctx.getCounter(IpGeoCache.Counter.MISSES).increment(derive.getIpCacheMisses());
+      ctx.getCounter(IpGeoCache.Counter.EVICTIONS).increment(derive.getIpCacheEvictions());
+      for (WatJsonRowBuilder builder : rowBuilders)
+        ctx.getCounter(WatJsonRowBuilder.Counter.DROPPED_VALUES).increment(builder.getDroppedValues());
+    }
 
-          // logger.info("Working on: {}", new String(jsonInputBytes, Charset.forName("UTF-8")));
+    @Override
+    public void run(Context ctx) throws IOException, InterruptedException {
+      int numThreads = ctx.getConfiguration().getInt(CONF_THREADS, 1);
+      if (numThreads <= 1) {
+        super.run(ctx);
+        return;
+      }
 
-          // parse JSON into a map structure
-          Map<String, Object> map = mapper.readValue(jsonInputBytes, new TypeReference<HashMap<String, Object>>() {
-          });
+      setup(ctx);
+      try {
+        runPipeline(ctx, numThreads);
+      } finally {
+        cleanup(ctx);
+      }
+    }
 
-          // unfortunately, the URI is sometimes (?) not yet contained in the JSON, we therefore add it.
-          ((Map<String, Object>) ((Map<String, Object>) map.get("Envelope")).get("WARC-Header-Metadata"))
-              .put("WARC-Target-URI", targetUriString);
+    /**
+     * Process all input records using a reader thread and the given number of worker threads, writing the rows on the
+     * current thread, see {@link RecordPipeline}.
+     */
+    private void runPipeline(Context ctx, int numThreads) throws IOException, InterruptedException {
+      Configuration conf = ctx.getConfiguration();
+      new RecordPipeline<PipelineItem>(numThreads, () -> new PipelineItem(new CommonCrawlRowWritable(conf)), item -> {
+        ArchiveRecord record;
+        synchronized (ctx) {
+          if (!ctx.nextKeyValue())
+            return false;
+          item.targetUri = ctx.getCurrentKey().toString();
+          record = ctx.getCurrentValue();
+        }
+        // only the reader thread reads from the input, the content of the record is therefore read without the monitor.
+        item.recordBuffer.read(record);
+        return true;
+      }, () -> {
+        WatJsonRowBuilder workerRowBuilder = new WatJsonRowBuilder(FILTER_FULL_LINK_LIST, projection, schema);
+        rowBuilders.add(workerRowBuilder);
+        return item -> {
+          item.row.clear();
+          Map<String, Object> deriveInput = workerRowBuilder.build(item.recordBuffer.getData(),
+              item.recordBuffer.getLength(), item.targetUri, item.row.getData());
+          item.derived = derive.deriveData(deriveInput);
+          addDerivedData(item.row, item.recordBuffer.getFingerprint(), item.derived);
+        };
+      }, item -> {
+        synchronized (ctx) {
+          writeRow(item.row, item.derived, item.recordBuffer.getFingerprint(), ctx);
+        }
+      }).run();
+    }
 
-          // derive some data from the original map so querying in diqube gets easier
-          map.put("derived", derive.deriveData(map));
+    @Override
+    protected void map(Text targetUri, ArchiveRecord archiveRecord, Context ctx)
+        throws IOException, InterruptedException {
+      // only records with JSON metadata are provided by WatInputFormat.
+      recordBuffer.read(archiveRecord);
+      long fingerprint = recordBuffer.getFingerprint();
+
+      // logger.info("Working on: {}",
+      // new String(recordBuffer.getData(), 0, recordBuffer.getLength(), Charset.forName("UTF-8")));
+
+      // parse JSON directly into the row, keeping only the input of the derivation in a map.
+      CommonCrawlRowWritable newRow;
+      if (batchSize <= 1)
+        newRow = row;
+      else {
+        if (batchRows.size() == batch.size())
+          batchRows.add(new CommonCrawlRowWritable(ctx.getConfiguration()));
+        newRow = batchRows.get(batch.size());
+      }
+      newRow.clear();
+      Map<String, Object> deriveInput =
+          rowBuilder.build(recordBuffer.getData(), recordBuffer.getLength(), targetUri.toString(), newRow.getData());
+
+      if (batchSize <= 1) {
+        // derive some data from the original data so querying in diqube gets easier
+        Map<String, Object> derived = derive.deriveData(deriveInput);
+        addDerivedData(newRow, fingerprint, derived);
+        writeRow(newRow, derived, fingerprint, ctx);
+      } else {
+        batch.add(deriveInput);
+        batchFingerprints.add(fingerprint);
+        if (batch.size() >= batchSize)
+          flushBatch(ctx);
+      }
+    }
 
-          DiqubeRow newRow = new DiqubeRow();
+    /**
+     * Derive data for all records in {@link #batch} at once and write them.
+     */
+    private void flushBatch(Context ctx) throws IOException, InterruptedException {
+      if (batch.isEmpty())
+        return;
+
+      List<Map<String, Object>> derived = derive.deriveData(batch);
+      for (int i = 0; i < batch.size(); i++) {
+        addDerivedData(batchRows.get(i), batchFingerprints.get(i), derived.get(i));
+        writeRow(batchRows.get(i), derived.get(i), batchFingerprints.get(i), ctx);
+      }
+      batch.clear();
+      batchFingerprints.clear();
+    }
 
-          if (FILTER_FULL_LINK_LIST)
-            CommonCrawlUtil.<Collection<?>, Object> executeOnValue(map,
-                "Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.Links", lst -> {
-                  lst.clear();
-                  return null;
-                });
+    /**
+     * Add derived data to a row, the {@link CommonCrawlDeriveData#IP_GEO_ENTRY} is removed from the derived data.
+     * 
+     * <p>
+     * The derived data is added to the separate {@link CommonCrawlRowWritable#getDerivedData()}, with the GeoIP values
+     * being represented by their compact {@link CommonCrawlDeriveData#IP_GEO_ENTRY}, see
+     * {@link CommonCrawlReducer#toDiqubeRow(CommonCrawlRowWritable, CommonCrawlDeriveData)}.
+     * 
+     * @param fingerprint
+     *          Fingerprint of the input record.
+     */
+    private void addDerivedData(CommonCrawlRowWritable newRow, long fingerprint, Map<String, Object> derived)
+        throws IOException {
+      int geoEntry = (Integer) derived.remove(CommonCrawlDeriveData.IP_GEO_ENTRY);
+      newRow.setGeoEntry(geoEntry);
+      addToRow(newRow.getDerivedData(), derived);
+      newRow.getDerivedData().withData(CommonCrawlDeriveData.FINGERPRINT, fingerprint);
+    }
 
-          addToRow(newRow.withData(), "", map);
+    /**
+     * Write a row to the output of the mapper.
+     * 
+     * @param row
+     *          The row, which is re-used after this method returns.
+     * @param derived
+     *          Result of {@link CommonCrawlDeriveData#deriveData(Map)}, without the
+     *          {@link CommonCrawlDeriveData#IP_GEO_ENTRY}.
+     * @param fingerprint
+     *          Fingerprint of the input record.
+     */
+    protected abstract void writeRow(CommonCrawlRowWritable row, Map<String, Object> derived, long fingerprint,
+        Context ctx) throws IOException, InterruptedException;
 
-          baos = new ByteArrayOutputStream();
-          try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-            oos.writeObject(newRow);
-          }
+    protected CommonCrawlDeriveData getDerive() {
+      return derive;
+    }
 
-          // We want to (1) distribute all rows randomly and (2) want to sort the rows of a specific Reducer, so that it
-          // creates ColumnPages that most probably can be skipped on "usual queries".
-          // For (1): We use the HashPartitionor, so we need to take care that simply each row has a different key, so
-          // the hash will be different and the rows will be distributed somewhat randomly.
-          // For (2): "Usual queries" might query only rows that are in a specific "bucket" and we simply guess here to
-          // build the buckets according to specific field values of the row.
-          String bucketId = //
-              ((String) CommonCrawlUtil.resolveValue(map, "derived." + CommonCrawlDeriveData.TLD)) + ":" + //
-                  ((String) CommonCrawlUtil.resolveValue(map, "derived." + CommonCrawlDeriveData.SERVER)) + ":" + //
-                  ((String) CommonCrawlUtil.resolveValue(map, "derived." + CommonCrawlDeriveData.IP_COUNTRY)) + ":" //
-                  ;
-
-          // ensure that rows are distributed "randomly", but sorting on single reducers is by bucketId.
-          String identifier = bucketId + ":" + map.hashCode();
-          ctx.write(new BytesWritable(identifier.getBytes(Charset.forName("UTF-8"))),
-              new BytesWritable(baos.toByteArray()));
-        }
-      }
+    /* package */ static void addToRow(CommonCrawlRowWritable.Data res, Map<String, Object> values)
+        throws IOException {
+      for (String origFieldName : values.keySet())
+        addToRow(res, origFieldName, values.get(origFieldName));
     }
 
+    /**
+     * Add a single field of the derived data to the row. The data of the WAT JSON is added by
+     * {@link WatJsonRowBuilder}, which converts the values according to the {@link WatSchema}.
+     */
     @SuppressWarnings("unchecked")
-    private void addToRow(DiqubeRow.DiqubeData res, String parentFieldName, Map<String, Object> values)
+    /* package */ static void addToRow(CommonCrawlRowWritable.Data res, String origFieldName, Object overallValue)
         throws IOException {
-      for (String origFieldName : values.keySet()) {
-        Object overallValue = values.get(origFieldName);
-
-        String fullOrigFieldName;
-        if ("".equals(parentFieldName))
-          fullOrigFieldName = origFieldName;
-        else
-          fullOrigFieldName = parentFieldName + "." + origFieldName;
-
-        String fieldName = cleanFieldName(origFieldName);
-
-        if (overallValue instanceof Iterable) {
-          for (Object value : (Iterable<Object>) overallValue) {
-            if (LONG_FIELDS.contains(fullOrigFieldName) && (value instanceof String))
-              value = Long.parseLong((String) value);
-
-            if (value == null)
-              logger.debug("Ignoring null value of field {}.", fieldName);
-            else if (value instanceof String)
-              res.addRepeatedData(fieldName, (String) value);
-            else if (value instanceof Map && !((Map<String, Object>) value).isEmpty()) {
-              addToRow(res.addNewRepeatedDiqubeData(fieldName), fullOrigFieldName, (Map<String, Object>) value);
-            } else if (value instanceof Number) {
-              if (value instanceof Integer || value instanceof Long)
-                res.addRepeatedData(fieldName, ((Number) value).longValue());
-              else if (value instanceof Float || value instanceof Double)
-                res.addRepeatedData(fieldName, ((Number) value).doubleValue());
-              else
-                throw new IOException("Unsupported number type: " + value.toString());
-            } else if (value instanceof Boolean) {
-              res.addRepeatedData(fieldName, ((Boolean) value).booleanValue() ? 1L : 0L);
-            }
-          }
-        } else {
-          Object value = overallValue;
-          if (LONG_FIELDS.contains(fullOrigFieldName) && (value instanceof String))
-            value = Long.parseLong((String) value);
+      String fieldName = cleanFieldName(origFieldName);
 
+      if (overallValue instanceof Iterable) {
+        for (Object value : (Iterable<Object>) overallValue) {
           if (value == null)
             logger.debug("Ignoring null value of field {}.", fieldName);
           else if (value instanceof String)
-            res.withData(fieldName, (String) value);
-          else if (value instanceof Map && !((Map<String, Object>) value).isEmpty())
-            addToRow(res.withNewDiqubeData(fieldName), fullOrigFieldName, (Map<String, Object>) value);
-          else if (value instanceof Number) {
+            res.addRepeatedData(fieldName, (String) value);
+          else if (value instanceof Map && !((Map<String, Object>) value).isEmpty()) {
+            addToRow(res.addNewRepeatedDiqubeData(fieldName), (Map<String, Object>) value);
+          } else if (value instanceof Number) {
             if (value instanceof Integer || value instanceof Long)
-              res.withData(fieldName, ((Number) value).longValue());
+              res.addRepeatedData(fieldName, ((Number) value).longValue());
             else if (value instanceof Float || value instanceof Double)
-              res.withData(fieldName, ((Number) value).doubleValue());
+              res.addRepeatedData(fieldName, ((Number) value).doubleValue());
             else
               throw new IOException("Unsupported number type: " + value.toString());
           } else if (value instanceof Boolean) {
-            res.withData(fieldName, ((Boolean) value).booleanValue() ? 1L : 0L);
+            res.addRepeatedData(fieldName, ((Boolean) value).booleanValue() ? 1L : 0L);
           }
         }
+      } else {
+        Object value = overallValue;
+        if (value == null)
+          logger.debug("Ignoring null value of field {}.", fieldName);
+        else if (value instanceof String)
+          res.withData(fieldName, (String) value);
+        else if (value instanceof Map && !((Map<String, Object>) value).isEmpty())
+          addToRow(res.withNewDiqubeData(fieldName), (Map<String, Object>) value);
+        else if (value instanceof Number) {
+          if (value instanceof Integer || value instanceof Long)
+            res.withData(fieldName, ((Number) value).longValue());
+          else if (value instanceof Float || value instanceof Double)
+            res.withData(fieldName, ((Number) value).doubleValue());
+          else
+            throw new IOException("Unsupported number type: " + value.toString());
+        } else if (value instanceof Boolean) {
+          res.withData(fieldName, ((Boolean) value).booleanValue() ? 1L : 0L);
+        }
       }
     }
 
-    private String cleanFieldName(String origFieldName) {
+    /* package */ static String cleanFieldName(String origFieldName) {
       return origFieldName.replace("-", "_").replace(".", "_").replace("#", "_").toLowerCase();
     }
 
+    /**
+     * A record that is passed through the {@link RecordPipeline} of
+     * {@link CommonCrawlBaseMapper#runPipeline(Mapper.Context, int)}.
+     * The buffer and the row are re-used for multiple records.
+     */
+    private static class PipelineItem {
+      private final WatRecordBuffer recordBuffer = new WatRecordBuffer();
+      private final CommonCrawlRowWritable row;
+      private String targetUri;
+      /** Derived data of the record, without the {@link CommonCrawlDeriveData#IP_GEO_ENTRY}. */
+      private Map<String, Object> derived;
+
+      private PipelineItem(CommonCrawlRowWritable row) {
+        this.row = row;
+      }
+    }
+
+  }
+
+  /**
+   * Mapper that writes the rows to the shuffle, keyed by their {@link CommonCrawlMapKey}, so they are sorted and
+   * written to .diqube files by {@link CommonCrawlReducer}.
+   */
+  public static class CommonCrawlMapper extends CommonCrawlBaseMapper<CommonCrawlMapKey, CommonCrawlRowWritable> {
+    private CommonCrawlMapKey.BucketIds bucketIds;
+    private CommonCrawlMapKey mapKey = new CommonCrawlMapKey();
+
+    @Override
+    protected void setup(Context ctx) throws IOException, InterruptedException {
+      super.setup(ctx);
+      bucketIds = new CommonCrawlMapKey.BucketIds(ctx.getConfiguration());
+    }
+
+    @Override
+    protected void writeRow(CommonCrawlRowWritable row, Map<String, Object> derived, long fingerprint, Context ctx)
+        throws IOException, InterruptedException {
+      setMapKey(mapKey, bucketIds, derived, getDerive().getIpCountryId(row.getGeoEntry()), fingerprint);
+      ctx.write(mapKey, row);
+    }
+
+    /**
+     * Set the values of the key of the map output of a row.
+     * 
+     * @param derived
+     *          Result of {@link CommonCrawlDeriveData#deriveData(Map)}.
+     * @param ipCountryId
+     *          See {@link CommonCrawlDeriveData#getIpCountryId(int)}.
+     * @param fingerprint
+     *          Fingerprint of the input record.
+     */
+    /* package */ static void setMapKey(CommonCrawlMapKey key, CommonCrawlMapKey.BucketIds bucketIds,
+        Map<String, Object> derived, int ipCountryId, long fingerprint) {
+      // We want to (1) distribute the rows to the reducers and (2) want to sort the rows of a specific Reducer, so that
+      // it creates ColumnPages that most probably can be skipped on "usual queries".
+      // For (1): We use the CommonCrawlBucketPartitioner, which sends all rows of a bucket to the same reducer, so
+      // the rows of a bucket end up in a single .diqube file. Alternatively the CommonCrawlSampledPartitioner splits
+      // the sorted keys into ranges, which splits large buckets across reducers.
+      // For (2): "Usual queries" might query only rows that are in a specific "bucket" and we simply guess here to
+      // build the buckets according to specific field values of the row.
+      // The fingerprint ensures that rows are distributed "randomly" inside a bucket, but sorting on single reducers
+      // is by bucket.
+      key.set(bucketIds.getTldId((String) derived.get(CommonCrawlDeriveData.TLD)),
+          bucketIds.getServerId((String) derived.get(CommonCrawlDeriveData.SERVER)), ipCountryId, fingerprint);
+    }
+
   }
 
-  public static class CommonCrawlReducer extends Reducer<BytesWritable, BytesWritable, NullWritable, DiqubeRow> {
+  /**
+   * Mapper that writes .diqube files directly, used when running without reducers (see {@link #CONF_MAP_ONLY}). This
+   * saves the shuffle, but the rows are written in the order of the input (or in the order they are processed, see
+   * {@link CommonCrawlBaseMapper#CONF_THREADS}).
+   */
+  public static class CommonCrawlDirectMapper extends CommonCrawlBaseMapper<NullWritable, DiqubeRow> {
     @Override
-    protected void reduce(BytesWritable rowIdentifier, Iterable<BytesWritable> rowsBytes, Context ctx)
+    protected void writeRow(CommonCrawlRowWritable row, Map<String, Object> derived, long fingerprint, Context ctx)
         throws IOException, InterruptedException {
-      for (BytesWritable rowBytes : rowsBytes) {
-        try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(rowBytes.getBytes()))) {
-          DiqubeRow row = (DiqubeRow) is.readObject();
-          ctx.write(NullWritable.get(), row);
-        } catch (ClassNotFoundException e) {
-          logger.error("Could not deserialize map result!", e);
-          throw new IOException("Could not deserialize map result!", e);
-        }
+      ctx.write(NullWritable.get(), CommonCrawlReducer.toDiqubeRow(row, getDerive()));
+    }
+  }
+
+  /**
+   * Partitions the map output by the bucket of the rows (see the key written by {@link CommonCrawlMapper}), so all
+   * rows of a bucket are sent to the same reducer and end up in the same .diqube file.
+   */
+  public static class CommonCrawlBucketPartitioner extends Partitioner<CommonCrawlMapKey, CommonCrawlRowWritable> {
+    @Override
+    public int getPartition(CommonCrawlMapKey key, CommonCrawlRowWritable value, int numPartitions) {
+      // ignore the fingerprint. Known IDs are small and dense, so the IDs are mixed (murmur3 finalizer) to make every
+      // ID affect all bits before taking the modulo. Otherwise e.g. with 31 * (31 * tld + server) + country and a
+      // multiple of 31 partitions, only the country would select the partition.
+      long hash = key.getTldId();
+      hash = hash * 0x9e3779b97f4a7c15L + key.getServerId();
+      hash = hash * 0x9e3779b97f4a7c15L + key.getCountryId();
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= hash >>> 33;
+      return (int) ((hash & Long.MAX_VALUE) % numPartitions);
+    }
+  }
+
+  /**
+   * Partitions the map output into ranges of keys, using split points that have been calculated from a sample of the
+   * keys by {@link CommonCrawlKeySampler}. In contrast to {@link CommonCrawlBucketPartitioner}, large buckets are split
+   * across multiple reducers.
+   * 
+   * <p>
+   * Reducer i receives the keys that are &gt;= split point i-1 and &lt; split point i.
+   */
+  public static class CommonCrawlSampledPartitioner extends Partitioner<CommonCrawlMapKey, CommonCrawlRowWritable>
+      implements Configurable {
+    /**
+     * Job configuration key: Base64 encoded serialized split points, see {@link #setSplitPoints(Configuration, List)}.
+     */
+    public static final String CONF_SPLIT_POINTS = "diqube.commoncrawl.partition.splitpoints";
+
+    private Configuration conf;
+    /** Sorted split points. */
+    private CommonCrawlMapKey[] splitPoints;
+
+    /**
+     * @param splitPoints
+     *          The sorted split points, one less than there are reducers.
+     */
+    public static void setSplitPoints(Configuration conf, List<CommonCrawlMapKey> splitPoints) {
+      Base64.Encoder encoder = Base64.getEncoder();
+      conf.setStrings(CONF_SPLIT_POINTS,
+          splitPoints.stream().map(key -> encoder.encodeToString(key.toBytes())).toArray(String[]::new));
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+      String[] encoded = conf.getStrings(CONF_SPLIT_POINTS);
+      if (encoded == null)
+        // no split points, i.e. a single reducer.
+        encoded = new String[0];
+      Base64.Decoder decoder = Base64.getDecoder();
+      splitPoints = Arrays.stream(encoded).map(s -> CommonCrawlMapKey.fromBytes(decoder.decode(s)))
+          .toArray(CommonCrawlMapKey[]::new);
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+
+    @Override
+    public int getPartition(CommonCrawlMapKey key, CommonCrawlRowWritable value, int numPartitions) {
+      return Math.min(getPartition(key), numPartitions - 1);
+    }
+
+    /**
+     * @return The number of split points that are &lt;= the given key.
+     */
+    /* package */ int getPartition(CommonCrawlMapKey key) {
+      int low = 0;
+      int high = splitPoints.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (splitPoints[mid].compareTo(key) <= 0)
+          low = mid + 1;
+        else
+          high = mid;
       }
+      return low;
+    }
+  }
+
+  public static class CommonCrawlReducer
+      extends Reducer<CommonCrawlMapKey, CommonCrawlRowWritable, NullWritable, DiqubeRow> {
+    /** Used to resolve the GeoIP entries of the rows written by {@link CommonCrawlMapper}. */
+    private CommonCrawlDeriveData derive = null;
+
+    @Override
+    protected void setup(Context ctx) throws IOException, InterruptedException {
+      derive = new CommonCrawlDeriveData();
+    }
+
+    @Override
+    protected void reduce(CommonCrawlMapKey rowIdentifier, Iterable<CommonCrawlRowWritable> rows, Context ctx)
+        throws IOException, InterruptedException {
+      for (CommonCrawlRowWritable rowWritable : rows)
+        ctx.write(NullWritable.get(), toDiqubeRow(rowWritable, derive));
+    }
+
+    /**
+     * @param derive
+     *          Used to resolve the {@link CommonCrawlRowWritable#getGeoEntry()}.
+     * @return A new {@link DiqubeRow} containing the data and the derived data of the given row.
+     */
+    /* package */ static DiqubeRow toDiqubeRow(CommonCrawlRowWritable rowWritable, CommonCrawlDeriveData derive)
+        throws IOException {
+      DiqubeRow row = new DiqubeRow();
+      rowWritable.addDataTo(row.withData());
+      DiqubeRow.DiqubeData derived = row.withData().withNewDiqubeData("derived");
+      rowWritable.addDerivedDataTo(derived);
+      derive.addIpValues(derived, rowWritable.getGeoEntry());
+      return row;
     }
 
   }
 
   public static void main(String[] args) throws Exception {
     Configuration conf = new Configuration();
+    // support generic options like -D to set e.g. IpGeoCache#CONF_CAPACITY.
+    args = new GenericOptionsParser(conf, args).getRemainingArgs();
     Job job = Job.getInstance(conf, "CommonCrawl WAT diqube");
     job.setJarByClass(CommonCrawlDiqube.class);
 
-    job.setMapperClass(CommonCrawlMapper.class);
-    job.setMapOutputKeyClass(BytesWritable.class);
-    job.setMapOutputValueClass(BytesWritable.class);
-
-    job.setReducerClass(CommonCrawlReducer.class);
-
     job.setInputFormatClass(WatInputFormat.class);
 
     job.setOutputFormatClass(DiqubeOutputFormat.class);
     job.setOutputKeyClass(NullWritable.class);
     job.setOutputValueClass(DiqubeRow.class);
-    job.setNumReduceTasks(1);
 
     for (int i = 0; i < args.length - 1; i++)
       FileInputFormat.addInputPath(job, new Path(args[i]));
+
+    if (WatSchema.loadResource(conf) == null)
+      new CommonCrawlKeySampler(job.getConfiguration()).inferSchema(job).setInferred(job.getConfiguration());
+
+    long memoryFlushMb;
+    if (conf.getBoolean(CONF_MAP_ONLY, false)) {
+      // each mapper writes the .diqube file of its input split, there is no shuffle.
+      job.setMapperClass(CommonCrawlDirectMapper.class);
+      job.setNumReduceTasks(0);
+      // map tasks are much smaller than the reducers the default is meant for. The rest of the memory is needed by the
+      // JVM and the rows that are being built concurrently.
+      memoryFlushMb = conf.getLong(CONF_MEMORY_FLUSH_MB,
+          conf.getInt(MRJobConfig.MAP_MEMORY_MB, MRJobConfig.DEFAULT_MAP_MEMORY_MB) / 2);
+    } else {
+      memoryFlushMb = conf.getLong(CONF_MEMORY_FLUSH_MB, DEFAULT_REDUCER_MEMORY_FLUSH_MB);
+      int numReducers = conf.getInt(CONF_REDUCERS, 1);
+      job.setMapperClass(CommonCrawlMapper.class);
+      job.setMapOutputKeyClass(CommonCrawlMapKey.class);
+      job.setMapOutputValueClass(CommonCrawlRowWritable.class);
+      job.setReducerClass(CommonCrawlReducer.class);
+      job.setNumReduceTasks(numReducers);
+
+      if (numReducers > 1 && conf.getInt(CommonCrawlKeySampler.CONF_SAMPLE_FILES, 0) > 0) {
+        new CommonCrawlKeySampler(job.getConfiguration()).writeSplitPoints(job, numReducers);
+        job.setPartitionerClass(CommonCrawlSampledPartitioner.class);
+      } else
+        job.setPartitionerClass(CommonCrawlBucketPartitioner.class);
+    }
     DiqubeOutputFormat.setOutputPath(job, new Path(args[args.length - 1]));
-    DiqubeOutputFormat.setMemoryFlushMb(job, Math.round(12 * 1024L));
+    DiqubeOutputFormat.setMemoryFlushMb(job, memoryFlushMb);
     System.exit(job.waitForCompletion(true) ? 0 : 1);
   }
 }
@@ -0,0 +1,189 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveRecord;
+import org.archive.io.warc.WARCReaderFactory;
+import org.diqube.hadoop.CommonCrawlDiqube.CommonCrawlMapper;
+import org.diqube.hadoop.CommonCrawlDiqube.CommonCrawlSampledPartitioner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the map output keys of {@link CommonCrawlDiqube} before the job is started and calculates the split points
+ * of a {@link CommonCrawlSampledPartitioner}.
+ * 
+ * <p>
+ * The buckets of the rows (see {@link CommonCrawlMapKey}) are very skewed. Similar to total
+ * order partitioning, the sampled keys are sorted and split into ranges containing the same number of keys each, one
+ * range per reducer. Large buckets are therefore split across multiple reducers, while small buckets are packed
+ * together.
+ * 
+ * <p>
+ * The records of a subset of the input files are processed the same way as {@link CommonCrawlMapper} does, which
+ * includes loading the GeoIP data.
+ * 
+ * <p>
+ * In addition to that, the {@link WatSchema} can be inferred from the same sample, see {@link #inferSchema(Job)}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class CommonCrawlKeySampler {
+  private static final Logger logger = LoggerFactory.getLogger(CommonCrawlKeySampler.class);
+
+  /** Job configuration key: Number of input files to sample, 0 disables sampling the map output keys. */
+  public static final String CONF_SAMPLE_FILES = "diqube.commoncrawl.sample.files";
+  /** Job configuration key: Maximum number of records to sample per input file. */
+  public static final String CONF_SAMPLE_RECORDS = "diqube.commoncrawl.sample.records";
+
+  public static final int DEFAULT_SAMPLE_RECORDS = 10000;
+
+  private Configuration conf;
+
+  public CommonCrawlKeySampler(Configuration conf) {
+    this.conf = conf;
+  }
+
+  /**
+   * Sample the input of the given job and set the split points for the given number of reducers in the configuration
+   * of the job, see {@link CommonCrawlSampledPartitioner#setSplitPoints(Configuration, List)}. The expected load of
+   * each reducer is logged.
+   */
+  public void writeSplitPoints(Job job, int numReducers) throws IOException, InterruptedException {
+    List<CommonCrawlMapKey> keys = sample(job);
+    if (keys.isEmpty()) {
+      logger.warn("No keys sampled, all rows will be sent to the first reducer.");
+      CommonCrawlSampledPartitioner.setSplitPoints(job.getConfiguration(), new ArrayList<>());
+      return;
+    }
+
+    Collections.sort(keys);
+    List<CommonCrawlMapKey> splitPoints = new ArrayList<>();
+    for (int i = 1; i < numReducers; i++)
+      splitPoints.add(keys.get((int) ((long) i * keys.size() / numReducers)));
+    CommonCrawlSampledPartitioner.setSplitPoints(job.getConfiguration(), splitPoints);
+
+    CommonCrawlSampledPartitioner partitioner = new CommonCrawlSampledPartitioner();
+    partitioner.setConf(job.getConfiguration());
+    long[] load = new long[numReducers];
+    for (CommonCrawlMapKey key : keys)
+      load[partitioner.getPartition(key)]++;
+    for (int i = 0; i < numReducers; i++)
+      logger.info("Expected load of reducer {}: {} of {} sampled rows ({}%).", i, load[i], keys.size(),
+          String.format("%.1f", 100. * load[i] / keys.size()));
+  }
+
+  /**
+   * Infer the {@link WatSchema} from the records of {@link #CONF_SAMPLE_FILES} (at least one) input files.
+   */
+  public WatSchema inferSchema(Job job) throws IOException, InterruptedException {
+    WatSchema.Inferrer inferrer = new WatSchema.Inferrer();
+    int numFiles = sampleRecords(job, Math.max(1, conf.getInt(CONF_SAMPLE_FILES, 0)),
+        (targetUri, record) -> inferrer.add(record.getData(), record.getLength()));
+    WatSchema res = inferrer.build();
+    logger.info("Inferred the types of {} fields from {} input files.", res.size(), numFiles);
+    return res;
+  }
+
+  /**
+   * @return The map output keys of the sampled records.
+   */
+  private List<CommonCrawlMapKey> sample(Job job) throws IOException, InterruptedException {
+    CommonCrawlDeriveData derive = CommonCrawlDeriveData.fromConfiguration(conf);
+    WatJsonRowBuilder rowBuilder = new WatJsonRowBuilder(true);
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(conf);
+    CommonCrawlMapKey.BucketIds bucketIds = new CommonCrawlMapKey.BucketIds(conf);
+
+    List<CommonCrawlMapKey> res = new ArrayList<>();
+    int numFiles = sampleRecords(job, conf.getInt(CONF_SAMPLE_FILES, 0), (targetUri, record) -> {
+      row.clear();
+      Map<String, Object> derived =
+          derive.deriveData(rowBuilder.build(record.getData(), record.getLength(), targetUri, row.getData()));
+      int geoEntry = (Integer) derived.get(CommonCrawlDeriveData.IP_GEO_ENTRY);
+      CommonCrawlMapKey key = new CommonCrawlMapKey();
+      CommonCrawlMapper.setMapKey(key, bucketIds, derived, derive.getIpCountryId(geoEntry), record.getFingerprint());
+      res.add(key);
+    });
+    logger.info("Sampled {} map output keys of {} input files.", res.size(), numFiles);
+    return res;
+  }
+
+  /**
+   * Read the first {@link #CONF_SAMPLE_RECORDS} records of the given number of input files. The files are spread over
+   * all input files of the job.
+   * 
+   * @return The number of files that have been read.
+   */
+  private int sampleRecords(Job job, int numFiles, SampleRecordConsumer consumer)
+      throws IOException, InterruptedException {
+    // a file might be split into multiple splits.
+    List<Path> paths = new WatInputFormat().getSplits(job).stream().map(split -> ((FileSplit) split).getPath())
+        .distinct().collect(Collectors.toList());
+    numFiles = Math.min(numFiles, paths.size());
+    int maxRecords = conf.getInt(CONF_SAMPLE_RECORDS, DEFAULT_SAMPLE_RECORDS);
+    WatRecordBuffer recordBuffer = new WatRecordBuffer();
+
+    for (int i = 0; i < numFiles; i++) {
+      Path path = paths.get((int) ((long) i * paths.size() / numFiles));
+      logger.info("Sampling records of {}...", path);
+
+      try (FSDataInputStream inStream = path.getFileSystem(conf).open(path);
+          ArchiveReader archiveReader =
+              WARCReaderFactory.get(path.getName(), new BufferedInputStream(inStream), true)) {
+        int numRecords = 0;
+        for (ArchiveRecord archiveRecord : archiveReader) {
+          if (numRecords >= maxRecords)
+            break;
+
+          String targetUriString = WatInputFormat.targetUriOf(archiveRecord);
+          if (targetUriString == null)
+            continue;
+
+          recordBuffer.read(archiveRecord);
+          consumer.accept(targetUriString, recordBuffer);
+          numRecords++;
+        }
+      }
+    }
+    return numFiles;
+  }
+
+  /**
+   * Receives the records read by {@link CommonCrawlKeySampler#sampleRecords(Job, int, SampleRecordConsumer)}.
+   */
+  private static interface SampleRecordConsumer {
+    public void accept(String targetUri, WatRecordBuffer record) throws IOException;
+  }
+}
@@ -0,0 +1,242 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Key of the map output of {@link CommonCrawlDiqube}: The bucket of a row, consisting of the IDs of the TLD, the server
+ * and the country of the IP, followed by a 64 bit fingerprint of the row.
+ * 
+ * <p>
+ * The key is serialized with a fixed length of {@link #LENGTH} bytes, all values big endian. The serialized keys are
+ * compared byte by byte (see {@link Comparator}), which equals comparing the values as unsigned numbers.
+ * 
+ * <p>
+ * The IDs of the TLD and the server are assigned using {@link BucketIds}, the IDs of the countries are those of the
+ * {@link IpGeoResolver}. All tasks of a job therefore use the same IDs.
+ *
+ * @author Bastian Gloeckle
+ */
+public class CommonCrawlMapKey implements WritableComparable<CommonCrawlMapKey> {
+  /** Number of bytes of a serialized key. */
+  public static final int LENGTH = 20;
+  /** Number of bytes of the bucket at the beginning of a serialized key. */
+  public static final int BUCKET_LENGTH = 12;
+
+  static {
+    WritableComparator.define(CommonCrawlMapKey.class, new Comparator());
+  }
+
+  private int tldId;
+  private int serverId;
+  private int countryId;
+  private long fingerprint;
+
+  public CommonCrawlMapKey() {
+  }
+
+  public CommonCrawlMapKey(int tldId, int serverId, int countryId, long fingerprint) {
+    set(tldId, serverId, countryId, fingerprint);
+  }
+
+  public void set(int tldId, int serverId, int countryId, long fingerprint) {
+    this.tldId = tldId;
+    this.serverId = serverId;
+    this.countryId = countryId;
+    this.fingerprint = fingerprint;
+  }
+
+  public int getTldId() {
+    return tldId;
+  }
+
+  public int getServerId() {
+    return serverId;
+  }
+
+  public int getCountryId() {
+    return countryId;
+  }
+
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(tldId);
+    out.writeInt(serverId);
+    out.writeInt(countryId);
+    out.writeLong(fingerprint);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    tldId = in.readInt();
+    serverId = in.readInt();
+    countryId = in.readInt();
+    fingerprint = in.readLong();
+  }
+
+  /**
+   * @return The serialized form of this key.
+   */
+  public byte[] toBytes() {
+    byte[] res = new byte[LENGTH];
+    putInt(res, 0, tldId);
+    putInt(res, 4, serverId);
+    putInt(res, 8, countryId);
+    putInt(res, 12, (int) (fingerprint >>> 32));
+    putInt(res, 16, (int) fingerprint);
+    return res;
+  }
+
+  /**
+   * @return The key that has been serialized to the given bytes, see {@link #toBytes()}.
+   */
+  public static CommonCrawlMapKey fromBytes(byte[] bytes) {
+    long fingerprint = ((long) getInt(bytes, 12) << 32) | (getInt(bytes, 16) & 0xFFFFFFFFL);
+    return new CommonCrawlMapKey(getInt(bytes, 0), getInt(bytes, 4), getInt(bytes, 8), fingerprint);
+  }
+
+  private static int getInt(byte[] buf, int pos) {
+    return ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8)
+        | (buf[pos + 3] & 0xFF);
+  }
+
+  private static void putInt(byte[] buf, int pos, int value) {
+    buf[pos] = (byte) (value >>> 24);
+    buf[pos + 1] = (byte) (value >>> 16);
+    buf[pos + 2] = (byte) (value >>> 8);
+    buf[pos + 3] = (byte) value;
+  }
+
+  @Override
+  public int compareTo(CommonCrawlMapKey o) {
+    int res = Integer.compareUnsigned(tldId, o.tldId);
+    if (res == 0)
+      res = Integer.compareUnsigned(serverId, o.serverId);
+    if (res == 0)
+      res = Integer.compareUnsigned(countryId, o.countryId);
+    if (res == 0)
+      res = Long.compareUnsigned(fingerprint, o.fingerprint);
+    return res;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof CommonCrawlMapKey))
+      return false;
+    CommonCrawlMapKey o = (CommonCrawlMapKey) obj;
+    return tldId == o.tldId && serverId == o.serverId && countryId == o.countryId && fingerprint == o.fingerprint;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(toBytes());
+  }
+
+  @Override
+  public String toString() {
+    return tldId + ":" + serverId + ":" + countryId + ":" + Long.toHexString(fingerprint);
+  }
+
+  /**
+   * Compares serialized {@link CommonCrawlMapKey}s without deserializing them.
+   */
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(CommonCrawlMapKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      return compareBytes(b1, s1, LENGTH, b2, s2, LENGTH);
+    }
+  }
+
+  /**
+   * Assigns the IDs of TLDs and servers in a {@link CommonCrawlMapKey}.
+   * 
+   * <p>
+   * The values contained in the dictionaries of the job (see {@link #CONF_TLDS} and {@link #CONF_SERVERS}) are
+   * identified by their index in the dictionary. All other values are identified by a hash with the highest bit set,
+   * so they are sorted after the values of the dictionary. Different values might therefore share an ID, which is not a
+   * problem as a bucket merely groups rows.
+   */
+  public static class BucketIds {
+    /** Job configuration key: Comma-separated TLDs that have a dedicated ID. */
+    public static final String CONF_TLDS = "diqube.commoncrawl.bucket.tlds";
+    /** Job configuration key: Comma-separated servers that have a dedicated ID. */
+    public static final String CONF_SERVERS = "diqube.commoncrawl.bucket.servers";
+
+    public static final String[] DEFAULT_TLDS = new String[] { "com", "org", "net", "de", "uk", "ru", "jp", "br", "fr",
+        "it", "pl", "nl", "info", "au", "es", "cn", "in", "ca", "eu", "edu", "gov", "ch", "be", "se", "cz", "at", "dk",
+        "io", "mx", "tw", "kr", "gr", "ar", "hu", "ro", "za", "vn", "tr", "ua", "co", "no", "fi", "pt", "sk", "biz",
+        "me", "us" };
+
+    public static final String[] DEFAULT_SERVERS = new String[] { "", "Apache", "nginx", "Microsoft-IIS",
+        "cloudflare-nginx", "GSE", "LiteSpeed", "lighttpd", "openresty", "Varnish", "ATS", "AmazonS3", "Apache-Coyote",
+        "IBM_HTTP_Server", "Sun-Java-System-Web-Server", "Oracle-iPlanet-Web-Server", "Zeus", "Resin", "Jetty", "gws",
+        "squid", "YTS", "Tengine", "AkamaiGHost" };
+
+    private final Map<String, Integer> tldIds;
+    private final Map<String, Integer> serverIds;
+
+    public BucketIds(Configuration conf) {
+      tldIds = toIds(conf.getStrings(CONF_TLDS, DEFAULT_TLDS));
+      serverIds = toIds(conf.getStrings(CONF_SERVERS, DEFAULT_SERVERS));
+    }
+
+    private static Map<String, Integer> toIds(String[] values) {
+      Map<String, Integer> res = new HashMap<>();
+      if (values != null)
+        for (int i = 0; i < values.length; i++)
+          res.putIfAbsent(values[i], i);
+      return res;
+    }
+
+    public int getTldId(String tld) {
+      return getId(tldIds, tld);
+    }
+
+    public int getServerId(String server) {
+      return getId(serverIds, server);
+    }
+
+    private int getId(Map<String, Integer> ids, String value) {
+      Integer res = ids.get(value);
+      if (res != null)
+        return res;
+      return value.hashCode() | Integer.MIN_VALUE;
+    }
+  }
+}
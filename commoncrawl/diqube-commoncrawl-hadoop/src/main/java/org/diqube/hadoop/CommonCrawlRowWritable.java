@@ -0,0 +1,462 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Value of the shuffle of {@link CommonCrawlDiqube}: The data of a single row, the derived data of that row and its
+ * {@link IpGeoResolver} entry.
+ * 
+ * <p>
+ * In contrast to a {@link DiqubeRow} serialized using Java serialization, no class descriptors are written and field
+ * names are replaced by IDs. Names contained in the field name dictionary of the job (see {@link #CONF_FIELD_NAMES})
+ * are always written as ID, other names are written as string when they first occur in a row and as ID afterwards.
+ * Longs are written as variable-length ints, strings are written as length-prefixed UTF-8.
+ * 
+ * <p>
+ * Data is added using {@link #getData()} and {@link #getDerivedData()}, the methods of {@link Data} correspond to those
+ * of {@link DiqubeRow.DiqubeData}. Data has to be added depth-first: As soon as data is added to a {@link Data} object,
+ * the {@link Data} objects of its children must not be used anymore. On the reduce side, the data is added to an actual
+ * {@link DiqubeRow} using {@link #addDataTo(DiqubeRow.DiqubeData)} and {@link #addDerivedDataTo(DiqubeRow.DiqubeData)}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class CommonCrawlRowWritable implements Writable, Configurable {
+  /**
+   * Job configuration key: Comma-separated (cleaned) field names that are always written as ID. Has to be the same for
+   * all mappers and reducers.
+   */
+  public static final String CONF_FIELD_NAMES = "diqube.commoncrawl.fieldnames";
+
+  /** Default of {@link #CONF_FIELD_NAMES}: Names of fields that most WAT records contain and of the derived fields. */
+  public static final String[] DEFAULT_FIELD_NAMES = new String[] { //
+      "container", "filename", "compressed", "offset", "gzip_metadata", "deflate_length", "header_length",
+      "footer_length", "inflated_crc", "inflated_length", //
+      "envelope", "format", "warc_header_length", "block_digest", "actual_content_length", "warc_header_metadata",
+      "warc_type", "warc_date", "warc_record_id", "content_length", "content_type", "warc_warcinfo_id",
+      "warc_concurrent_to", "warc_ip_address", "warc_target_uri", "warc_payload_digest", "warc_block_digest", //
+      "payload_metadata", "actual_content_type", "trailing_slop_length", "http_response_metadata",
+      "response_message", "version", "status", "reason", "headers_length", "entity_length",
+      "entity_trailing_slop_bytes", "entity_digest", //
+      "headers", "date", "server", "connection", "cache_control", "expires", "last_modified", "etag", "vary",
+      "set_cookie", "x_powered_by", "accept_ranges", "pragma", "location", "transfer_encoding", "content_encoding",
+      "content_language", "keep_alive", "age", "via", "p3p", "x_frame_options", "x_xss_protection",
+      "x_content_type_options", "access_control_allow_origin", "strict_transport_security", //
+      "html_metadata", "head", "title", "scripts", "metas", "link", "links", "base", "path", "url", "text", "alt",
+      "target", "rel", "name", "content", "property", "type", "http_equiv", "charset", //
+      "tld", "domain", "subdomain", "domain_scheme", "cache_seconds", "server_components", "component", "comment",
+      "server_version", "server_comment", "top_link_domains", "count" };
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Header denoting the end of the current nested data. */
+  private static final int END = 0;
+  private static final int STRING = 1;
+  private static final int LONG = 2;
+  private static final int DOUBLE = 3;
+  private static final int NEW_DATA = 4;
+  /** Flag in the header denoting repeated data. */
+  private static final int REPEATED = 8;
+  private static final int TYPE_MASK = 7;
+  private static final int TYPE_BITS = 4;
+  /** Field reference in the header denoting that the field name follows as string. */
+  private static final int NEW_NAME = 0;
+
+  /** The last dictionary that was created, as all instances of a job share the same one. */
+  private static volatile FieldNameDictionary lastDictionary = null;
+
+  private Configuration conf;
+  private FieldNameDictionary dictionary;
+  private final Section data = new Section();
+  private final Section derivedData = new Section();
+  private int geoEntry = -1;
+
+  public CommonCrawlRowWritable() {
+  }
+
+  public CommonCrawlRowWritable(Configuration conf) {
+    setConf(conf);
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    String[] names = conf.getStrings(CONF_FIELD_NAMES, DEFAULT_FIELD_NAMES);
+    FieldNameDictionary dict = lastDictionary;
+    if (dict == null || !Arrays.equals(dict.names, names)) {
+      dict = new FieldNameDictionary(names);
+      lastDictionary = dict;
+    }
+    dictionary = dict;
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * Remove all data, so the object can be re-used.
+   */
+  public void clear() {
+    data.clear();
+    derivedData.clear();
+    geoEntry = -1;
+  }
+
+  /**
+   * @return The top level data of the row.
+   */
+  public Data getData() {
+    return data.root;
+  }
+
+  /**
+   * @return The top level data of the derived data.
+   */
+  public Data getDerivedData() {
+    return derivedData.root;
+  }
+
+  public int getGeoEntry() {
+    return geoEntry;
+  }
+
+  public void setGeoEntry(int geoEntry) {
+    this.geoEntry = geoEntry;
+  }
+
+  /**
+   * Add the data of the row (see {@link #getData()}) to the given data of a {@link DiqubeRow}.
+   */
+  public void addDataTo(DiqubeRow.DiqubeData target) throws IOException {
+    data.addTo(target);
+  }
+
+  /**
+   * Add the derived data (see {@link #getDerivedData()}) to the given data of a {@link DiqubeRow}.
+   */
+  public void addDerivedDataTo(DiqubeRow.DiqubeData target) throws IOException {
+    derivedData.addTo(target);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    data.write(out);
+    derivedData.write(out);
+    writeVarLong(out, zigZag(geoEntry));
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    data.readFields(in);
+    derivedData.readFields(in);
+    geoEntry = (int) unZigZag(readVarLong(in));
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInput in) throws IOException {
+    long res = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.readByte();
+      res |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return res;
+    }
+  }
+
+  /**
+   * Data of a row to which fields can be added, corresponds to {@link DiqubeRow.DiqubeData}.
+   */
+  public static class Data {
+    private final Section section;
+    private final int depth;
+
+    private Data(Section section, int depth) {
+      this.section = section;
+      this.depth = depth;
+    }
+
+    public Data withData(String fieldName, String value) throws IOException {
+      section.writeHeader(depth, fieldName, STRING);
+      section.writeString(value);
+      return this;
+    }
+
+    public Data withData(String fieldName, long value) throws IOException {
+      section.writeHeader(depth, fieldName, LONG);
+      writeVarLong(section.out, zigZag(value));
+      return this;
+    }
+
+    public Data withData(String fieldName, double value) throws IOException {
+      section.writeHeader(depth, fieldName, DOUBLE);
+      section.out.writeDouble(value);
+      return this;
+    }
+
+    public Data withNewDiqubeData(String fieldName) throws IOException {
+      section.writeHeader(depth, fieldName, NEW_DATA);
+      section.depth = depth + 1;
+      return new Data(section, depth + 1);
+    }
+
+    public Data addRepeatedData(String fieldName, String value) throws IOException {
+      section.writeHeader(depth, fieldName, REPEATED | STRING);
+      section.writeString(value);
+      return this;
+    }
+
+    public Data addRepeatedData(String fieldName, long value) throws IOException {
+      section.writeHeader(depth, fieldName, REPEATED | LONG);
+      writeVarLong(section.out, zigZag(value));
+      return this;
+    }
+
+    public Data addRepeatedData(String fieldName, double value) throws IOException {
+      section.writeHeader(depth, fieldName, REPEATED | DOUBLE);
+      section.out.writeDouble(value);
+      return this;
+    }
+
+    public Data addNewRepeatedDiqubeData(String fieldName) throws IOException {
+      section.writeHeader(depth, fieldName, REPEATED | NEW_DATA);
+      section.depth = depth + 1;
+      return new Data(section, depth + 1);
+    }
+  }
+
+  /**
+   * Serialized form of a tree of {@link Data}. Each field is written as header, consisting of a field reference and
+   * the type, followed by the value. The end of a nested data is denoted by the {@link #END} header.
+   */
+  private class Section {
+    private final DataOutputBuffer out = new DataOutputBuffer();
+    /** IDs of the names that were written as string, see {@link FieldNameDictionary}. */
+    private final Map<String, Integer> rowNameIds = new HashMap<>();
+    /** Depth of the nested data the last field was written to. */
+    private int depth = 0;
+    private final Data root = new Data(this, 0);
+
+    private void clear() {
+      out.reset();
+      rowNameIds.clear();
+      depth = 0;
+    }
+
+    private void writeHeader(int depth, String fieldName, int type) throws IOException {
+      // end the children that were written before.
+      for (; this.depth > depth; this.depth--)
+        writeVarLong(out, END);
+
+      Integer id = dictionary.ids.get(fieldName);
+      if (id == null)
+        id = rowNameIds.get(fieldName);
+
+      if (id != null)
+        writeVarLong(out, ((id + 1L) << TYPE_BITS) | type);
+      else {
+        writeVarLong(out, (NEW_NAME << TYPE_BITS) | type);
+        writeString(fieldName);
+        rowNameIds.put(fieldName, dictionary.names.length + rowNameIds.size());
+      }
+    }
+
+    private void writeString(String value) throws IOException {
+      byte[] bytes = value.getBytes(UTF8);
+      writeVarLong(out, bytes.length);
+      out.write(bytes);
+    }
+
+    private void write(DataOutput target) throws IOException {
+      writeVarLong(target, out.getLength());
+      target.write(out.getData(), 0, out.getLength());
+    }
+
+    private void readFields(DataInput in) throws IOException {
+      clear();
+      out.write(in, (int) readVarLong(in));
+    }
+
+    private void addTo(DiqubeRow.DiqubeData target) throws IOException {
+      Reader in = new Reader(out.getData(), out.getLength());
+      List<String> rowNames = new ArrayList<>();
+      Deque<DiqubeRow.DiqubeData> parents = new ArrayDeque<>();
+      DiqubeRow.DiqubeData cur = target;
+      // nested data is only created when its first field is added, so objects that turned out to be empty (e.g. as
+      // none of their fields is selected by the FieldProjection) are not added to the row.
+      List<String> pendingNames = new ArrayList<>();
+      List<Boolean> pendingRepeated = new ArrayList<>();
+
+      while (in.hasMore()) {
+        long header = in.readVarLong();
+        if (header == END) {
+          if (!pendingNames.isEmpty()) {
+            pendingNames.remove(pendingNames.size() - 1);
+            pendingRepeated.remove(pendingRepeated.size() - 1);
+          } else
+            cur = parents.pop();
+          continue;
+        }
+
+        int ref = (int) (header >>> TYPE_BITS);
+        String fieldName;
+        if (ref == NEW_NAME) {
+          fieldName = in.readString();
+          rowNames.add(fieldName);
+        } else if (ref <= dictionary.names.length)
+          fieldName = dictionary.names[ref - 1];
+        else
+          fieldName = rowNames.get(ref - 1 - dictionary.names.length);
+
+        boolean repeated = (header & REPEATED) != 0;
+        int type = (int) (header & TYPE_MASK);
+        if (type == NEW_DATA) {
+          pendingNames.add(fieldName);
+          pendingRepeated.add(repeated);
+          continue;
+        }
+
+        for (int i = 0; i < pendingNames.size(); i++) {
+          parents.push(cur);
+          cur = (pendingRepeated.get(i)) ? cur.addNewRepeatedDiqubeData(pendingNames.get(i))
+              : cur.withNewDiqubeData(pendingNames.get(i));
+        }
+        pendingNames.clear();
+        pendingRepeated.clear();
+
+        switch (type) {
+        case STRING:
+          String s = in.readString();
+          if (repeated)
+            cur.addRepeatedData(fieldName, s);
+          else
+            cur.withData(fieldName, s);
+          break;
+        case LONG:
+          long l = unZigZag(in.readVarLong());
+          if (repeated)
+            cur.addRepeatedData(fieldName, l);
+          else
+            cur.withData(fieldName, l);
+          break;
+        case DOUBLE:
+          double d = Double.longBitsToDouble(in.readLong());
+          if (repeated)
+            cur.addRepeatedData(fieldName, d);
+          else
+            cur.withData(fieldName, d);
+          break;
+        default:
+          throw new IOException("Invalid header in serialized row: " + header);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the data of a {@link Section}.
+   */
+  private static class Reader {
+    private final byte[] buf;
+    private final int length;
+    private int pos = 0;
+
+    private Reader(byte[] buf, int length) {
+      this.buf = buf;
+      this.length = length;
+    }
+
+    private boolean hasMore() {
+      return pos < length;
+    }
+
+    private long readVarLong() {
+      long res = 0;
+      for (int shift = 0;; shift += 7) {
+        byte b = buf[pos++];
+        res |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+          return res;
+      }
+    }
+
+    private long readLong() {
+      long res = 0;
+      for (int i = 0; i < 8; i++)
+        res = (res << 8) | (buf[pos++] & 0xFF);
+      return res;
+    }
+
+    private String readString() {
+      int len = (int) readVarLong();
+      String res = new String(buf, pos, len, UTF8);
+      pos += len;
+      return res;
+    }
+  }
+
+  /**
+   * Field names with their IDs. The IDs following those of the dictionary are assigned to the names of a single row
+   * that are not contained in the dictionary, in the order they are written.
+   */
+  private static class FieldNameDictionary {
+    private final String[] names;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private FieldNameDictionary(String[] names) {
+      this.names = names;
+      for (int i = 0; i < names.length; i++)
+        ids.putIfAbsent(names[i], i);
+    }
+  }
+}
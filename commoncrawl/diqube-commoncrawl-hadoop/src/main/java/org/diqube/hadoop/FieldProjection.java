@@ -0,0 +1,154 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Selects the fields of the WAT JSON that are added to the rows, see {@link #CONF_FIELDS}.
+ * 
+ * <p>
+ * A pattern is a dotted path of original field names, e.g. "Envelope.WARC-Header-Metadata.WARC-Target-URI". Each
+ * segment may contain "*", which matches any characters of a single field name. A field matching a pattern is kept
+ * including all its children. An object is traversed if one of its descendants could match a pattern, all other fields
+ * are skipped. The {@link State} of a field is calculated from the state of its parent, so this can be evaluated while
+ * streaming through the JSON.
+ *
+ * @author Bastian Gloeckle
+ */
+public class FieldProjection {
+  /** Job configuration key: Comma-separated patterns of the fields to keep. If not set, all fields are kept. */
+  public static final String CONF_FIELDS = "diqube.commoncrawl.fields";
+
+  /** Projection which keeps all fields. */
+  public static final FieldProjection ALL = new FieldProjection();
+
+  /** The patterns, split into the (compiled) segments. Empty for {@link #ALL}. */
+  private final List<Pattern[]> patterns = new ArrayList<>();
+  private final State root;
+
+  private FieldProjection() {
+    root = new State(0, null);
+  }
+
+  public FieldProjection(Collection<String> patterns) {
+    int[] candidates = new int[patterns.size()];
+    int i = 0;
+    for (String pattern : patterns) {
+      this.patterns.add(Arrays.stream(pattern.split("\\.")).map(FieldProjection::compileSegment)
+          .toArray(Pattern[]::new));
+      candidates[i] = i;
+      i++;
+    }
+    root = new State(0, candidates);
+  }
+
+  /**
+   * @return The projection configured in {@link #CONF_FIELDS}.
+   */
+  public static FieldProjection fromConfiguration(Configuration conf) {
+    String[] patterns = conf.getTrimmedStrings(CONF_FIELDS);
+    if (patterns.length == 0)
+      return ALL;
+    return new FieldProjection(Arrays.asList(patterns));
+  }
+
+  private static Pattern compileSegment(String segment) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    int star;
+    while ((star = segment.indexOf('*', start)) != -1) {
+      if (star > start)
+        regex.append(Pattern.quote(segment.substring(start, star)));
+      regex.append(".*");
+      start = star + 1;
+    }
+    if (start < segment.length())
+      regex.append(Pattern.quote(segment.substring(start)));
+    return Pattern.compile(regex.toString());
+  }
+
+  /**
+   * @return <code>true</code> if this projection keeps all fields.
+   */
+  public boolean isAll() {
+    return patterns.isEmpty();
+  }
+
+  /**
+   * @return The state of the top level JSON object.
+   */
+  public State root() {
+    return root;
+  }
+
+  /**
+   * Projection state of a single field. Immutable.
+   */
+  public class State {
+    private final int depth;
+    /**
+     * Indices of the patterns whose first {@link #depth} segments match the path of this field, <code>null</code> if
+     * the field is kept fully.
+     */
+    private final int[] candidates;
+
+    private State(int depth, int[] candidates) {
+      this.depth = depth;
+      this.candidates = candidates;
+    }
+
+    /**
+     * @return <code>true</code> if this field is kept including all its children.
+     */
+    public boolean isFull() {
+      return candidates == null;
+    }
+
+    /**
+     * @return The state of the child with the given name or <code>null</code> if that child is not kept.
+     */
+    public State child(String childName) {
+      if (candidates == null)
+        return this;
+
+      int[] childCandidates = new int[candidates.length];
+      int numChildCandidates = 0;
+      for (int candidate : candidates) {
+        Pattern[] pattern = patterns.get(candidate);
+        if (pattern[depth].matcher(childName).matches()) {
+          if (pattern.length == depth + 1)
+            return new State(depth + 1, null);
+          childCandidates[numChildCandidates++] = candidate;
+        }
+      }
+      if (numChildCandidates == 0)
+        return null;
+      return new State(depth + 1, Arrays.copyOf(childCandidates, numChildCandidates));
+    }
+  }
+}
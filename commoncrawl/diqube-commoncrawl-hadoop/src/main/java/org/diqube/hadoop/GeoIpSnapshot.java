@@ -0,0 +1,306 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * A precompiled binary snapshot of the GeoLite data used by {@link CommonCrawlDeriveData}.
+ *
+ * <p>
+ * The snapshot is created at build time by {@link GeoIpSnapshotCompiler} and contains, for each of the city, country
+ * and ASN data, the sorted range tables ({@link Ip4RangeTable}, {@link Ip6RangeTable}) plus a string table holding the
+ * values. In addition to that it contains the merged tables of an {@link IpGeoResolver}. {@link #open(File)} maps the
+ * file into memory using a {@link MappedByteBuffer}, the resolvers then work directly on the mapped data. Opening the
+ * snapshot therefore is fast and the tables do not live on the heap.
+ *
+ * <p>
+ * File layout (big endian): magic, version, then city, country and ASN sections, each consisting of IPv4 table, IPv6
+ * table and string table, then the {@link IpGeoResolver} section, which starts with the
+ * {@link IpGeoResolver#getSourceBackend() backend} that the source tables were merged with.
+ *
+ * @author Bastian Gloeckle
+ */
+public class GeoIpSnapshot {
+  private static final Logger logger = LoggerFactory.getLogger(GeoIpSnapshot.class);
+
+  /** File name of the snapshot, both on the classpath and in the working directory of a task. */
+  public static final String FILE_NAME = "geoip.snapshot";
+  /** Name of the resource containing the SHA-256 of the snapshot, written by {@link GeoIpSnapshotCompiler}. */
+  public static final String ID_FILE_NAME = FILE_NAME + ".sha256";
+  /**
+   * System property: directory into which the snapshot is extracted from the classpath, defaults to java.io.tmpdir.
+   * Should be a directory shared by the task JVMs of a node.
+   */
+  public static final String PROPERTY_EXTRACT_DIR = "diqube.commoncrawl.geoip.dir";
+
+  private static final int MAGIC = 0x44514750; // "DQGP"
+  private static final int VERSION = 4;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private IpValueResolver cityResolver;
+  private IpValueResolver countryResolver;
+  private IpAsnResolver asnResolver;
+  private IpGeoResolver geoResolver;
+
+  private GeoIpSnapshot(IpValueResolver cityResolver, IpValueResolver countryResolver, IpAsnResolver asnResolver,
+      IpGeoResolver geoResolver) {
+    this.cityResolver = cityResolver;
+    this.countryResolver = countryResolver;
+    this.asnResolver = asnResolver;
+    this.geoResolver = geoResolver;
+  }
+
+  public IpValueResolver getCityResolver() {
+    return cityResolver;
+  }
+
+  public IpValueResolver getCountryResolver() {
+    return countryResolver;
+  }
+
+  public IpAsnResolver getAsnResolver() {
+    return asnResolver;
+  }
+
+  public IpGeoResolver getGeoResolver() {
+    return geoResolver;
+  }
+
+  /**
+   * Memory-map the given snapshot file.
+   */
+  public static GeoIpSnapshot open(File file) throws IOException {
+    MappedByteBuffer buf;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      // the mapping stays valid after the channel is closed.
+      buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+
+    if (buf.getInt() != MAGIC)
+      throw new IOException("Not a GeoIP snapshot: " + file);
+    int version = buf.getInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported GeoIP snapshot version " + version + ": " + file);
+
+    IpValueResolver city = IpValueResolver.readSnapshot(buf);
+    IpValueResolver country = IpValueResolver.readSnapshot(buf);
+    IpAsnResolver asn = IpAsnResolver.readSnapshot(buf);
+    IpGeoResolver geo = IpGeoResolver.readSnapshot(buf);
+    return new GeoIpSnapshot(city, country, asn, geo);
+  }
+
+  /**
+   * Write a snapshot file containing the data of the given resolvers, which must have been loaded from CSV.
+   * 
+   * @param sourceBackend
+   *          See {@link IpGeoResolver#merge(IpValueResolver, IpValueResolver, IpAsnResolver, IpRangeIndex.Backend)}.
+   */
+  public static void write(File file, IpValueResolver cityResolver, IpValueResolver countryResolver,
+      IpAsnResolver asnResolver, IpRangeIndex.Backend sourceBackend) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      cityResolver.writeSnapshot(out);
+      countryResolver.writeSnapshot(out);
+      asnResolver.writeSnapshot(out);
+      IpGeoResolver.merge(cityResolver, countryResolver, asnResolver, sourceBackend).writeSnapshot(out);
+    }
+  }
+
+  /**
+   * Find a snapshot file that can be {@link #open(File)}ed.
+   *
+   * <p>
+   * A file named {@link #FILE_NAME} in the current working directory is used if available (e.g. shipped using the
+   * distributed cache). Otherwise the snapshot on the classpath is used. As a resource inside a jar cannot be mapped,
+   * it is extracted into the directory given in {@link #PROPERTY_EXTRACT_DIR}, using a file name containing its
+   * SHA-256. The extracted file is not deleted, so all task JVMs on a node that use the same snapshot share one copy.
+   *
+   * @return the file or <code>null</code> if no snapshot is available.
+   */
+  public static File locate() throws IOException {
+    File localFile = new File(FILE_NAME);
+    if (localFile.isFile())
+      return localFile;
+
+    String id;
+    try (InputStream is = GeoIpSnapshot.class.getResourceAsStream("/" + ID_FILE_NAME)) {
+      if (is == null)
+        return null;
+      id = new String(ByteStreams.toByteArray(is), UTF8).trim();
+    }
+
+    File dir = new File(System.getProperty(PROPERTY_EXTRACT_DIR, System.getProperty("java.io.tmpdir")));
+    File file = new File(dir, "diqube-" + id + "-" + FILE_NAME);
+    if (file.isFile()) {
+      logger.info("Using GeoIP snapshot {} that was extracted before", file);
+      return file;
+    }
+
+    try (InputStream is = GeoIpSnapshot.class.getResourceAsStream("/" + FILE_NAME)) {
+      if (is == null)
+        return null;
+
+      dir.mkdirs();
+      // other JVMs might extract the same snapshot concurrently, they must never see a partially written file.
+      File tempFile = File.createTempFile("diqube-", "-" + FILE_NAME + ".tmp", dir);
+      try {
+        try (OutputStream os = new FileOutputStream(tempFile)) {
+          ByteStreams.copy(is, os);
+        }
+        // replacing a file that a different JVM extracted at the same time is fine, it has the same content.
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tempFile.toPath());
+      }
+      logger.info("Extracted GeoIP snapshot to {}", file);
+      return file;
+    }
+  }
+
+  /**
+   * @return An {@link IntBuffer} on the next count ints of the given buffer. The position of the buffer is moved
+   *         behind those ints.
+   */
+  /* package */ static IntBuffer intSlice(ByteBuffer buf, int count) {
+    ByteBuffer slice = buf.slice();
+    slice.order(buf.order());
+    slice.limit(count * 4);
+    buf.position(buf.position() + count * 4);
+    return slice.asIntBuffer();
+  }
+
+  /**
+   * @return A {@link LongBuffer} on the next count longs of the given buffer. The position of the buffer is moved
+   *         behind those longs.
+   */
+  /* package */ static LongBuffer longSlice(ByteBuffer buf, int count) {
+    ByteBuffer slice = buf.slice();
+    slice.order(buf.order());
+    slice.limit(count * 8);
+    buf.position(buf.position() + count * 8);
+    return slice.asLongBuffer();
+  }
+
+  /**
+   * A table of strings inside a snapshot, indexed by a dense int ID.
+   *
+   * <p>
+   * The strings are decoded from the underlying buffer when they are first requested. Requesting ID -1 returns
+   * <code>null</code>.
+   *
+   * <p>
+   * This class is thread-safe, the tables are shared by all threads of a mapper (see {@link CommonCrawlDeriveData}).
+   * The buffers are only read using absolute positions and the decoded strings are published through an
+   * {@link AtomicReferenceArray}. Two threads might decode the same string concurrently, which is harmless.
+   */
+  public static class StringTable implements IntFunction<String> {
+
+    private final IntBuffer offsets;
+    private final ByteBuffer data;
+    private final AtomicReferenceArray<String> decoded;
+
+    private StringTable(IntBuffer offsets, ByteBuffer data) {
+      this.offsets = offsets;
+      this.data = data;
+      decoded = new AtomicReferenceArray<>(offsets.limit() - 1);
+    }
+
+    @Override
+    public String apply(int id) {
+      if (id < 0)
+        return null;
+
+      String res = decoded.get(id);
+      if (res == null) {
+        int start = offsets.get(id);
+        byte[] bytes = new byte[offsets.get(id + 1) - start];
+        for (int i = 0; i < bytes.length; i++)
+          bytes[i] = data.get(start + i);
+        res = new String(bytes, UTF8);
+        decoded.set(id, res);
+      }
+      return res;
+    }
+
+    public int size() {
+      return decoded.length();
+    }
+
+    /**
+     * Write a string table, the IDs being the indices in the given list.
+     */
+    /* package */ static void write(DataOutput out, List<String> strings) throws IOException {
+      byte[][] encoded = new byte[strings.size()][];
+      for (int i = 0; i < encoded.length; i++)
+        encoded[i] = strings.get(i).getBytes(UTF8);
+
+      out.writeInt(encoded.length);
+      int offset = 0;
+      for (byte[] bytes : encoded) {
+        out.writeInt(offset);
+        offset += bytes.length;
+      }
+      out.writeInt(offset);
+      for (byte[] bytes : encoded)
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string table that was written using {@link #write(DataOutput, List)}. The table is backed by the given
+     * buffer, whose position is moved to after the table.
+     */
+    /* package */ static StringTable read(ByteBuffer buf) {
+      int count = buf.getInt();
+      IntBuffer offsets = intSlice(buf, count + 1);
+      int dataLength = offsets.get(count);
+      ByteBuffer data = buf.slice();
+      data.limit(dataLength);
+      buf.position(buf.position() + dataLength);
+      return new StringTable(offsets, data);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the GeoLite CSV files into a {@link GeoIpSnapshot}. Executed at build time.
+ *
+ * <p>
+ * Arguments: the directory containing the GeoLite CSV files and the snapshot file to write. If any of the CSV files is
+ * missing, the compiler fails (and with it the build) instead of leaving an outdated snapshot behind. Next to the
+ * snapshot, a file {@link GeoIpSnapshot#ID_FILE_NAME} containing the SHA-256 of the snapshot is written, see
+ * {@link GeoIpSnapshot#locate()}. An optional third argument specifies the {@link IpRangeIndex.Backend} used to
+ * resolve the source data when merging it for the {@link IpGeoResolver}; use RADIX_TRIE for longest-prefix semantics
+ * on nested ranges. The backend is recorded in the snapshot.
+ *
+ * @author Bastian Gloeckle
+ */
+public class GeoIpSnapshotCompiler {
+  private static final Logger logger = LoggerFactory.getLogger(GeoIpSnapshotCompiler.class);
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3)
+      throw new IllegalArgumentException(
+          "Usage: GeoIpSnapshotCompiler <geoip CSV directory> <snapshot output file> [<backend>]");
+
+    File csvDir = new File(args[0]);
+    File outputFile = new File(args[1]);
+    File idFile = new File(outputFile.getAbsoluteFile().getParentFile(), GeoIpSnapshot.ID_FILE_NAME);
+    IpRangeIndex.Backend backend =
+        (args.length == 3) ? IpRangeIndex.Backend.valueOf(args[2]) : IpRangeIndex.Backend.SORTED_RANGES;
+
+    // never leave a snapshot of old data behind, even if this compilation fails.
+    Files.deleteIfExists(outputFile.toPath());
+    Files.deleteIfExists(idFile.toPath());
+
+    List<String> requiredFiles = Arrays.asList(CommonCrawlDeriveData.GEOLITE_CITY_4,
+        CommonCrawlDeriveData.GEOLITE_CITY_6, CommonCrawlDeriveData.GEOLITE_CITY_DESCRIPTION,
+        CommonCrawlDeriveData.GEOLITE_COUNTRY_4, CommonCrawlDeriveData.GEOLITE_COUNTRY_6,
+        CommonCrawlDeriveData.GEOLITE_COUNTRY_DESCRIPTION, CommonCrawlDeriveData.GEOLITE_ASN_4,
+        CommonCrawlDeriveData.GEOLITE_ASN_6);
+    List<String> missingFiles = new ArrayList<>();
+    for (String requiredFile : requiredFiles)
+      if (!file(csvDir, requiredFile).isFile())
+        missingFiles.add(requiredFile.substring(1));
+    if (!missingFiles.isEmpty())
+      throw new FileNotFoundException("GeoIP files " + missingFiles + " not available in " + csvDir
+          + ", see README.md on how to download them.");
+
+    logger.info("Compiling GeoIP snapshot from {}...", csvDir);
+
+    IpValueResolver cityResolver = new IpValueResolver();
+    try (InputStream ip4 = open(csvDir, CommonCrawlDeriveData.GEOLITE_CITY_4);
+        InputStream ip6 = open(csvDir, CommonCrawlDeriveData.GEOLITE_CITY_6);
+        InputStream description = open(csvDir, CommonCrawlDeriveData.GEOLITE_CITY_DESCRIPTION)) {
+      cityResolver.load(ip4, ip6, description, "city_name");
+    }
+
+    IpValueResolver countryResolver = new IpValueResolver();
+    try (InputStream ip4 = open(csvDir, CommonCrawlDeriveData.GEOLITE_COUNTRY_4);
+        InputStream ip6 = open(csvDir, CommonCrawlDeriveData.GEOLITE_COUNTRY_6);
+        InputStream description = open(csvDir, CommonCrawlDeriveData.GEOLITE_COUNTRY_DESCRIPTION)) {
+      countryResolver.load(ip4, ip6, description, "country_name");
+    }
+
+    IpAsnResolver asnResolver = new IpAsnResolver();
+    try (InputStream ip4 = open(csvDir, CommonCrawlDeriveData.GEOLITE_ASN_4);
+        InputStream ip6 = open(csvDir, CommonCrawlDeriveData.GEOLITE_ASN_6)) {
+      asnResolver.load(ip4, ip6);
+    }
+
+    outputFile.getAbsoluteFile().getParentFile().mkdirs();
+    GeoIpSnapshot.write(outputFile, cityResolver, countryResolver, asnResolver, backend);
+    Files.write(idFile.toPath(), sha256(outputFile).getBytes(StandardCharsets.UTF_8));
+
+    logger.info("GeoIP snapshot written to {} ({} bytes).", outputFile, outputFile.length());
+  }
+
+  private static String sha256(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 not available", e);
+    }
+    try (InputStream is = new FileInputStream(file)) {
+      byte[] buf = new byte[64 * 1024];
+      int read;
+      while ((read = is.read(buf)) != -1)
+        digest.update(buf, 0, read);
+    }
+    StringBuilder res = new StringBuilder();
+    for (byte b : digest.digest())
+      res.append(String.format("%02x", b));
+    return res.toString();
+  }
+
+  private static File file(File dir, String resourceName) {
+    // resource names start with "/".
+    return new File(dir, resourceName.substring(1));
+  }
+
+  private static InputStream open(File dir, String resourceName) throws IOException {
+    return new FileInputStream(file(dir, resourceName));
+  }
+}
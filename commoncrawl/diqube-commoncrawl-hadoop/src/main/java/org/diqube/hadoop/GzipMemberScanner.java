@@ -0,0 +1,122 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Finds the starts of gzip members in a .wat.gz file, which consists of concatenated gzip members, each containing a
+ * single WARC record.
+ * 
+ * <p>
+ * This is used to split a single file across multiple mappers, see {@link WatInputFormat}: A split starts at the first
+ * member that starts inside the split and ends where the next split starts. All splits of a file scan for their
+ * boundaries the same way, so each member is processed exactly once.
+ * 
+ * <p>
+ * The bytes of the gzip header (magic, compression method and flags) might occur inside the compressed data, too.
+ * Candidates are therefore validated by inflating the start of the member, which needs to be the start of a WARC
+ * record.
+ * 
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Bastian Gloeckle
+ */
+public class GzipMemberScanner {
+  /* package */ static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte[] WARC_MAGIC = "WARC/".getBytes(Charset.forName("US-ASCII"));
+  /** Number of bytes of the gzip header that are checked by {@link #isHeaderCandidate(byte[], int)}. */
+  /* package */ static final int HEADER_CHECK_LENGTH = 4;
+
+  private final FSDataInputStream in;
+  private final long fileLength;
+  private final byte[] buf = new byte[BUFFER_SIZE];
+
+  /**
+   * @param in
+   *          The stream of the file. Its position is changed when scanning.
+   */
+  public GzipMemberScanner(FSDataInputStream in, long fileLength) {
+    this.in = in;
+    this.fileLength = fileLength;
+  }
+
+  /**
+   * @return The offset of the first gzip member starting at or after the given position that contains a WARC record,
+   *         or the length of the file if there is none.
+   */
+  public long findMemberStart(long pos) throws IOException {
+    while (pos < fileLength) {
+      int len = (int) Math.min(buf.length, fileLength - pos);
+      in.readFully(pos, buf, 0, len);
+
+      int limit = len - HEADER_CHECK_LENGTH + 1;
+      for (int i = 0; i < limit; i++) {
+        if (isHeaderCandidate(buf, i) && isWarcMember(pos + i))
+          return pos + i;
+      }
+
+      if (pos + len >= fileLength)
+        break;
+      // the header of a member might span two buffers.
+      pos += Math.max(limit, 1);
+    }
+    return fileLength;
+  }
+
+  /**
+   * @return <code>true</code> if the given position contains the start of a gzip header, i.e. the magic, compression
+   *         method "deflate" and no reserved flags. {@link #HEADER_CHECK_LENGTH} bytes need to be available.
+   */
+  /* package */ static boolean isHeaderCandidate(byte[] buf, int pos) {
+    return buf[pos] == (byte) 0x1f && buf[pos + 1] == (byte) 0x8b && buf[pos + 2] == 8 && (buf[pos + 3] & 0xe0) == 0;
+  }
+
+  /**
+   * @return <code>true</code> if a gzip member starts at the given position which contains a WARC record.
+   */
+  private boolean isWarcMember(long pos) throws IOException {
+    in.seek(pos);
+    // do not close the stream of the file, but release the Inflater.
+    FilterInputStream nonClosing = new FilterInputStream(in) {
+      @Override
+      public void close() throws IOException {
+      }
+    };
+    byte[] start = new byte[WARC_MAGIC.length];
+    try (GZIPInputStream gzip = new GZIPInputStream(nonClosing)) {
+      ByteStreams.readFully(gzip, start);
+    } catch (IOException e) {
+      // invalid gzip header or data, or end of file.
+      return false;
+    }
+    return Arrays.equals(start, WARC_MAGIC);
+  }
+}
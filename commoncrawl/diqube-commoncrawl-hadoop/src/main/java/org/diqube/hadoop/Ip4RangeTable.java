@@ -0,0 +1,231 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Immutable table of IPv4 ranges, each of which maps to an int value.
+ *
+ * <p>
+ * The ranges are held in sorted primitive arrays, a lookup is a simple binary search which does not allocate any
+ * objects. The arrays are either on the heap (see {@link Builder}) or in a memory mapped {@link GeoIpSnapshot}.
+ *
+ * <p>
+ * IPv4 addresses are handled as (unsigned) ints, i.e. 255.255.255.255 is -1. Internally the sign bit is flipped, so
+ * signed comparisons can be used in the binary search.
+ *
+ * @author Bastian Gloeckle
+ */
+public class Ip4RangeTable {
+  private final IntBuffer starts;
+  private final IntBuffer ends;
+  private final IntBuffer values;
+
+  private Ip4RangeTable(IntBuffer starts, IntBuffer ends, IntBuffer values) {
+    this.starts = starts;
+    this.ends = ends;
+    this.values = values;
+  }
+
+  /**
+   * @return the index of the range that contains the given IP or -1 if there is no such range.
+   */
+  public int indexOf(int ip) {
+    int key = ip ^ Integer.MIN_VALUE;
+
+    // find the last range whose start is <= key.
+    int low = 0;
+    int high = starts.limit() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (starts.get(mid) <= key)
+        low = mid + 1;
+      else
+        high = mid - 1;
+    }
+
+    if (high < 0 || ends.get(high) < key)
+      return -1;
+    return high;
+  }
+
+  /**
+   * Find the last range whose start is <= the given IP, searching only from the given index on. This is used to walk
+   * the table for ascending IPs: The search is exponential from fromIdx, so IPs that are close to each other are found
+   * after only a few steps.
+   * 
+   * @return The index of the range or fromIdx - 1 if there is no such range at or after fromIdx. Use
+   *         {@link #contains(int, int)} to check if the IP is actually inside that range.
+   */
+  /* package */ int floorIndex(int ip, int fromIdx) {
+    int key = ip ^ Integer.MIN_VALUE;
+    int size = starts.limit();
+
+    int low = fromIdx;
+    int high = fromIdx;
+    int step = 1;
+    while (high < size && starts.get(high) <= key) {
+      low = high + 1;
+      high += step;
+      step <<= 1;
+    }
+
+    high = Math.min(high, size - 1);
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (starts.get(mid) <= key)
+        low = mid + 1;
+      else
+        high = mid - 1;
+    }
+    return high;
+  }
+
+  /**
+   * @return <code>true</code> if the range at the given index contains the IP. Returns <code>false</code> for index -1.
+   */
+  /* package */ boolean contains(int idx, int ip) {
+    int key = ip ^ Integer.MIN_VALUE;
+    return idx >= 0 && starts.get(idx) <= key && ends.get(idx) >= key;
+  }
+
+  /**
+   * @return The value of the range at the given index, see {@link #indexOf(int)}.
+   */
+  public int getValue(int idx) {
+    return values.get(idx);
+  }
+
+  /**
+   * @return The first IP (as unsigned int) of the range at the given index.
+   */
+  public int getStart(int idx) {
+    return starts.get(idx) ^ Integer.MIN_VALUE;
+  }
+
+  /**
+   * @return The last IP (as unsigned int) of the range at the given index.
+   */
+  public int getEnd(int idx) {
+    return ends.get(idx) ^ Integer.MIN_VALUE;
+  }
+
+  public int size() {
+    return starts.limit();
+  }
+
+  /**
+   * Write this table in the format of a {@link GeoIpSnapshot}.
+   * 
+   * @param valueMapping
+   *          Maps the values of this table to the values that should be written.
+   */
+  /* package */ void writeTo(DataOutput out, IntUnaryOperator valueMapping) throws IOException {
+    int size = size();
+    out.writeInt(size);
+    for (int i = 0; i < size; i++)
+      out.writeInt(starts.get(i));
+    for (int i = 0; i < size; i++)
+      out.writeInt(ends.get(i));
+    for (int i = 0; i < size; i++)
+      out.writeInt(valueMapping.applyAsInt(values.get(i)));
+  }
+
+  /**
+   * Read a table that was written by {@link #writeTo(DataOutput, IntUnaryOperator)}. The returned table is backed by
+   * the given buffer, whose position is moved to after the table.
+   */
+  /* package */ static Ip4RangeTable readFrom(ByteBuffer buf) {
+    int size = buf.getInt();
+    IntBuffer starts = GeoIpSnapshot.intSlice(buf, size);
+    IntBuffer ends = GeoIpSnapshot.intSlice(buf, size);
+    IntBuffer values = GeoIpSnapshot.intSlice(buf, size);
+    return new Ip4RangeTable(starts, ends, values);
+  }
+
+  /**
+   * Collects ranges and builds a {@link Ip4RangeTable}.
+   *
+   * <p>
+   * If the same range is added multiple times, the value that was added last wins.
+   */
+  public static class Builder {
+    private int[] starts = new int[1024];
+    private int[] ends = new int[1024];
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    public Builder add(int startIp, int endIp, int value) {
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        ends = Arrays.copyOf(ends, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      starts[size] = startIp ^ Integer.MIN_VALUE;
+      ends[size] = endIp ^ Integer.MIN_VALUE;
+      values[size] = value;
+      size++;
+      return this;
+    }
+
+    public Ip4RangeTable build() {
+      // sort indices by (start, end, insertion order).
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++)
+        order[i] = i;
+      Arrays.sort(order, (a, b) -> {
+        int res = Integer.compare(starts[a], starts[b]);
+        if (res != 0)
+          return res;
+        res = Integer.compare(ends[a], ends[b]);
+        if (res != 0)
+          return res;
+        return Integer.compare(a, b);
+      });
+
+      int[] resStarts = new int[size];
+      int[] resEnds = new int[size];
+      int[] resValues = new int[size];
+      int resSize = 0;
+      for (int i = 0; i < size; i++) {
+        int idx = order[i];
+        if (resSize > 0 && resStarts[resSize - 1] == starts[idx] && resEnds[resSize - 1] == ends[idx]) {
+          // same range again, later value wins.
+          resValues[resSize - 1] = values[idx];
+          continue;
+        }
+        resStarts[resSize] = starts[idx];
+        resEnds[resSize] = ends[idx];
+        resValues[resSize] = values[idx];
+        resSize++;
+      }
+
+      return new Ip4RangeTable(IntBuffer.wrap(Arrays.copyOf(resStarts, resSize)),
+          IntBuffer.wrap(Arrays.copyOf(resEnds, resSize)), IntBuffer.wrap(Arrays.copyOf(resValues, resSize)));
+    }
+  }
+}
@@ -0,0 +1,284 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Immutable table of IPv6 ranges, each of which maps to an int value.
+ *
+ * <p>
+ * This is the 128 bit counterpart of {@link Ip4RangeTable}: Each IP is represented by two longs ("hi" and "lo", see
+ * {@link IpSubnet}). Internally the sign bits are flipped, so signed comparisons can be used in the binary search.
+ *
+ * @author Bastian Gloeckle
+ */
+public class Ip6RangeTable {
+  private final LongBuffer startHis;
+  private final LongBuffer startLos;
+  private final LongBuffer endHis;
+  private final LongBuffer endLos;
+  private final IntBuffer values;
+
+  private Ip6RangeTable(LongBuffer startHis, LongBuffer startLos, LongBuffer endHis, LongBuffer endLos,
+      IntBuffer values) {
+    this.startHis = startHis;
+    this.startLos = startLos;
+    this.endHis = endHis;
+    this.endLos = endLos;
+    this.values = values;
+  }
+
+  /**
+   * @return the index of the range that contains the given IP or -1 if there is no such range.
+   */
+  public int indexOf(long ipHi, long ipLo) {
+    long keyHi = ipHi ^ Long.MIN_VALUE;
+    long keyLo = ipLo ^ Long.MIN_VALUE;
+
+    // find the last range whose start is <= key.
+    int low = 0;
+    int high = startHis.limit() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long startHi = startHis.get(mid);
+      if (startHi < keyHi || (startHi == keyHi && startLos.get(mid) <= keyLo))
+        low = mid + 1;
+      else
+        high = mid - 1;
+    }
+
+    if (high < 0)
+      return -1;
+    long endHi = endHis.get(high);
+    if (endHi < keyHi || (endHi == keyHi && endLos.get(high) < keyLo))
+      return -1;
+    return high;
+  }
+
+  /**
+   * Find the last range whose start is <= the given IP, searching only from the given index on. This is used to walk
+   * the table for ascending IPs, see {@link Ip4RangeTable#floorIndex(int, int)}.
+   * 
+   * @return The index of the range or fromIdx - 1 if there is no such range at or after fromIdx. Use
+   *         {@link #contains(int, long, long)} to check if the IP is actually inside that range.
+   */
+  /* package */ int floorIndex(long ipHi, long ipLo, int fromIdx) {
+    long keyHi = ipHi ^ Long.MIN_VALUE;
+    long keyLo = ipLo ^ Long.MIN_VALUE;
+    int size = startHis.limit();
+
+    int low = fromIdx;
+    int high = fromIdx;
+    int step = 1;
+    while (high < size && startLessOrEqual(high, keyHi, keyLo)) {
+      low = high + 1;
+      high += step;
+      step <<= 1;
+    }
+
+    high = Math.min(high, size - 1);
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (startLessOrEqual(mid, keyHi, keyLo))
+        low = mid + 1;
+      else
+        high = mid - 1;
+    }
+    return high;
+  }
+
+  private boolean startLessOrEqual(int idx, long keyHi, long keyLo) {
+    long startHi = startHis.get(idx);
+    return startHi < keyHi || (startHi == keyHi && startLos.get(idx) <= keyLo);
+  }
+
+  /**
+   * @return <code>true</code> if the range at the given index contains the IP. Returns <code>false</code> for index -1.
+   */
+  /* package */ boolean contains(int idx, long ipHi, long ipLo) {
+    if (idx < 0)
+      return false;
+    long keyHi = ipHi ^ Long.MIN_VALUE;
+    long keyLo = ipLo ^ Long.MIN_VALUE;
+    long endHi = endHis.get(idx);
+    return startLessOrEqual(idx, keyHi, keyLo) && (endHi > keyHi || (endHi == keyHi && endLos.get(idx) >= keyLo));
+  }
+
+  /**
+   * @return The value of the range at the given index, see {@link #indexOf(long, long)}.
+   */
+  public int getValue(int idx) {
+    return values.get(idx);
+  }
+
+  /**
+   * @return Upper 64 bits of the first IP of the range at the given index.
+   */
+  public long getStartHi(int idx) {
+    return startHis.get(idx) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * @return Lower 64 bits of the first IP of the range at the given index.
+   */
+  public long getStartLo(int idx) {
+    return startLos.get(idx) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * @return Upper 64 bits of the last IP of the range at the given index.
+   */
+  public long getEndHi(int idx) {
+    return endHis.get(idx) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * @return Lower 64 bits of the last IP of the range at the given index.
+   */
+  public long getEndLo(int idx) {
+    return endLos.get(idx) ^ Long.MIN_VALUE;
+  }
+
+  public int size() {
+    return startHis.limit();
+  }
+
+  /**
+   * Write this table in the format of a {@link GeoIpSnapshot}.
+   * 
+   * @param valueMapping
+   *          Maps the values of this table to the values that should be written.
+   */
+  /* package */ void writeTo(DataOutput out, IntUnaryOperator valueMapping) throws IOException {
+    int size = size();
+    out.writeInt(size);
+    for (LongBuffer buf : Arrays.asList(startHis, startLos, endHis, endLos))
+      for (int i = 0; i < size; i++)
+        out.writeLong(buf.get(i));
+    for (int i = 0; i < size; i++)
+      out.writeInt(valueMapping.applyAsInt(values.get(i)));
+  }
+
+  /**
+   * Read a table that was written by {@link #writeTo(DataOutput, IntUnaryOperator)}. The returned table is backed by
+   * the given buffer, whose position is moved to after the table.
+   */
+  /* package */ static Ip6RangeTable readFrom(ByteBuffer buf) {
+    int size = buf.getInt();
+    LongBuffer startHis = GeoIpSnapshot.longSlice(buf, size);
+    LongBuffer startLos = GeoIpSnapshot.longSlice(buf, size);
+    LongBuffer endHis = GeoIpSnapshot.longSlice(buf, size);
+    LongBuffer endLos = GeoIpSnapshot.longSlice(buf, size);
+    IntBuffer values = GeoIpSnapshot.intSlice(buf, size);
+    return new Ip6RangeTable(startHis, startLos, endHis, endLos, values);
+  }
+
+  /**
+   * Collects ranges and builds a {@link Ip6RangeTable}.
+   *
+   * <p>
+   * If the same range is added multiple times, the value that was added last wins.
+   */
+  public static class Builder {
+    private long[] startHis = new long[1024];
+    private long[] startLos = new long[1024];
+    private long[] endHis = new long[1024];
+    private long[] endLos = new long[1024];
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    public Builder add(long startHi, long startLo, long endHi, long endLo, int value) {
+      if (size == startHis.length) {
+        startHis = Arrays.copyOf(startHis, size * 2);
+        startLos = Arrays.copyOf(startLos, size * 2);
+        endHis = Arrays.copyOf(endHis, size * 2);
+        endLos = Arrays.copyOf(endLos, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      startHis[size] = startHi ^ Long.MIN_VALUE;
+      startLos[size] = startLo ^ Long.MIN_VALUE;
+      endHis[size] = endHi ^ Long.MIN_VALUE;
+      endLos[size] = endLo ^ Long.MIN_VALUE;
+      values[size] = value;
+      size++;
+      return this;
+    }
+
+    public Builder add(IpSubnet subnet, int value) {
+      return add(subnet.getStartHi(), subnet.getStartLo(), subnet.getEndHi(), subnet.getEndLo(), value);
+    }
+
+    public Ip6RangeTable build() {
+      // sort indices by (start, end, insertion order).
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++)
+        order[i] = i;
+      Arrays.sort(order, (a, b) -> {
+        int res = Long.compare(startHis[a], startHis[b]);
+        if (res != 0)
+          return res;
+        res = Long.compare(startLos[a], startLos[b]);
+        if (res != 0)
+          return res;
+        res = Long.compare(endHis[a], endHis[b]);
+        if (res != 0)
+          return res;
+        res = Long.compare(endLos[a], endLos[b]);
+        if (res != 0)
+          return res;
+        return Integer.compare(a, b);
+      });
+
+      long[] resStartHis = new long[size];
+      long[] resStartLos = new long[size];
+      long[] resEndHis = new long[size];
+      long[] resEndLos = new long[size];
+      int[] resValues = new int[size];
+      int resSize = 0;
+      for (int i = 0; i < size; i++) {
+        int idx = order[i];
+        if (resSize > 0 && resStartHis[resSize - 1] == startHis[idx] && resStartLos[resSize - 1] == startLos[idx]
+            && resEndHis[resSize - 1] == endHis[idx] && resEndLos[resSize - 1] == endLos[idx]) {
+          // same range again, later value wins.
+          resValues[resSize - 1] = values[idx];
+          continue;
+        }
+        resStartHis[resSize] = startHis[idx];
+        resStartLos[resSize] = startLos[idx];
+        resEndHis[resSize] = endHis[idx];
+        resEndLos[resSize] = endLos[idx];
+        resValues[resSize] = values[idx];
+        resSize++;
+      }
+
+      return new Ip6RangeTable(LongBuffer.wrap(Arrays.copyOf(resStartHis, resSize)),
+          LongBuffer.wrap(Arrays.copyOf(resStartLos, resSize)), LongBuffer.wrap(Arrays.copyOf(resEndHis, resSize)),
+          LongBuffer.wrap(Arrays.copyOf(resEndLos, resSize)), IntBuffer.wrap(Arrays.copyOf(resValues, resSize)));
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+/**
+ * Mutable holder of a parsed IPv4 or IPv6 address, optionally with a prefix length ("/n").
+ *
+ * <p>
+ * {@link #parse(CharSequence)} parses the textual representation of an address without allocating any objects and
+ * without ever doing a DNS lookup: Only dotted-quad IPv4 addresses and IPv6 addresses according to RFC 4291 (including
+ * "::" compression and embedded IPv4) are accepted, host names are rejected. An instance can therefore be re-used for
+ * parsing many addresses, but it is not thread-safe.
+ *
+ * <p>
+ * Just like {@link java.net.InetAddress}, IPv4-mapped IPv6 addresses (::ffff:a.b.c.d) are returned as IPv4 addresses;
+ * the prefix length is adjusted accordingly.
+ *
+ * <p>
+ * The address is available as 128 bit value in two longs ("hi" and "lo", see {@link IpSubnet}), for IPv4 addresses
+ * additionally as (unsigned) int.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpAddress {
+  private boolean isIpv4;
+  private long hi;
+  private long lo;
+  private int prefixLength;
+
+  /**
+   * Parse the given address.
+   *
+   * @return <code>true</code> if the value is a valid address, in which case this object holds the parsed value.
+   *         <code>false</code> otherwise, in which case the state of this object is undefined.
+   */
+  public boolean parse(CharSequence value) {
+    return parse(value, 0, value.length());
+  }
+
+  /**
+   * Parse the address in the given range of the {@link CharSequence}, see {@link #parse(CharSequence)}.
+   */
+  public boolean parse(CharSequence value, int from, int to) {
+    if (from < to && value.charAt(from) == '[' && value.charAt(to - 1) == ']') {
+      from++;
+      to--;
+    }
+
+    int slashPos = -1;
+    boolean containsColon = false;
+    for (int i = from; i < to; i++) {
+      char c = value.charAt(i);
+      if (c == '/') {
+        slashPos = i;
+        break;
+      }
+      if (c == ':')
+        containsColon = true;
+    }
+
+    int addrTo = (slashPos == -1) ? to : slashPos;
+    boolean valid = (containsColon) ? parseIpv6(value, from, addrTo) : parseIpv4(value, from, addrTo);
+    if (!valid)
+      return false;
+
+    int maxPrefixLength = (containsColon) ? 128 : 32;
+    if (slashPos == -1)
+      prefixLength = maxPrefixLength;
+    else {
+      prefixLength = parseDecimal(value, slashPos + 1, to, 3);
+      if (prefixLength < 0 || prefixLength > maxPrefixLength)
+        return false;
+    }
+
+    isIpv4 = !containsColon;
+    if (containsColon && hi == 0L && (lo >>> 32) == 0xffffL) {
+      // IPv4-mapped IPv6 address.
+      isIpv4 = true;
+      lo &= 0xffffffffL;
+      prefixLength = Math.max(0, prefixLength - 96);
+    }
+
+    return true;
+  }
+
+  private boolean parseIpv4(CharSequence value, int from, int to) {
+    long res = 0;
+    int partStart = from;
+    for (int part = 0; part < 4; part++) {
+      int partEnd = partStart;
+      while (partEnd < to && value.charAt(partEnd) != '.')
+        partEnd++;
+      if ((part < 3) == (partEnd == to))
+        // not exactly 4 parts.
+        return false;
+      int partValue = parseDecimal(value, partStart, partEnd, 3);
+      if (partValue < 0 || partValue > 255)
+        return false;
+      res = (res << 8) | partValue;
+      partStart = partEnd + 1;
+    }
+    hi = 0L;
+    lo = res;
+    return true;
+  }
+
+  private boolean parseIpv6(CharSequence value, int from, int to) {
+    long resHi = 0L;
+    long resLo = 0L;
+    int numGroups = 0;
+    int compressionGroupIdx = -1;
+
+    int pos = from;
+    if (to - from >= 2 && value.charAt(from) == ':' && value.charAt(from + 1) == ':') {
+      compressionGroupIdx = 0;
+      pos += 2;
+    } else if (from < to && value.charAt(from) == ':')
+      // single leading colon.
+      return false;
+
+    while (pos < to) {
+      int groupEnd = pos;
+      boolean isIpv4Group = false;
+      while (groupEnd < to && value.charAt(groupEnd) != ':') {
+        if (value.charAt(groupEnd) == '.')
+          isIpv4Group = true;
+        groupEnd++;
+      }
+
+      if (isIpv4Group) {
+        // embedded IPv4 in last two groups.
+        if (groupEnd != to || numGroups > 6)
+          return false;
+        if (!parseIpv4(value, pos, groupEnd))
+          return false;
+        long ip4 = lo;
+        resHi = (resHi << 32) | (resLo >>> 32);
+        resLo = (resLo << 32) | ip4;
+        numGroups += 2;
+        pos = to;
+        break;
+      }
+
+      if (groupEnd == pos || groupEnd - pos > 4 || numGroups == 8)
+        return false;
+      long group = 0;
+      for (int i = pos; i < groupEnd; i++) {
+        int digit = hexDigit(value.charAt(i));
+        if (digit < 0)
+          return false;
+        group = (group << 4) | digit;
+      }
+      resHi = (resHi << 16) | (resLo >>> 48);
+      resLo = (resLo << 16) | group;
+      numGroups++;
+
+      if (groupEnd == to)
+        pos = to;
+      else if (groupEnd + 1 < to && value.charAt(groupEnd + 1) == ':') {
+        if (compressionGroupIdx != -1)
+          return false;
+        compressionGroupIdx = numGroups;
+        pos = groupEnd + 2;
+      } else if (groupEnd + 1 == to)
+        // trailing single colon.
+        return false;
+      else
+        pos = groupEnd + 1;
+    }
+
+    if (compressionGroupIdx == -1) {
+      if (numGroups != 8)
+        return false;
+    } else {
+      if (numGroups > 7)
+        return false;
+      // shift the groups after the "::" to the end of the address, filling with zeros.
+      int shiftBits = (8 - numGroups) * 16;
+      int trailingBits = (numGroups - compressionGroupIdx) * 16;
+      long trailingMaskHi = IpSubnet.hostMaskHi(trailingBits);
+      long trailingMaskLo = IpSubnet.hostMaskLo(trailingBits);
+      long leadingHi = resHi & ~trailingMaskHi;
+      long leadingLo = resLo & ~trailingMaskLo;
+      long trailingHi = resHi & trailingMaskHi;
+      long trailingLo = resLo & trailingMaskLo;
+      // leading groups move up by shiftBits, trailing groups stay.
+      long shiftedHi;
+      long shiftedLo;
+      if (shiftBits >= 64) {
+        shiftedHi = (shiftBits == 128) ? 0L : leadingLo << (shiftBits - 64);
+        shiftedLo = 0L;
+      } else {
+        shiftedHi = (leadingHi << shiftBits) | (leadingLo >>> (64 - shiftBits));
+        shiftedLo = leadingLo << shiftBits;
+      }
+      resHi = shiftedHi | trailingHi;
+      resLo = shiftedLo | trailingLo;
+    }
+
+    hi = resHi;
+    lo = resLo;
+    return true;
+  }
+
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9')
+      return c - '0';
+    if (c >= 'a' && c <= 'f')
+      return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F')
+      return c - 'A' + 10;
+    return -1;
+  }
+
+  /**
+   * @return the non-negative decimal value or -1 if the range is empty, too long or contains a non-digit.
+   */
+  private static int parseDecimal(CharSequence value, int from, int to, int maxDigits) {
+    if (from >= to || to - from > maxDigits)
+      return -1;
+    int res = 0;
+    for (int i = from; i < to; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      res = res * 10 + (c - '0');
+    }
+    return res;
+  }
+
+  public boolean isIpv4() {
+    return isIpv4;
+  }
+
+  /**
+   * @return The IPv4 address as (unsigned) int. Only valid if {@link #isIpv4()}.
+   */
+  public int getIp4() {
+    return (int) lo;
+  }
+
+  /**
+   * @return Upper 64 bits of the address.
+   */
+  public long getHi() {
+    return hi;
+  }
+
+  /**
+   * @return Lower 64 bits of the address.
+   */
+  public long getLo() {
+    return lo;
+  }
+
+  /**
+   * @return The prefix length that was specified after a "/" or the full address width if none was specified.
+   */
+  public int getPrefixLength() {
+    return prefixLength;
+  }
+}
@@ -21,27 +21,53 @@
 package org.diqube.hadoop;
 
 import java.io.BufferedReader;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
 
 import com.opencsv.CSVParser;
 
 /**
  * Resolves IPs to ASNs (Autonomous System Numbers) using GeoLite CSV data.
+ * 
+ * <p>
+ * Lookups are executed on an {@link IpRangeIndex} whose implementation can be chosen using
+ * {@link #setBackend(IpRangeIndex.Backend)}.
+ * 
+ * <p>
+ * Instead of {@link #load(InputStream, InputStream) loading} the CSV data, a resolver can be read from a
+ * {@link GeoIpSnapshot}.
  *
  * @author Bastian Gloeckle
  */
 public class IpAsnResolver {
-  private NavigableMap<IpSubnet, String> asns = new TreeMap<>();
+  /** Holder for parsing IPs in {@link #resolveAsn(String)}, one per thread. */
+  private static final ThreadLocal<IpAddress> PARSED_IP = ThreadLocal.withInitial(IpAddress::new);
+
+  private Ip4RangeTable ip4Table = new Ip4RangeTable.Builder().build();
+  private Ip6RangeTable ip6Table = new Ip6RangeTable.Builder().build();
+  private IpRangeIndex.Backend backend = IpRangeIndex.Backend.SORTED_RANGES;
+  private IpRangeIndex index = backend.create(ip4Table, ip6Table);
+  /** ASN strings, indexed by the values of the range tables. */
+  private List<String> asns = new ArrayList<>();
+  /** Resolves the values of the range tables to the final string. */
+  private IntFunction<String> asnLookup = asns::get;
 
   public void load(InputStream ip4asn, InputStream ip6asn) throws IOException {
+    asns.clear();
+    asnLookup = asns::get;
+    Map<String, Integer> asnIds = new HashMap<>();
+    Ip4RangeTable.Builder ip4TableBuilder = new Ip4RangeTable.Builder();
+    Ip6RangeTable.Builder ip6TableBuilder = new Ip6RangeTable.Builder();
+
     CSVParser parser = new CSVParser();
     BufferedReader ipv4Reader = new BufferedReader(new InputStreamReader(ip4asn, Charset.forName("UTF-8")));
     String read = ipv4Reader.readLine();
@@ -52,32 +78,157 @@ public class IpAsnResolver {
       long numTo = Long.parseLong(csvParts[1]);
       String asn = csvParts[2];
 
-      IpSubnet subnet = new IpSubnet(numberTo4Addr(numFrom), numberTo4Addr(numTo));
-
-      asns.put(subnet, asn);
+      // numbers are the IPv4 addresses as unsigned 32 bit values, as by documentation of MaxMind.
+      ip4TableBuilder.add((int) numFrom, (int) numTo, asnId(asnIds, asn));
 
       read = ipv4Reader.readLine();
     }
 
+    IpAddress startIp = new IpAddress();
+    IpAddress endIp = new IpAddress();
+    BufferedReader ipv6Reader = new BufferedReader(new InputStreamReader(ip6asn, Charset.forName("UTF-8")));
+    read = ipv6Reader.readLine();
+    while (read != null) {
+      String[] csvParts = parser.parseLine(read);
+
+      // "AS... name","first IP","last IP",prefix length
+      String asn = csvParts[0];
+      if (!startIp.parse(csvParts[1]) || !endIp.parse(csvParts[2]))
+        throw new IOException("Invalid IPv6 ASN line: " + read);
+
+      if (startIp.isIpv4() && endIp.isIpv4())
+        // IPv4-mapped addresses are resolved as IPv4, see IpAddress.
+        ip4TableBuilder.add(startIp.getIp4(), endIp.getIp4(), asnId(asnIds, asn));
+      else
+        ip6TableBuilder.add(startIp.getHi(), startIp.getLo(), endIp.getHi(), endIp.getLo(), asnId(asnIds, asn));
+
+      read = ipv6Reader.readLine();
+    }
+
+    ip4Table = ip4TableBuilder.build();
+    ip6Table = ip6TableBuilder.build();
+    index = backend.create(ip4Table, ip6Table);
+  }
+
+  private int asnId(Map<String, Integer> asnIds, String asn) {
+    return asnIds.computeIfAbsent(asn, a -> {
+      asns.add(a);
+      return asns.size() - 1;
+    });
   }
 
-  private InetAddress numberTo4Addr(long number) throws UnknownHostException {
-    // as by documentation of MaxMind.
-    byte b1 = (byte) ((number / 16777216) % 256);
-    byte b2 = (byte) ((number / 65536) % 256);
-    byte b3 = (byte) ((number / 256) % 256);
-    byte b4 = (byte) ((number) % 256);
-    return InetAddress.getByAddress(new byte[] { b1, b2, b3, b4 });
+  /**
+   * Choose the implementation of the index used for lookups. Defaults to {@link IpRangeIndex.Backend#SORTED_RANGES}.
+   */
+  public void setBackend(IpRangeIndex.Backend backend) {
+    this.backend = backend;
+    index = backend.create(ip4Table, ip6Table);
   }
 
+  /**
+   * Resolve an IP given in textual form.
+   * 
+   * @return The ASN or <code>null</code> if the IP is invalid or no ASN is available for the IP.
+   */
   public String resolveAsn(String ip) {
-    IpSubnet ipSubnet = new IpSubnet(ip);
+    IpAddress addr = PARSED_IP.get();
+    if (!addr.parse(ip))
+      return null;
 
-    Entry<IpSubnet, String> asnEntry = asns.floorEntry(ipSubnet);
+    return resolveAsn(addr);
+  }
 
-    if (asnEntry == null || !asnEntry.getKey().overlap(ipSubnet))
-      return null;
+  /**
+   * Resolve an IP that has been parsed already.
+   * 
+   * @return The ASN or <code>null</code> if no ASN is available for the IP.
+   */
+  public String resolveAsn(IpAddress ip) {
+    if (ip.isIpv4())
+      return resolveAsn4(ip.getIp4());
+
+    return resolveAsn6(ip.getHi(), ip.getLo());
+  }
+
+  /**
+   * Resolve a batch of IPs that have been parsed already, see
+   * {@link IpRangeIndex#lookupBatch(IpAddress[], int, int[])}.
+   * 
+   * @param res
+   *          Receives the ASN (or <code>null</code>) of each of the first count IPs at the same index.
+   */
+  public void resolveAsnBatch(IpAddress[] ips, int count, String[] res) {
+    int[] values = new int[count];
+    index.lookupBatch(ips, count, values);
+    for (int i = 0; i < count; i++)
+      res[i] = lookupValue(values[i]);
+  }
+
+  /**
+   * Resolve an IPv4 address which is given as (unsigned) int.
+   * 
+   * @return The ASN or <code>null</code> if no ASN is available for the IP.
+   */
+  public String resolveAsn4(int ip) {
+    return lookupValue(index.lookup4(ip));
+  }
+
+  /**
+   * Resolve an IPv6 address which is given as upper and lower 64 bits.
+   * 
+   * @return The ASN or <code>null</code> if no ASN is available for the IP.
+   */
+  public String resolveAsn6(long ipHi, long ipLo) {
+    return lookupValue(index.lookup6(ipHi, ipLo));
+  }
+
+  /**
+   * Write the data of this resolver into a {@link GeoIpSnapshot}. Only valid if the data was loaded from CSV.
+   */
+  /* package */ void writeSnapshot(DataOutput out) throws IOException {
+    ip4Table.writeTo(out, id -> id);
+    ip6Table.writeTo(out, id -> id);
+    GeoIpSnapshot.StringTable.write(out, asns);
+  }
+
+  /**
+   * Read a resolver from a {@link GeoIpSnapshot}, the resolver will work directly on the given buffer.
+   */
+  /* package */ static IpAsnResolver readSnapshot(ByteBuffer buf) {
+    IpAsnResolver res = new IpAsnResolver();
+    res.ip4Table = Ip4RangeTable.readFrom(buf);
+    res.ip6Table = Ip6RangeTable.readFrom(buf);
+    res.asnLookup = GeoIpSnapshot.StringTable.read(buf);
+    res.index = res.backend.create(res.ip4Table, res.ip6Table);
+    return res;
+  }
+
+  /* package */ Ip4RangeTable getIp4Table() {
+    return ip4Table;
+  }
+
+  /* package */ Ip6RangeTable getIp6Table() {
+    return ip6Table;
+  }
+
+  /**
+   * @return The value (of the range tables) for the given IPv4 address or {@link IpRangeIndex#NO_VALUE}.
+   */
+  /* package */ int lookup4(int ip) {
+    return index.lookup4(ip);
+  }
+
+  /**
+   * @return The value (of the range tables) for the given IPv6 address or {@link IpRangeIndex#NO_VALUE}.
+   */
+  /* package */ int lookup6(long ipHi, long ipLo) {
+    return index.lookup6(ipHi, ipLo);
+  }
 
-    return asnEntry.getValue();
+  /**
+   * @return The string for a value of the range tables, <code>null</code> for {@link IpRangeIndex#NO_VALUE}.
+   */
+  /* package */ String lookupValue(int value) {
+    return (value == IpRangeIndex.NO_VALUE) ? null : asnLookup.apply(value);
   }
 }
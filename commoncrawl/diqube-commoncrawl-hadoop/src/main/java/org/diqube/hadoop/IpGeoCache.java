@@ -0,0 +1,297 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+/**
+ * Bounded cache from a parsed {@link IpAddress} to the entry ID of an {@link IpGeoResolver}.
+ *
+ * <p>
+ * WAT records are clustered by host, so the same IP is resolved many times in a row. The cache is keyed on the parsed
+ * 128 bit address instead of the raw string, so a lookup neither hashes a String nor allocates anything, and different
+ * spellings of the same address share a single cache entry. Additionally {@link #get(String, IpAddress)} remembers the
+ * raw string of the last hit: If the same IP is requested again directly afterwards, not even the parsing is needed.
+ * The entry IDs are cached instead of the resolved strings, as an entry ID already identifies city, country and ASN.
+ *
+ * <p>
+ * All data is held in primitive arrays that are allocated once: The addresses and entry IDs are stored in slots
+ * 0..capacity-1, which are found using an open-addressing hash index (linear probing). The slots are additionally
+ * linked (by index) into a list from the eldest to the youngest one, which defines which slot is evicted next, see
+ * {@link EvictionPolicy}.
+ *
+ * <p>
+ * The number of hits, misses and evictions is counted, see {@link #getHits()} etc. The mapper reports these using the
+ * Hadoop counters of {@link Counter}.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpGeoCache {
+  /** Job configuration key: maximum number of IPs in the cache, 0 disables the cache. */
+  public static final String CONF_CAPACITY = "diqube.commoncrawl.ipcache.capacity";
+  /** Job configuration key: {@link EvictionPolicy} of the cache. */
+  public static final String CONF_POLICY = "diqube.commoncrawl.ipcache.policy";
+
+  public static final int DEFAULT_CAPACITY = 4096;
+  public static final EvictionPolicy DEFAULT_POLICY = EvictionPolicy.LRU;
+
+  /** Returned by {@link #get(IpAddress)} and {@link #get(String, IpAddress)} if the IP is not cached. */
+  public static final int NOT_CACHED = Integer.MIN_VALUE;
+
+  /** Hadoop counters reported by the mapper. */
+  public static enum Counter {
+    HITS, MISSES, EVICTIONS
+  }
+
+  public static enum EvictionPolicy {
+    /** Evict the IP that was not requested for the longest time. */
+    LRU,
+    /** Evict the IP that was added to the cache first. */
+    FIFO
+  }
+
+  /** Bits that mark an IPv4 address in the "lo" key, see {@link #keyLo(IpAddress)}. */
+  private static final long IP4_MAPPED = 0xffffL << 32;
+  private static final int NO_SLOT = -1;
+
+  private final int capacity;
+  private final boolean accessOrder;
+
+  /** Open-addressing index: slot + 1 of the entry at each position, 0 for an empty position. */
+  private final int[] index;
+  private final int indexMask;
+
+  private final long[] keysHi;
+  private final long[] keysLo;
+  private final int[] entries;
+  /** Linked list of the used slots, from {@link #eldest} to {@link #youngest}. */
+  private final int[] prev;
+  private final int[] next;
+  private int eldest = NO_SLOT;
+  private int youngest = NO_SLOT;
+  private int size = 0;
+  /** Raw string and slot of the previous lookup of {@link #get(String, IpAddress)}, if that was a hit. */
+  private String lastHitIp = null;
+  private int lastHitSlot = NO_SLOT;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  public IpGeoCache(int capacity, EvictionPolicy policy) {
+    this.capacity = capacity;
+    accessOrder = policy == EvictionPolicy.LRU;
+    // keep the index at most half full, so probe sequences stay short.
+    int indexLength = Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1;
+    index = new int[indexLength];
+    indexMask = indexLength - 1;
+    keysHi = new long[capacity];
+    keysLo = new long[capacity];
+    entries = new int[capacity];
+    prev = new int[capacity];
+    next = new int[capacity];
+  }
+
+  /**
+   * Look up an IP given in textual form. If it is the same as the IP of the previous call and that was a hit, the IP is
+   * not parsed again.
+   * 
+   * @param parsedIp
+   *          Receives the parsed IP, unless the IP is the same as in the previous call. If the result is
+   *          {@link #NOT_CACHED}, it always holds the parsed IP, which can then be resolved and
+   *          {@link #put(IpAddress, int)}.
+   * @return The cached entry ID of the given IP (which may be -1 if the IP could not be resolved), -1 if the IP is
+   *         invalid or {@link #NOT_CACHED}.
+   */
+  public int get(String ip, IpAddress parsedIp) {
+    if (lastHitSlot != NO_SLOT && ip.equals(lastHitIp)) {
+      hits++;
+      if (accessOrder)
+        makeYoungest(lastHitSlot);
+      return entries[lastHitSlot];
+    }
+
+    lastHitSlot = NO_SLOT;
+    if (!parsedIp.parse(ip))
+      return -1;
+    int slot = lookup(parsedIp);
+    if (slot == NO_SLOT)
+      return NOT_CACHED;
+    lastHitIp = ip;
+    lastHitSlot = slot;
+    return entries[slot];
+  }
+
+  /**
+   * @return The cached entry ID of the given IP (which may be -1 if the IP could not be resolved) or
+   *         {@link #NOT_CACHED}.
+   */
+  public int get(IpAddress ip) {
+    int slot = lookup(ip);
+    return (slot == NO_SLOT) ? NOT_CACHED : entries[slot];
+  }
+
+  public void put(IpAddress ip, int entry) {
+    if (capacity == 0)
+      return;
+
+    long keyHi = ip.getHi();
+    long keyLo = keyLo(ip);
+    int slot = findSlot(keyHi, keyLo);
+    if (slot != NO_SLOT) {
+      entries[slot] = entry;
+      if (accessOrder)
+        makeYoungest(slot);
+      return;
+    }
+
+    if (size < capacity)
+      slot = size++;
+    else {
+      slot = eldest;
+      if (slot == lastHitSlot)
+        lastHitSlot = NO_SLOT;
+      removeFromIndex(slot);
+      unlink(slot);
+      evictions++;
+    }
+
+    keysHi[slot] = keyHi;
+    keysLo[slot] = keyLo;
+    entries[slot] = entry;
+    linkYoungest(slot);
+    int pos = hash(keyHi, keyLo) & indexMask;
+    while (index[pos] != 0)
+      pos = (pos + 1) & indexMask;
+    index[pos] = slot + 1;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return The "lo" part of the key. IPv4 addresses are keyed in their IPv4-mapped form (::ffff:a.b.c.d), which
+   *         {@link IpAddress} never returns for IPv6 addresses. They therefore do not collide with the IPv6 address
+   *         ::a.b.c.d, which is resolved differently.
+   */
+  private static long keyLo(IpAddress ip) {
+    return (ip.isIpv4()) ? IP4_MAPPED | (ip.getIp4() & 0xffffffffL) : ip.getLo();
+  }
+
+  private static int hash(long keyHi, long keyLo) {
+    // murmur3 finalizer, the low bits of addresses of the same network differ only slightly.
+    long h = keyHi * 0x9e3779b97f4a7c15L + keyLo;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+
+  /**
+   * Find the slot of the given IP and count the hit or miss.
+   */
+  private int lookup(IpAddress ip) {
+    int slot = findSlot(ip.getHi(), keyLo(ip));
+    if (slot == NO_SLOT) {
+      misses++;
+      return NO_SLOT;
+    }
+    hits++;
+    if (accessOrder)
+      makeYoungest(slot);
+    return slot;
+  }
+
+  private int findSlot(long keyHi, long keyLo) {
+    int pos = hash(keyHi, keyLo) & indexMask;
+    while (true) {
+      int slot = index[pos] - 1;
+      if (slot == NO_SLOT || (keysLo[slot] == keyLo && keysHi[slot] == keyHi))
+        return slot;
+      pos = (pos + 1) & indexMask;
+    }
+  }
+
+  /**
+   * Remove the given slot from the {@link #index}. The following entries of the probe sequence are moved backwards, so
+   * no "deleted" markers are needed.
+   */
+  private void removeFromIndex(int slot) {
+    int gap = hash(keysHi[slot], keysLo[slot]) & indexMask;
+    while (index[gap] != slot + 1)
+      gap = (gap + 1) & indexMask;
+
+    int pos = gap;
+    while (true) {
+      pos = (pos + 1) & indexMask;
+      int other = index[pos] - 1;
+      if (other == NO_SLOT)
+        break;
+      int home = hash(keysHi[other], keysLo[other]) & indexMask;
+      // the entry can fill the gap only if the gap lies on its probe sequence, i.e. between home and pos.
+      if (((pos - home) & indexMask) >= ((pos - gap) & indexMask)) {
+        index[gap] = other + 1;
+        gap = pos;
+      }
+    }
+    index[gap] = 0;
+  }
+
+  private void makeYoungest(int slot) {
+    if (slot != youngest) {
+      unlink(slot);
+      linkYoungest(slot);
+    }
+  }
+
+  private void unlink(int slot) {
+    if (prev[slot] == NO_SLOT)
+      eldest = next[slot];
+    else
+      next[prev[slot]] = next[slot];
+    if (next[slot] == NO_SLOT)
+      youngest = prev[slot];
+    else
+      prev[next[slot]] = prev[slot];
+  }
+
+  private void linkYoungest(int slot) {
+    prev[slot] = youngest;
+    next[slot] = NO_SLOT;
+    if (youngest == NO_SLOT)
+      eldest = slot;
+    else
+      next[youngest] = slot;
+    youngest = slot;
+  }
+}
@@ -0,0 +1,394 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Resolves IPs to city, country and ASN at once.
+ *
+ * <p>
+ * The range tables of a city and a country {@link IpValueResolver} and an {@link IpAsnResolver} are merged into a
+ * single table of non-overlapping intervals, each of which references an "entry" holding all three values. A single
+ * lookup therefore provides all three values, the result is the same as when querying the three resolvers separately.
+ *
+ * <p>
+ * Usage: {@link #resolve(IpAddress)} returns the entry ID, whose values can be fetched using {@link #getCity(int)},
+ * {@link #getCountry(int)} and {@link #getAsn(int)}. None of these methods allocates objects.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpGeoResolver {
+  private Ip4RangeTable ip4Table;
+  private Ip6RangeTable ip6Table;
+  private IpRangeIndex index;
+  /** {@link IpRangeIndex.Backend} that resolved the source tables when merging, see {@link #getSourceBackend()}. */
+  private IpRangeIndex.Backend sourceBackend;
+  /** String IDs of the values of each entry, -1 for "no value" */
+  private IntBuffer cityIds;
+  private IntBuffer countryIds;
+  private IntBuffer asnIds;
+  private IntFunction<String> strings;
+
+  private IpGeoResolver(IpRangeIndex.Backend sourceBackend, Ip4RangeTable ip4Table, Ip6RangeTable ip6Table,
+      IntBuffer cityIds, IntBuffer countryIds, IntBuffer asnIds, IntFunction<String> strings) {
+    this.sourceBackend = sourceBackend;
+    this.ip4Table = ip4Table;
+    this.ip6Table = ip6Table;
+    // the intervals of the merged tables never overlap, so the binary search is always correct (and the fastest).
+    this.index = IpRangeIndex.Backend.SORTED_RANGES.create(ip4Table, ip6Table);
+    this.cityIds = cityIds;
+    this.countryIds = countryIds;
+    this.asnIds = asnIds;
+    this.strings = strings;
+  }
+
+  /**
+   * @return The ID of the entry for the given IP or -1 if there is none.
+   */
+  public int resolve(IpAddress ip) {
+    if (ip.isIpv4())
+      return index.lookup4(ip.getIp4());
+    return index.lookup6(ip.getHi(), ip.getLo());
+  }
+
+  /**
+   * Resolve a batch of IPs, see {@link IpRangeIndex#lookupBatch(IpAddress[], int, int[])}.
+   * 
+   * @param res
+   *          Receives the entry ID (or -1) of each of the first count IPs at the same index.
+   */
+  public void resolveBatch(IpAddress[] ips, int count, int[] res) {
+    index.lookupBatch(ips, count, res);
+  }
+
+  /**
+   * @return The {@link IpRangeIndex.Backend} that was used to resolve the source tables when this resolver was
+   *         {@link #merge(IpValueResolver, IpValueResolver, IpAsnResolver, IpRangeIndex.Backend) merged}. It defines
+   *         the result for IPs in nested ranges of the source data.
+   */
+  public IpRangeIndex.Backend getSourceBackend() {
+    return sourceBackend;
+  }
+
+  /**
+   * @return City of the given entry or <code>null</code>.
+   */
+  public String getCity(int entry) {
+    return (entry == -1) ? null : strings.apply(cityIds.get(entry));
+  }
+
+  /**
+   * @return Country of the given entry or <code>null</code>.
+   */
+  public String getCountry(int entry) {
+    return (entry == -1) ? null : strings.apply(countryIds.get(entry));
+  }
+
+  /**
+   * @return ID of the country of the given entry or -1. Resolvers that have been created from the same data use the
+   *         same IDs.
+   */
+  public int getCountryId(int entry) {
+    return (entry == -1) ? -1 : countryIds.get(entry);
+  }
+
+  /**
+   * @return ASN of the given entry or <code>null</code>.
+   */
+  public String getAsn(int entry) {
+    return (entry == -1) ? null : strings.apply(asnIds.get(entry));
+  }
+
+  /**
+   * Merge the data of the given resolvers into a new {@link IpGeoResolver}.
+   * 
+   * @param sourceBackend
+   *          Is set on the given resolvers, which are then used to resolve the intervals of the merged tables. With
+   *          {@link IpRangeIndex.Backend#RADIX_TRIE}, IPs in nested ranges of the source data resolve to the most
+   *          specific range.
+   */
+  public static IpGeoResolver merge(IpValueResolver cityResolver, IpValueResolver countryResolver,
+      IpAsnResolver asnResolver, IpRangeIndex.Backend sourceBackend) {
+    cityResolver.setBackend(sourceBackend);
+    countryResolver.setBackend(sourceBackend);
+    asnResolver.setBackend(sourceBackend);
+    Merger merger = new Merger(cityResolver, countryResolver, asnResolver);
+    Ip4RangeTable ip4Table = merger.mergeIp4();
+    Ip6RangeTable ip6Table = merger.mergeIp6();
+    return new IpGeoResolver(sourceBackend, ip4Table, ip6Table, IntBuffer.wrap(merger.entryCityIds.toArray()),
+        IntBuffer.wrap(merger.entryCountryIds.toArray()), IntBuffer.wrap(merger.entryAsnIds.toArray()),
+        id -> (id == -1) ? null : merger.strings.get(id));
+  }
+
+  /**
+   * Write this resolver in the format of a {@link GeoIpSnapshot}.
+   */
+  /* package */ void writeSnapshot(DataOutput out) throws IOException {
+    out.writeInt(sourceBackend.ordinal());
+    ip4Table.writeTo(out, entry -> entry);
+    ip6Table.writeTo(out, entry -> entry);
+    int numEntries = cityIds.limit();
+    out.writeInt(numEntries);
+    for (IntBuffer buf : Arrays.asList(cityIds, countryIds, asnIds))
+      for (int i = 0; i < numEntries; i++)
+        out.writeInt(buf.get(i));
+    List<String> stringList = new ArrayList<>();
+    int numStrings = 1 + Math.max(max(cityIds), Math.max(max(countryIds), max(asnIds)));
+    for (int i = 0; i < numStrings; i++)
+      stringList.add(strings.apply(i));
+    GeoIpSnapshot.StringTable.write(out, stringList);
+  }
+
+  private static int max(IntBuffer buf) {
+    int res = -1;
+    for (int i = 0; i < buf.limit(); i++)
+      res = Math.max(res, buf.get(i));
+    return res;
+  }
+
+  /**
+   * Read a resolver from a {@link GeoIpSnapshot}, the resolver will work directly on the given buffer.
+   */
+  /* package */ static IpGeoResolver readSnapshot(ByteBuffer buf) {
+    IpRangeIndex.Backend sourceBackend = IpRangeIndex.Backend.values()[buf.getInt()];
+    Ip4RangeTable ip4Table = Ip4RangeTable.readFrom(buf);
+    Ip6RangeTable ip6Table = Ip6RangeTable.readFrom(buf);
+    int numEntries = buf.getInt();
+    IntBuffer cityIds = GeoIpSnapshot.intSlice(buf, numEntries);
+    IntBuffer countryIds = GeoIpSnapshot.intSlice(buf, numEntries);
+    IntBuffer asnIds = GeoIpSnapshot.intSlice(buf, numEntries);
+    GeoIpSnapshot.StringTable strings = GeoIpSnapshot.StringTable.read(buf);
+    return new IpGeoResolver(sourceBackend, ip4Table, ip6Table, cityIds, countryIds, asnIds, strings);
+  }
+
+  /**
+   * Merges the tables of the resolvers.
+   *
+   * <p>
+   * All IPs at which the result of any of the source tables might change (= the start of each range and the IP after
+   * the end of each range) are collected. Between two such consecutive IPs the results of all source tables are
+   * constant, so each of these intervals can be resolved by looking up its first IP in the source resolvers (using
+   * their {@link IpRangeIndex.Backend}). Neighboring intervals with the same values are combined.
+   */
+  private static class Merger {
+    private IpValueResolver cityResolver;
+    private IpValueResolver countryResolver;
+    private IpAsnResolver asnResolver;
+
+    private List<String> strings = new ArrayList<>();
+    private Map<String, Integer> stringIds = new HashMap<>();
+    private Map<List<Integer>, Integer> entryIds = new HashMap<>();
+    private IntList entryCityIds = new IntList();
+    private IntList entryCountryIds = new IntList();
+    private IntList entryAsnIds = new IntList();
+
+    Merger(IpValueResolver cityResolver, IpValueResolver countryResolver, IpAsnResolver asnResolver) {
+      this.cityResolver = cityResolver;
+      this.countryResolver = countryResolver;
+      this.asnResolver = asnResolver;
+    }
+
+    Ip4RangeTable mergeIp4() {
+      Ip4RangeTable cityTable = cityResolver.getIp4Table();
+      Ip4RangeTable countryTable = countryResolver.getIp4Table();
+      Ip4RangeTable asnTable = asnResolver.getIp4Table();
+
+      // unsigned IPs in longs.
+      long[] points = new long[2 * (cityTable.size() + countryTable.size() + asnTable.size())];
+      int numPoints = 0;
+      for (Ip4RangeTable table : Arrays.asList(cityTable, countryTable, asnTable)) {
+        for (int i = 0; i < table.size(); i++) {
+          points[numPoints++] = table.getStart(i) & 0xffffffffL;
+          points[numPoints++] = (table.getEnd(i) & 0xffffffffL) + 1;
+        }
+      }
+      Arrays.sort(points, 0, numPoints);
+
+      // unique points, sorted.
+      int numUnique = 0;
+      for (int i = 0; i < numPoints; i++) {
+        if (points[i] > 0xffffffffL)
+          break; // no IP after the end.
+        if (numUnique > 0 && points[numUnique - 1] == points[i])
+          continue;
+        points[numUnique++] = points[i];
+      }
+
+      Ip4RangeTable.Builder res = new Ip4RangeTable.Builder();
+      int curIdx = -1;
+      int curEntry = -1;
+      for (int i = 0; i < numUnique; i++) {
+        int ip = (int) points[i];
+        int entry = entry(stringId(cityResolver.lookupValue(cityResolver.lookup4(ip))),
+            stringId(countryResolver.lookupValue(countryResolver.lookup4(ip))),
+            stringId(asnResolver.lookupValue(asnResolver.lookup4(ip))));
+
+        if (entry == curEntry)
+          // extend current interval.
+          continue;
+
+        if (curEntry != -1)
+          res.add((int) points[curIdx], (int) (points[i] - 1), curEntry);
+        curIdx = i;
+        curEntry = entry;
+      }
+      if (curEntry != -1)
+        res.add((int) points[curIdx], (int) 0xffffffffL, curEntry);
+
+      return res.build();
+    }
+
+    Ip6RangeTable mergeIp6() {
+      Ip6RangeTable cityTable = cityResolver.getIp6Table();
+      Ip6RangeTable countryTable = countryResolver.getIp6Table();
+      Ip6RangeTable asnTable = asnResolver.getIp6Table();
+
+      int maxPoints = 2 * (cityTable.size() + countryTable.size() + asnTable.size());
+      long[] pointHis = new long[maxPoints];
+      long[] pointLos = new long[maxPoints];
+      int numPoints = 0;
+      for (Ip6RangeTable table : Arrays.asList(cityTable, countryTable, asnTable)) {
+        for (int i = 0; i < table.size(); i++) {
+          pointHis[numPoints] = table.getStartHi(i);
+          pointLos[numPoints++] = table.getStartLo(i);
+          long endHi = table.getEndHi(i);
+          long endLo = table.getEndLo(i);
+          if (endHi == -1L && endLo == -1L)
+            continue; // no IP after the end.
+          pointHis[numPoints] = (endLo == -1L) ? endHi + 1 : endHi;
+          pointLos[numPoints++] = endLo + 1;
+        }
+      }
+      Integer[] order = new Integer[numPoints];
+      for (int i = 0; i < numPoints; i++)
+        order[i] = i;
+      Arrays.sort(order, (a, b) -> IpSubnet.compare128(pointHis[a], pointLos[a], pointHis[b], pointLos[b]));
+
+      // unique points, sorted.
+      long[] his = new long[numPoints];
+      long[] los = new long[numPoints];
+      int numUnique = 0;
+      for (int i = 0; i < numPoints; i++) {
+        long hi = pointHis[order[i]];
+        long lo = pointLos[order[i]];
+        if (numUnique > 0 && his[numUnique - 1] == hi && los[numUnique - 1] == lo)
+          continue;
+        his[numUnique] = hi;
+        los[numUnique++] = lo;
+      }
+
+      Ip6RangeTable.Builder res = new Ip6RangeTable.Builder();
+      int curIdx = -1;
+      int curEntry = -1;
+      for (int i = 0; i < numUnique; i++) {
+        int entry = entry(stringId(cityResolver.lookupValue(cityResolver.lookup6(his[i], los[i]))),
+            stringId(countryResolver.lookupValue(countryResolver.lookup6(his[i], los[i]))),
+            stringId(asnResolver.lookupValue(asnResolver.lookup6(his[i], los[i]))));
+
+        if (entry == curEntry)
+          // extend current interval.
+          continue;
+
+        if (curEntry != -1)
+          addIp6(res, his, los, numUnique, curIdx, i, curEntry);
+        curIdx = i;
+        curEntry = entry;
+      }
+      if (curEntry != -1)
+        addIp6(res, his, los, numUnique, curIdx, numUnique, curEntry);
+
+      return res.build();
+    }
+
+    /**
+     * Add interval from point startIdx up to the IP before point endIdx (or the last IP if endIdx is after the last
+     * point).
+     */
+    private void addIp6(Ip6RangeTable.Builder res, long[] his, long[] los, int numPoints, int startIdx, int endIdx,
+        int entry) {
+      long endHi;
+      long endLo;
+      if (endIdx == numPoints) {
+        endHi = -1L;
+        endLo = -1L;
+      } else {
+        endHi = (los[endIdx] == 0L) ? his[endIdx] - 1 : his[endIdx];
+        endLo = los[endIdx] - 1;
+      }
+      res.add(his[startIdx], los[startIdx], endHi, endLo, entry);
+    }
+
+    private int stringId(String value) {
+      if (value == null)
+        return -1;
+      return stringIds.computeIfAbsent(value, v -> {
+        strings.add(v);
+        return strings.size() - 1;
+      });
+    }
+
+    /**
+     * @return ID of the entry with the given string IDs, -1 if there are no values at all.
+     */
+    private int entry(int cityId, int countryId, int asnId) {
+      if (cityId == -1 && countryId == -1 && asnId == -1)
+        return -1;
+      return entryIds.computeIfAbsent(Arrays.asList(cityId, countryId, asnId), k -> {
+        entryCityIds.add(cityId);
+        entryCountryIds.add(countryId);
+        entryAsnIds.add(asnId);
+        return entryCityIds.size() - 1;
+      });
+    }
+  }
+
+  /**
+   * Simple growable list of primitive ints.
+   */
+  private static class IntList {
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    void add(int value) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * {@link IpRangeIndex} based on compressed binary radix tries (Patricia tries) on the bits of the addresses.
+ *
+ * <p>
+ * Each range of the source tables is split into the minimal set of prefixes (= CIDR networks) covering it, which are
+ * then inserted into the trie. A lookup walks down the trie along the bits of the address and returns the value of the
+ * longest matching prefix. Nested ranges are therefore resolved to the most specific range. As each level of the trie
+ * consumes at least one bit, the number of nodes visited by a lookup is bounded by the address width (32 or 128).
+ * Nevertheless, as ranges are split into multiple prefixes, the trie usually has more levels than a binary search on
+ * the ranges and each level is a likely cache miss: On large tables, lookups are slower than the ones of
+ * {@link IpRangeTableIndex}.
+ *
+ * <p>
+ * The trie lives on the heap, each node takes about 32 bytes.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpPrefixTrie implements IpRangeIndex {
+  /** IPv4 addresses are stored in the upper 32 bits of a 128 bit key. */
+  private final Trie ip4Trie;
+  private final Trie ip6Trie;
+
+  private IpPrefixTrie(Trie ip4Trie, Trie ip6Trie) {
+    this.ip4Trie = ip4Trie;
+    this.ip6Trie = ip6Trie;
+  }
+
+  @Override
+  public int lookup4(int ip) {
+    return ip4Trie.lookup(((long) ip) << 32, 0L);
+  }
+
+  @Override
+  public int lookup6(long ipHi, long ipLo) {
+    return ip6Trie.lookup(ipHi, ipLo);
+  }
+
+  /**
+   * Build tries containing all ranges of the given tables.
+   */
+  public static IpPrefixTrie create(Ip4RangeTable ip4Table, Ip6RangeTable ip6Table) {
+    Trie ip4Trie = new Trie();
+    for (int i = 0; i < ip4Table.size(); i++)
+      ip4Trie.insertRange(((long) ip4Table.getStart(i)) << 32, 0L, (((long) ip4Table.getEnd(i)) << 32) | 0xffffffffL,
+          -1L, ip4Table.getValue(i));
+
+    Trie ip6Trie = new Trie();
+    for (int i = 0; i < ip6Table.size(); i++)
+      ip6Trie.insertRange(ip6Table.getStartHi(i), ip6Table.getStartLo(i), ip6Table.getEndHi(i), ip6Table.getEndLo(i),
+          ip6Table.getValue(i));
+
+    return new IpPrefixTrie(ip4Trie, ip6Trie);
+  }
+
+  /**
+   * A Patricia trie on 128 bit keys, the nodes are held in primitive arrays. Node 0 is the root with prefix length 0.
+   */
+  private static class Trie {
+    private long[] prefixHis = new long[1024];
+    private long[] prefixLos = new long[1024];
+    private int[] prefixLengths = new int[1024];
+    private int[] values = new int[1024];
+    private int[] zeroChildren = new int[1024];
+    private int[] oneChildren = new int[1024];
+    private int size = 0;
+
+    Trie() {
+      newNode(0L, 0L, 0, NO_VALUE);
+    }
+
+    int lookup(long hi, long lo) {
+      int res = NO_VALUE;
+      int node = 0;
+      while (node != -1) {
+        int len = prefixLengths[node];
+        if (((hi ^ prefixHis[node]) & networkMaskHi(len)) != 0L || ((lo ^ prefixLos[node]) & networkMaskLo(len)) != 0L)
+          break;
+        if (values[node] != NO_VALUE)
+          res = values[node];
+        if (len == 128)
+          break;
+        node = (bitAt(hi, lo, len) == 0) ? zeroChildren[node] : oneChildren[node];
+      }
+      return res;
+    }
+
+    /**
+     * Insert the range of IPs from start to end (inclusive) by splitting it into prefixes.
+     */
+    void insertRange(long startHi, long startLo, long endHi, long endLo, int value) {
+      while (true) {
+        // find the largest block that starts at "start", is aligned and does not exceed "end".
+        int alignBits = (startLo != 0L) ? Long.numberOfTrailingZeros(startLo)
+            : 64 + ((startHi != 0L) ? Long.numberOfTrailingZeros(startHi) : 64);
+
+        long diffLo = endLo - startLo;
+        long diffHi = endHi - startHi - ((Long.compareUnsigned(endLo, startLo) < 0) ? 1 : 0);
+        int sizeBits;
+        if (diffHi == -1L && diffLo == -1L)
+          sizeBits = 128;
+        else {
+          // floor(log2(diff + 1))
+          long numLo = diffLo + 1;
+          long numHi = diffHi + ((numLo == 0L) ? 1 : 0);
+          sizeBits = (numHi != 0L) ? 127 - Long.numberOfLeadingZeros(numHi) : 63 - Long.numberOfLeadingZeros(numLo);
+        }
+
+        int hostBits = Math.min(alignBits, sizeBits);
+        insert(startHi, startLo, 128 - hostBits, value);
+
+        long blockEndHi = startHi | IpSubnet.hostMaskHi(hostBits);
+        long blockEndLo = startLo | IpSubnet.hostMaskLo(hostBits);
+        if (blockEndHi == endHi && blockEndLo == endLo)
+          return;
+        startLo = blockEndLo + 1;
+        startHi = blockEndHi + ((startLo == 0L) ? 1 : 0);
+      }
+    }
+
+    /**
+     * Insert a prefix. If the same prefix was inserted before, its value is replaced.
+     */
+    void insert(long hi, long lo, int len, int value) {
+      hi &= networkMaskHi(len);
+      lo &= networkMaskLo(len);
+
+      int node = 0;
+      while (true) {
+        if (prefixLengths[node] == len) {
+          values[node] = value;
+          return;
+        }
+
+        int bit = bitAt(hi, lo, prefixLengths[node]);
+        int child = (bit == 0) ? zeroChildren[node] : oneChildren[node];
+        if (child == -1) {
+          setChild(node, bit, newNode(hi, lo, len, value));
+          return;
+        }
+
+        int common = Math.min(Math.min(len, prefixLengths[child]),
+            commonPrefixLength(hi, lo, prefixHis[child], prefixLos[child]));
+        if (common == prefixLengths[child]) {
+          node = child;
+          continue;
+        }
+
+        // split the edge to child at "common".
+        int mid = newNode(hi, lo, common, NO_VALUE);
+        setChild(node, bit, mid);
+        setChild(mid, bitAt(prefixHis[child], prefixLos[child], common), child);
+        if (common == len)
+          values[mid] = value;
+        else
+          setChild(mid, bitAt(hi, lo, common), newNode(hi, lo, len, value));
+        return;
+      }
+    }
+
+    private int newNode(long hi, long lo, int len, int value) {
+      if (size == values.length) {
+        prefixHis = Arrays.copyOf(prefixHis, size * 2);
+        prefixLos = Arrays.copyOf(prefixLos, size * 2);
+        prefixLengths = Arrays.copyOf(prefixLengths, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+        zeroChildren = Arrays.copyOf(zeroChildren, size * 2);
+        oneChildren = Arrays.copyOf(oneChildren, size * 2);
+      }
+      prefixHis[size] = hi & networkMaskHi(len);
+      prefixLos[size] = lo & networkMaskLo(len);
+      prefixLengths[size] = len;
+      values[size] = value;
+      zeroChildren[size] = -1;
+      oneChildren[size] = -1;
+      return size++;
+    }
+
+    private void setChild(int node, int bit, int child) {
+      if (bit == 0)
+        zeroChildren[node] = child;
+      else
+        oneChildren[node] = child;
+    }
+
+    private static int bitAt(long hi, long lo, int pos) {
+      if (pos < 64)
+        return (int) (hi >>> (63 - pos)) & 1;
+      return (int) (lo >>> (127 - pos)) & 1;
+    }
+
+    private static int commonPrefixLength(long aHi, long aLo, long bHi, long bLo) {
+      if (aHi != bHi)
+        return Long.numberOfLeadingZeros(aHi ^ bHi);
+      return 64 + Long.numberOfLeadingZeros(aLo ^ bLo);
+    }
+
+    private static long networkMaskHi(int len) {
+      return ~IpSubnet.hostMaskHi(128 - len);
+    }
+
+    private static long networkMaskLo(int len) {
+      return ~IpSubnet.hostMaskLo(128 - len);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+/**
+ * Index that maps IPs to the int values of the ranges containing them.
+ *
+ * <p>
+ * Instances are created from an {@link Ip4RangeTable} and an {@link Ip6RangeTable} using a {@link Backend}.
+ *
+ * @author Bastian Gloeckle
+ */
+public interface IpRangeIndex {
+  /** Returned by the lookup methods if no range contains the IP. */
+  public static final int NO_VALUE = -1;
+
+  /**
+   * @return The value for the IPv4 address which is given as (unsigned) int or {@link #NO_VALUE}.
+   */
+  public int lookup4(int ip);
+
+  /**
+   * @return The value for the IPv6 address which is given as two longs (see {@link IpSubnet}) or {@link #NO_VALUE}.
+   */
+  public int lookup6(long ipHi, long ipLo);
+
+  /**
+   * Look up a batch of addresses at once. The default implementation looks up each address separately.
+   * 
+   * @param ips
+   *          The addresses, only the first count are looked up.
+   * @param res
+   *          Receives the value (or {@link #NO_VALUE}) of each address at the same index.
+   */
+  public default void lookupBatch(IpAddress[] ips, int count, int[] res) {
+    for (int i = 0; i < count; i++)
+      res[i] = (ips[i].isIpv4()) ? lookup4(ips[i].getIp4()) : lookup6(ips[i].getHi(), ips[i].getLo());
+  }
+
+  /**
+   * Available implementations of {@link IpRangeIndex}.
+   */
+  public static enum Backend {
+    /**
+     * Binary search on the sorted range tables directly, see {@link IpRangeTableIndex}. Needs no additional memory,
+     * but assumes that ranges do not nest.
+     */
+    SORTED_RANGES,
+    /**
+     * Longest-prefix match in a radix trie, see {@link IpPrefixTrie}. Correct for nested ranges, but the trie has more
+     * levels than the binary search and is slower on large tables.
+     */
+    RADIX_TRIE;
+
+    public IpRangeIndex create(Ip4RangeTable ip4Table, Ip6RangeTable ip6Table) {
+      switch (this) {
+      case RADIX_TRIE:
+        return IpPrefixTrie.create(ip4Table, ip6Table);
+      default:
+        return new IpRangeTableIndex(ip4Table, ip6Table);
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * {@link IpRangeIndex} that executes a binary search on an {@link Ip4RangeTable} and an {@link Ip6RangeTable}.
+ *
+ * <p>
+ * If ranges nest, the range with the greatest start IP that is not greater than the searched IP is the only candidate
+ * that is checked.
+ *
+ * <p>
+ * {@link #lookupBatch(IpAddress[], int, int[])} sorts the addresses and resolves them in a single walk over the sorted
+ * tables, which accesses the tables in ascending order instead of doing independent binary searches.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpRangeTableIndex implements IpRangeIndex {
+  private final Ip4RangeTable ip4Table;
+  private final Ip6RangeTable ip6Table;
+
+  public IpRangeTableIndex(Ip4RangeTable ip4Table, Ip6RangeTable ip6Table) {
+    this.ip4Table = ip4Table;
+    this.ip6Table = ip6Table;
+  }
+
+  @Override
+  public int lookup4(int ip) {
+    int idx = ip4Table.indexOf(ip);
+    return (idx == -1) ? NO_VALUE : ip4Table.getValue(idx);
+  }
+
+  @Override
+  public int lookup6(long ipHi, long ipLo) {
+    int idx = ip6Table.indexOf(ipHi, ipLo);
+    return (idx == -1) ? NO_VALUE : ip6Table.getValue(idx);
+  }
+
+  @Override
+  public void lookupBatch(IpAddress[] ips, int count, int[] res) {
+    // sort IPv4 addresses using keys that hold the (sign-flipped) IP in the upper and the index in the lower bits.
+    long[] ip4Keys = new long[count];
+    int numIp4 = 0;
+    int[] ip6Indices = new int[count];
+    int numIp6 = 0;
+    for (int i = 0; i < count; i++) {
+      if (ips[i].isIpv4())
+        ip4Keys[numIp4++] = (((long) (ips[i].getIp4() ^ Integer.MIN_VALUE)) << 32) | i;
+      else
+        ip6Indices[numIp6++] = i;
+    }
+
+    Arrays.sort(ip4Keys, 0, numIp4);
+    int tableIdx = 0;
+    for (int i = 0; i < numIp4; i++) {
+      int ip = ((int) (ip4Keys[i] >>> 32)) ^ Integer.MIN_VALUE;
+      int resIdx = (int) ip4Keys[i];
+      int floorIdx = ip4Table.floorIndex(ip, tableIdx);
+      res[resIdx] = (ip4Table.contains(floorIdx, ip)) ? ip4Table.getValue(floorIdx) : NO_VALUE;
+      tableIdx = Math.max(floorIdx, 0);
+    }
+
+    if (numIp6 == 0)
+      return;
+
+    Integer[] ip6Order = new Integer[numIp6];
+    for (int i = 0; i < numIp6; i++)
+      ip6Order[i] = ip6Indices[i];
+    Arrays.sort(ip6Order,
+        (a, b) -> IpSubnet.compare128(ips[a].getHi(), ips[a].getLo(), ips[b].getHi(), ips[b].getLo()));
+    tableIdx = 0;
+    for (int resIdx : ip6Order) {
+      long ipHi = ips[resIdx].getHi();
+      long ipLo = ips[resIdx].getLo();
+      int floorIdx = ip6Table.floorIndex(ipHi, ipLo, tableIdx);
+      res[resIdx] = (ip6Table.contains(floorIdx, ipHi, ipLo)) ? ip6Table.getValue(floorIdx) : NO_VALUE;
+      tableIdx = Math.max(floorIdx, 0);
+    }
+  }
+}
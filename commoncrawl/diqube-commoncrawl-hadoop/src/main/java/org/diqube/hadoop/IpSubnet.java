@@ -20,66 +20,150 @@
  */
 package org.diqube.hadoop;
 
-import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 
 /**
  * An IP subnet (or a single IP) which can be ordered etc.
  * 
+ * <p>
+ * Each IP is held as 128 bit value in two longs ("hi" and "lo"), which are compared unsigned. IPv4 addresses occupy
+ * the lowest 32 bits of "lo". Textual values are parsed using {@link IpAddress}, i.e. host names are not accepted.
+ * 
  * The {@link Comparable} orders by startIp.
  *
  * @author Bastian Gloeckle
  */
 public class IpSubnet implements Comparable<IpSubnet> {
   private String strValue; // only for toString.
-  private BigInteger startIp;
-  private BigInteger endIp;
+  private long startHi;
+  private long startLo;
+  private long endHi;
+  private long endLo;
   private boolean isIpv4;
 
   public IpSubnet(InetAddress start, InetAddress end) throws IllegalArgumentException {
-    startIp = new BigInteger(1, start.getAddress());
-    endIp = new BigInteger(1, end.getAddress());
-
-    isIpv4 = start.getAddress().length == 4;
+    byte[] startBytes = start.getAddress();
+    byte[] endBytes = end.getAddress();
+    startHi = hiOf(startBytes);
+    startLo = loOf(startBytes);
+    endHi = hiOf(endBytes);
+    endLo = loOf(endBytes);
+
+    isIpv4 = startBytes.length == 4;
   }
 
   public IpSubnet(String strValue) throws IllegalArgumentException {
     this.strValue = strValue;
-    if (strValue.contains("/")) {
-      String[] split = strValue.split("/");
-      String ipString = split[0];
-      int maskInt = Integer.parseInt(split[1]);
-      InetAddress addr;
-      try {
-        addr = InetAddress.getByName(ipString);
-      } catch (UnknownHostException e) {
-        throw new IllegalArgumentException("Invalid parameter.", e);
-      }
-      isIpv4 = addr.getAddress().length == 4;
-
-      ByteBuffer maskBuf = ByteBuffer.allocate(addr.getAddress().length);
-      for (int i = 0; i < addr.getAddress().length; i++)
-        maskBuf.put((byte) 0xff);
-
-      BigInteger mask = new BigInteger(1, maskBuf.array()).shiftRight(maskInt);
-      BigInteger ip = new BigInteger(1, addr.getAddress());
-
-      startIp = ip.and(mask.not());
-      endIp = startIp.add(mask);
-    } else {
-      InetAddress addr;
-      try {
-        addr = InetAddress.getByName(strValue);
-      } catch (UnknownHostException e) {
-        throw new IllegalArgumentException("Invalid parameter.", e);
-      }
-
-      isIpv4 = addr.getAddress().length == 4;
-      startIp = new BigInteger(1, addr.getAddress());
-      endIp = startIp;
-    }
+    IpAddress addr = new IpAddress();
+    if (!addr.parse(strValue))
+      throw new IllegalArgumentException("Invalid parameter: " + strValue);
+
+    isIpv4 = addr.isIpv4();
+    int hostBits = ((isIpv4) ? 32 : 128) - addr.getPrefixLength();
+    long hostMaskHi = hostMaskHi(hostBits);
+    long hostMaskLo = hostMaskLo(hostBits);
+
+    startHi = addr.getHi() & ~hostMaskHi;
+    startLo = addr.getLo() & ~hostMaskLo;
+    endHi = startHi | hostMaskHi;
+    endLo = startLo | hostMaskLo;
+  }
+
+  /**
+   * @return "hi" part of a host mask with the given number of (lowest) bits set.
+   */
+  /* package */ static long hostMaskHi(int hostBits) {
+    if (hostBits <= 64)
+      return 0L;
+    if (hostBits >= 128)
+      return -1L;
+    return -1L >>> (128 - hostBits);
+  }
+
+  /**
+   * @return "lo" part of a host mask with the given number of (lowest) bits set.
+   */
+  /* package */ static long hostMaskLo(int hostBits) {
+    if (hostBits <= 0)
+      return 0L;
+    if (hostBits >= 64)
+      return -1L;
+    return -1L >>> (64 - hostBits);
+  }
+
+  private static long hiOf(byte[] addr) {
+    if (addr.length == 4)
+      return 0L;
+    long res = 0;
+    for (int i = 0; i < 8; i++)
+      res = (res << 8) | (addr[i] & 0xff);
+    return res;
+  }
+
+  private static long loOf(byte[] addr) {
+    long res = 0;
+    for (int i = (addr.length == 4) ? 0 : 8; i < addr.length; i++)
+      res = (res << 8) | (addr[i] & 0xff);
+    return res;
+  }
+
+  /**
+   * @return true if this is an IPv4 subnet.
+   */
+  public boolean isIpv4() {
+    return isIpv4;
+  }
+
+  /**
+   * @return The first IP of this IPv4 subnet as (unsigned) int. Only valid if {@link #isIpv4()}.
+   */
+  public int getStartIp4() {
+    return (int) startLo;
+  }
+
+  /**
+   * @return The last IP of this IPv4 subnet as (unsigned) int. Only valid if {@link #isIpv4()}.
+   */
+  public int getEndIp4() {
+    return (int) endLo;
+  }
+
+  /**
+   * @return Upper 64 bits of the first IP of this subnet.
+   */
+  public long getStartHi() {
+    return startHi;
+  }
+
+  /**
+   * @return Lower 64 bits of the first IP of this subnet.
+   */
+  public long getStartLo() {
+    return startLo;
+  }
+
+  /**
+   * @return Upper 64 bits of the last IP of this subnet.
+   */
+  public long getEndHi() {
+    return endHi;
+  }
+
+  /**
+   * @return Lower 64 bits of the last IP of this subnet.
+   */
+  public long getEndLo() {
+    return endLo;
+  }
+
+  /**
+   * Unsigned comparison of two 128 bit values.
+   */
+  /* package */ static int compare128(long aHi, long aLo, long bHi, long bLo) {
+    int res = Long.compareUnsigned(aHi, bHi);
+    if (res != 0)
+      return res;
+    return Long.compareUnsigned(aLo, bLo);
   }
 
   /**
@@ -89,9 +173,12 @@ public class IpSubnet implements Comparable<IpSubnet> {
     if (isIpv4 ^ other.isIpv4)
       return false;
 
-    return (startIp.compareTo(other.startIp) <= 0 && endIp.compareTo(other.startIp) >= 0) || //
-        (startIp.compareTo(other.endIp) <= 0 && endIp.compareTo(other.endIp) >= 0) || //
-        (startIp.compareTo(other.startIp) <= 0 && endIp.compareTo(other.endIp) >= 0);
+    return (compare128(startHi, startLo, other.startHi, other.startLo) <= 0
+            && compare128(endHi, endLo, other.startHi, other.startLo) >= 0) || //
+        (compare128(startHi, startLo, other.endHi, other.endLo) <= 0
+            && compare128(endHi, endLo, other.endHi, other.endLo) >= 0) || //
+        (compare128(startHi, startLo, other.startHi, other.startLo) <= 0
+            && compare128(endHi, endLo, other.endHi, other.endLo) >= 0);
   }
 
   @Override
@@ -99,15 +186,15 @@ public class IpSubnet implements Comparable<IpSubnet> {
     if (isIpv4 ^ o.isIpv4) {
       return isIpv4 ? -1 : 1;
     }
-    int startCompare = startIp.compareTo(o.startIp);
+    int startCompare = compare128(startHi, startLo, o.startHi, o.startLo);
     if (startCompare != 0)
       return startCompare;
-    return endIp.compareTo(o.endIp);
+    return compare128(endHi, endLo, o.endHi, o.endLo);
   }
 
   @Override
   public int hashCode() {
-    return startIp.xor(endIp).intValue();
+    return Long.hashCode(startHi ^ endHi) * 31 + Long.hashCode(startLo ^ endLo);
   }
 
   @Override
@@ -116,7 +203,8 @@ public class IpSubnet implements Comparable<IpSubnet> {
       return false;
     IpSubnet o = (IpSubnet) obj;
 
-    return startIp.equals(o.startIp) && endIp.equals(o.endIp) && isIpv4 == o.isIpv4;
+    return startHi == o.startHi && startLo == o.startLo && endHi == o.endHi && endLo == o.endLo
+        && isIpv4 == o.isIpv4;
   }
 
   @Override
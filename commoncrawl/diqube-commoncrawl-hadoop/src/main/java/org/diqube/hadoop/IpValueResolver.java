@@ -21,34 +21,58 @@
 package org.diqube.hadoop;
 
 import java.io.BufferedReader;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
 
 import com.opencsv.CSVParser;
 
 /**
  * Resolves IPs to either cities or countries using GeoLite2 CSV data.
+ * 
+ * <p>
+ * IPv4 blocks are held in an {@link Ip4RangeTable}, IPv6 blocks in an {@link Ip6RangeTable}. Lookups are executed on
+ * an {@link IpRangeIndex} whose implementation can be chosen using {@link #setBackend(IpRangeIndex.Backend)}. Instead
+ * of {@link #load(InputStream, InputStream, InputStream, String) loading} the CSV data, a resolver can be read from a
+ * {@link GeoIpSnapshot}.
  *
  * @author Bastian Gloeckle
  */
 public class IpValueResolver {
-
-  private NavigableMap<IpSubnet, Integer> map = new TreeMap<>();
-  private HashMap<Integer, String> values = new HashMap<>();
+  /** Holder for parsing IPs in {@link #resolve(String)}, one per thread. */
+  private static final ThreadLocal<IpAddress> PARSED_IP = ThreadLocal.withInitial(IpAddress::new);
+
+  private Ip4RangeTable ip4Table = new Ip4RangeTable.Builder().build();
+  private Ip6RangeTable ip6Table = new Ip6RangeTable.Builder().build();
+  private IpRangeIndex.Backend backend = IpRangeIndex.Backend.SORTED_RANGES;
+  private IpRangeIndex index = backend.create(ip4Table, ip6Table);
+  /**
+   * Values (e.g. city names) indexed by the dense IDs that the range tables contain. Equal strings share a single
+   * instance. <code>null</code> for IDs without description.
+   */
+  private List<String> values = new ArrayList<>();
+  /** Resolves the values of the range tables to the final string. */
+  private IntFunction<String> valueLookup = values::get;
 
   public void load(InputStream ip4input, InputStream ip6input, InputStream descriptionInput,
       String descriptionInputColName) throws IOException {
-    map.clear();
     values.clear();
+    valueLookup = values::get;
+    // the CSV files reference geoname IDs, which are sparse. The range tables contain dense IDs instead.
+    Map<Integer, Integer> geonameIdToId = new HashMap<>();
 
     CSVParser parser = new CSVParser();
+    Ip4RangeTable.Builder ip4TableBuilder = new Ip4RangeTable.Builder();
+    Ip6RangeTable.Builder ip6TableBuilder = new Ip6RangeTable.Builder();
 
     BufferedReader ip4Reader = new BufferedReader(new InputStreamReader(ip4input, Charset.forName("UTF-8")));
     BufferedReader ip6Reader = new BufferedReader(new InputStreamReader(ip6input, Charset.forName("UTF-8")));
@@ -70,11 +94,23 @@ public class IpValueResolver {
           continue;
         }
 
-        map.put(new IpSubnet(ipSubnet), geonameId);
+        int id = geonameIdToId.computeIfAbsent(geonameId, g -> {
+          values.add(null);
+          return values.size() - 1;
+        });
+
+        IpSubnet subnet = new IpSubnet(ipSubnet);
+        if (subnet.isIpv4())
+          ip4TableBuilder.add(subnet.getStartIp4(), subnet.getEndIp4(), id);
+        else
+          ip6TableBuilder.add(subnet, id);
 
         read = reader.readLine();
       }
     }
+    ip4Table = ip4TableBuilder.build();
+    ip6Table = ip6TableBuilder.build();
+    index = backend.create(ip4Table, ip6Table);
 
     BufferedReader descriptionReader =
         new BufferedReader(new InputStreamReader(descriptionInput, Charset.forName("UTF-8")));
@@ -85,24 +121,135 @@ public class IpValueResolver {
     while (!csvParts[valueIdx].equals(descriptionInputColName))
       valueIdx++;
 
+    Map<String, String> internedValues = new HashMap<>();
     read = descriptionReader.readLine();
     while (read != null) {
       csvParts = parser.parseLine(read);
-      String geonameId = csvParts[0];
-      String value = csvParts[valueIdx];
-      values.put(Integer.parseInt(geonameId), value);
+      Integer id = geonameIdToId.get(Integer.parseInt(csvParts[0]));
+      // ignore descriptions that are not referenced by any IP block.
+      if (id != null)
+        values.set(id, internedValues.computeIfAbsent(csvParts[valueIdx], v -> v));
 
       read = descriptionReader.readLine();
     }
   }
 
-  public String resolve(String ip) {
-    IpSubnet ipSubnet = new IpSubnet(ip);
+  /**
+   * Choose the implementation of the index used for lookups. Defaults to {@link IpRangeIndex.Backend#SORTED_RANGES}.
+   */
+  public void setBackend(IpRangeIndex.Backend backend) {
+    this.backend = backend;
+    index = backend.create(ip4Table, ip6Table);
+  }
 
-    Entry<IpSubnet, Integer> entry = map.floorEntry(ipSubnet);
-    if (entry == null || !entry.getKey().overlap(ipSubnet))
+  /**
+   * Resolve an IP given in textual form.
+   * 
+   * @return The value or <code>null</code> if the IP is invalid or no value is available for the IP.
+   */
+  public String resolve(String ip) {
+    IpAddress addr = PARSED_IP.get();
+    if (!addr.parse(ip))
       return null;
 
-    return values.get(entry.getValue());
+    return resolve(addr);
+  }
+
+  /**
+   * Resolve an IP that has been parsed already.
+   * 
+   * @return The value or <code>null</code> if no value is available for the IP.
+   */
+  public String resolve(IpAddress ip) {
+    if (ip.isIpv4())
+      return resolve4(ip.getIp4());
+    return resolve6(ip.getHi(), ip.getLo());
+  }
+
+  /**
+   * Resolve a batch of IPs that have been parsed already, see
+   * {@link IpRangeIndex#lookupBatch(IpAddress[], int, int[])}.
+   * 
+   * @param res
+   *          Receives the value (or <code>null</code>) of each of the first count IPs at the same index.
+   */
+  public void resolveBatch(IpAddress[] ips, int count, String[] res) {
+    int[] values = new int[count];
+    index.lookupBatch(ips, count, values);
+    for (int i = 0; i < count; i++)
+      res[i] = lookupValue(values[i]);
+  }
+
+  /**
+   * Resolve an IPv4 address which is given as (unsigned) int.
+   * 
+   * @return The value or <code>null</code> if no value is available for the IP.
+   */
+  public String resolve4(int ip) {
+    return lookupValue(index.lookup4(ip));
+  }
+
+  /**
+   * Resolve an IPv6 address which is given as two longs, see {@link IpSubnet}.
+   * 
+   * @return The value or <code>null</code> if no value is available for the IP.
+   */
+  public String resolve6(long ipHi, long ipLo) {
+    return lookupValue(index.lookup6(ipHi, ipLo));
+  }
+
+  /**
+   * Write the data of this resolver into a {@link GeoIpSnapshot}. Only valid if the data was loaded from CSV.
+   */
+  /* package */ void writeSnapshot(DataOutput out) throws IOException {
+    // IDs without description are written as "no value".
+    List<String> strings = new ArrayList<>();
+    for (String value : values)
+      strings.add((value != null) ? value : "");
+
+    ip4Table.writeTo(out, id -> (values.get(id) != null) ? id : IpRangeIndex.NO_VALUE);
+    ip6Table.writeTo(out, id -> (values.get(id) != null) ? id : IpRangeIndex.NO_VALUE);
+    GeoIpSnapshot.StringTable.write(out, strings);
+  }
+
+  /**
+   * Read a resolver from a {@link GeoIpSnapshot}, the resolver will work directly on the given buffer.
+   */
+  /* package */ static IpValueResolver readSnapshot(ByteBuffer buf) {
+    IpValueResolver res = new IpValueResolver();
+    res.ip4Table = Ip4RangeTable.readFrom(buf);
+    res.ip6Table = Ip6RangeTable.readFrom(buf);
+    res.valueLookup = GeoIpSnapshot.StringTable.read(buf);
+    res.index = res.backend.create(res.ip4Table, res.ip6Table);
+    return res;
+  }
+
+  /* package */ Ip4RangeTable getIp4Table() {
+    return ip4Table;
+  }
+
+  /* package */ Ip6RangeTable getIp6Table() {
+    return ip6Table;
+  }
+
+  /**
+   * @return The value (of the range tables) for the given IPv4 address or {@link IpRangeIndex#NO_VALUE}.
+   */
+  /* package */ int lookup4(int ip) {
+    return index.lookup4(ip);
+  }
+
+  /**
+   * @return The value (of the range tables) for the given IPv6 address or {@link IpRangeIndex#NO_VALUE}.
+   */
+  /* package */ int lookup6(long ipHi, long ipLo) {
+    return index.lookup6(ipHi, ipLo);
+  }
+
+  /**
+   * @return The string for a value of the range tables, <code>null</code> for {@link IpRangeIndex#NO_VALUE}.
+   */
+  /* package */ String lookupValue(int value) {
+    return (value == IpRangeIndex.NO_VALUE) ? null : valueLookup.apply(value);
   }
 }
@@ -0,0 +1,577 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * {@link InputStream} providing the decompressed data of a stream of concatenated gzip members, like a .wat.gz file,
+ * whose members are inflated concurrently.
+ * 
+ * <p>
+ * The compressed data is read in chunks of about {@link #CHUNK_SIZE} bytes. The gzip members in a chunk are found by
+ * scanning for their header (see {@link GzipMemberScanner#isHeaderCandidate(byte[], int)}) and are inflated by the
+ * threads of an executor, each using an {@link Inflater} of a pool. The last member of a chunk is read again as part
+ * of the next chunk, as it might not be complete. The decompressed data of the members is provided in the original
+ * order.
+ * 
+ * <p>
+ * The bytes of the gzip header might also occur inside the compressed data of a member. Therefore a member is only
+ * used if it ends exactly where the next header was found and if its CRC matches. Otherwise the member is inflated
+ * again on the reading thread up to its real end, and all headers found inside the member are ignored.
+ * 
+ * <p>
+ * {@link #available()} blocks until the next member is inflated, as readers of uncompressed WARC files use it to
+ * check whether there are more records.
+ * 
+ * <p>
+ * The {@link Member}s including their buffers for the decompressed data are re-used, a member is returned to the pool
+ * as soon as the reader moved on to the next one. The pool is bounded by the total size of the buffers.
+ * 
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Bastian Gloeckle
+ */
+public class ParallelGzipInputStream extends InputStream {
+  /** Number of compressed bytes that are read at once. */
+  /* package */ static final int CHUNK_SIZE = 1024 * 1024;
+  /** Number of members per thread that are inflated in advance, before the next chunk is read. */
+  private static final int MEMBERS_PER_THREAD = 4;
+  /**
+   * Maximum total size of the buffers of the {@link Member}s in the pool. The members of a chunk decompress to about
+   * four times {@link #CHUNK_SIZE}, which are all in flight at the same time.
+   */
+  private static final long MAX_POOLED_BYTES = 8L * CHUNK_SIZE;
+
+  private static final int HEADER_LENGTH = 10;
+  private static final int TRAILER_LENGTH = 8;
+  private static final int FLAG_HEADER_CRC = 2;
+  private static final int FLAG_EXTRA = 4;
+  private static final int FLAG_NAME = 8;
+  private static final int FLAG_COMMENT = 16;
+
+  private final InputStream in;
+  private final int numThreads;
+  private final ExecutorService executor;
+  /** {@link Inflater}s that are not in use, they are re-used for all members. */
+  private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+  /** {@link Member}s that are not in use, they are re-used for all members. */
+  private final Queue<Member> freeMembers = new ConcurrentLinkedQueue<>();
+  /** Total size of the buffers of the {@link #freeMembers}. */
+  private final AtomicLong pooledBytes = new AtomicLong();
+
+  /** Chunks that contain data of members that have not been provided yet, in the order of the stream. */
+  private final Deque<Chunk> chunks = new ArrayDeque<>();
+  /** Results of inflating the members of the {@link #chunks}, in the order of the stream. */
+  private final Deque<Future<Member>> pending = new ArrayDeque<>();
+  /** Data at the end of the last chunk, which is the start of the next one. */
+  private byte[] carry = new byte[0];
+  /** Position of {@link #carry} in the compressed stream. */
+  private long carryOffset = 0;
+  private boolean endOfInput = false;
+
+  /** Position of the next member in the compressed stream, members starting before it are ignored. */
+  private long nextMemberStart = 0;
+  /** The current member, <code>null</code> before the first one. */
+  private Member current = null;
+  /** Decompressed data of the current member. */
+  private byte[] data = new byte[0];
+  private int dataPos = 0;
+  private int dataLength = 0;
+  /** Volatile, as inflating threads that are still running when the stream is closed end their own inflater. */
+  private volatile boolean closed = false;
+
+  /**
+   * @param in
+   *          The compressed data, starting with a gzip member. Is closed when this stream is closed.
+   * @param numThreads
+   *          Number of threads that inflate members.
+   */
+  public ParallelGzipInputStream(InputStream in, int numThreads) {
+    this.in = in;
+    this.numThreads = numThreads;
+    executor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactoryBuilder().setNameFormat("gzip-inflate-%d").setDaemon(true).build());
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureData())
+      return -1;
+    return data[dataPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!ensureData())
+      return -1;
+    int res = Math.min(len, dataLength - dataPos);
+    System.arraycopy(data, dataPos, b, off, res);
+    dataPos += res;
+    return res;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (!ensureData())
+      return 0;
+    return dataLength - dataPos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+
+    executor.shutdownNow();
+    pending.clear();
+    chunks.clear();
+    freeMembers.clear();
+    try {
+      // members that are being inflated return their inflater to the pool when they are done. Inflating a member does
+      // not react on interrupts, but takes only a short time. Members that take longer end their inflater themselves,
+      // see returnInflater.
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the inflating threads.");
+    } finally {
+      endInflaters();
+      in.close();
+    }
+  }
+
+  /**
+   * Return an {@link Inflater} to the pool. If the stream has been closed in the meantime, it is ended instead.
+   */
+  private void returnInflater(Inflater inflater) {
+    inflaters.add(inflater);
+    // closed is set before close() drains the pool, therefore either close() or this thread ends the inflater.
+    if (closed)
+      endInflaters();
+  }
+
+  private void endInflaters() {
+    Inflater inflater;
+    while ((inflater = inflaters.poll()) != null)
+      inflater.end();
+  }
+
+  /**
+   * @return <code>false</code> if the end of the stream is reached.
+   */
+  private boolean ensureData() throws IOException {
+    if (closed)
+      throw new IOException("Stream closed");
+    while (dataPos == dataLength) {
+      if (!nextMember())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Make the data of the next member the current data.
+   * 
+   * @return <code>false</code> if there are no more members.
+   */
+  private boolean nextMember() throws IOException {
+    while (true) {
+      while (pending.size() <= numThreads * MEMBERS_PER_THREAD && readChunk())
+        ;
+
+      Future<Member> future = pending.poll();
+      if (future == null)
+        return false;
+      Member member = getMember(future);
+
+      if (member.start < nextMemberStart) {
+        // the header was found inside of a member that has been provided already.
+        release(member);
+        continue;
+      }
+      if (member.start > nextMemberStart)
+        throw new ZipException("Invalid gzip data at offset " + nextMemberStart);
+
+      if (member.result != InflateResult.COMPLETE || member.consumed != member.segmentLength) {
+        // the member does not end at the next header that was found.
+        release(member);
+        member = inflateFrom(nextMemberStart);
+      }
+
+      nextMemberStart = member.start + member.consumed;
+      while (!chunks.isEmpty() && chunks.peek().offset + chunks.peek().regionEnd <= nextMemberStart)
+        chunks.poll();
+
+      if (current != null)
+        release(current);
+      current = member;
+      data = member.data;
+      dataPos = 0;
+      dataLength = member.length;
+      return true;
+    }
+  }
+
+  /**
+   * @return A {@link Member} of the pool or a new one.
+   */
+  private Member newMember(long start, int segmentLength) {
+    Member res = freeMembers.poll();
+    if (res == null)
+      res = new Member();
+    else if (res.data != null)
+      pooledBytes.addAndGet(-res.data.length);
+    res.init(start, segmentLength);
+    return res;
+  }
+
+  /**
+   * Return a member to the pool, its data must not be used anymore.
+   */
+  private void release(Member member) {
+    if (member.data != null && pooledBytes.addAndGet(member.data.length) > MAX_POOLED_BYTES) {
+      pooledBytes.addAndGet(-member.data.length);
+      member.data = null;
+    }
+    freeMembers.add(member);
+  }
+
+  private Member getMember(Future<Member> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while inflating.");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not inflate gzip member", e.getCause());
+    }
+  }
+
+  /**
+   * Read the next chunk of the input and start to inflate its members.
+   * 
+   * <p>
+   * A chunk contains the {@link #carry} of the last chunk and the next bytes of the input. Its region ends at the last
+   * header that was found in it, or at its end if the input is exhausted.
+   * 
+   * @return <code>false</code> if the input is exhausted.
+   */
+  private boolean readChunk() throws IOException {
+    if (endOfInput)
+      return false;
+
+    byte[] buf = Arrays.copyOf(carry, Math.max(CHUNK_SIZE, 2 * carry.length));
+    int length = carry.length;
+    int regionEnd;
+    while (true) {
+      length += ByteStreams.read(in, buf, length, buf.length - length);
+      if (length < buf.length) {
+        endOfInput = true;
+        regionEnd = length;
+        break;
+      }
+
+      regionEnd = lastHeaderCandidate(buf, length);
+      if (regionEnd > 0)
+        break;
+      // a single member larger than the chunk.
+      buf = Arrays.copyOf(buf, 2 * buf.length);
+    }
+
+    Chunk chunk = new Chunk(carryOffset, buf, regionEnd);
+    chunks.add(chunk);
+    carry = Arrays.copyOfRange(buf, regionEnd, length);
+    carryOffset += regionEnd;
+
+    int start = 0;
+    while (start < regionEnd) {
+      int end = nextHeaderCandidate(buf, start + 1, regionEnd, length);
+      int segmentStart = start;
+      pending.add(executor.submit(() -> inflate(chunk, segmentStart, end)));
+      start = end;
+    }
+    return true;
+  }
+
+  /**
+   * Inflate a member of a chunk, executed by the threads of the executor.
+   */
+  private Member inflate(Chunk chunk, int start, int end) {
+    Inflater inflater = inflaters.poll();
+    if (inflater == null)
+      inflater = new Inflater(true);
+    try {
+      return inflate(inflater, newMember(chunk.offset + start, end - start), chunk.data, start, end);
+    } finally {
+      returnInflater(inflater);
+    }
+  }
+
+  /**
+   * Inflate the member starting at the given position on the current thread, up to its real end. The member might
+   * span multiple chunks, further chunks are read if needed.
+   */
+  private Member inflateFrom(long pos) throws IOException {
+    Iterator<Chunk> chunkIt = chunks.iterator();
+    Chunk chunk = chunkIt.next();
+    while (chunk.offset + chunk.regionEnd <= pos)
+      chunk = chunkIt.next();
+
+    int chunkStart = (int) (pos - chunk.offset);
+    byte[] buf = Arrays.copyOfRange(chunk.data, chunkStart, chunk.regionEnd);
+    int length = buf.length;
+    Inflater inflater = inflaters.poll();
+    if (inflater == null)
+      inflater = new Inflater(true);
+    try {
+      Member res = newMember(pos, length);
+      while (true) {
+        res.init(pos, length);
+        inflate(inflater, res, buf, 0, length);
+        if (res.result == InflateResult.COMPLETE)
+          return res;
+        if (res.result == InflateResult.INVALID)
+          throw new ZipException("Invalid gzip member at offset " + pos);
+
+        // append the region of the next chunk.
+        if (!chunkIt.hasNext()) {
+          if (!readChunk())
+            throw new EOFException("Unexpected end of gzip member at offset " + pos);
+          // the iterator is invalid after the chunk was added.
+          chunkIt = chunks.iterator();
+          while (chunkIt.next() != chunk)
+            ;
+        }
+        chunk = chunkIt.next();
+        buf = Arrays.copyOf(buf, length + chunk.regionEnd);
+        System.arraycopy(chunk.data, 0, buf, length, chunk.regionEnd);
+        length += chunk.regionEnd;
+      }
+    } finally {
+      returnInflater(inflater);
+    }
+  }
+
+  /**
+   * Inflate a single gzip member.
+   * 
+   * @param res
+   *          The member to fill, its data buffer is re-used if it is large enough.
+   * @param start
+   *          Index of the header of the member in buf.
+   * @param end
+   *          Index after the last byte of buf that is available, which is the start of the next header that was found.
+   * @return res
+   */
+  private static Member inflate(Inflater inflater, Member res, byte[] buf, int start, int end) {
+    int headerLength = headerLength(buf, start, end);
+    if (headerLength < 0) {
+      res.result = (headerLength == -1) ? InflateResult.NEEDS_INPUT : InflateResult.INVALID;
+      return res;
+    }
+
+    inflater.reset();
+    inflater.setInput(buf, start + headerLength, end - start - headerLength);
+    // WAT records compress to about a quarter of their size.
+    int expectedLength = Math.max(4096, 4 * (end - start));
+    byte[] out = (res.data != null && res.data.length >= expectedLength) ? res.data : new byte[expectedLength];
+    // keep the buffer even if the member is not complete, it is used again when the member is inflated again.
+    res.data = out;
+    int length = 0;
+    try {
+      while (!inflater.finished()) {
+        if (length == out.length) {
+          out = Arrays.copyOf(out, 2 * out.length);
+          res.data = out;
+        }
+        int inflated = inflater.inflate(out, length, out.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          res.result = (inflater.needsInput()) ? InflateResult.NEEDS_INPUT : InflateResult.INVALID;
+          return res;
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      res.result = InflateResult.INVALID;
+      return res;
+    }
+
+    int trailerStart = end - inflater.getRemaining();
+    if (end - trailerStart < TRAILER_LENGTH) {
+      res.result = InflateResult.NEEDS_INPUT;
+      return res;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(out, 0, length);
+    if (readIntLittleEndian(buf, trailerStart) != (int) crc.getValue()
+        || readIntLittleEndian(buf, trailerStart + 4) != length) {
+      res.result = InflateResult.INVALID;
+      return res;
+    }
+
+    res.result = InflateResult.COMPLETE;
+    res.consumed = trailerStart + TRAILER_LENGTH - start;
+    res.length = length;
+    return res;
+  }
+
+  /**
+   * @return The length of the gzip header starting at the given index, -1 if it is not complete until end or -2 if it
+   *         is invalid.
+   */
+  private static int headerLength(byte[] buf, int start, int end) {
+    if (end - start < HEADER_LENGTH)
+      return -1;
+    if (!GzipMemberScanner.isHeaderCandidate(buf, start))
+      return -2;
+
+    int flags = buf[start + 3];
+    int pos = start + HEADER_LENGTH;
+    if ((flags & FLAG_EXTRA) != 0) {
+      if (pos + 2 > end)
+        return -1;
+      pos += 2 + ((buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8));
+    }
+    if ((flags & FLAG_NAME) != 0)
+      pos = skipZeroTerminated(buf, pos, end);
+    if ((flags & FLAG_COMMENT) != 0)
+      pos = skipZeroTerminated(buf, pos, end);
+    if ((flags & FLAG_HEADER_CRC) != 0)
+      pos += 2;
+    return (pos > end) ? -1 : pos - start;
+  }
+
+  /**
+   * @return The index after the zero byte terminating the string at the given index, or a value greater than end if
+   *         there is none.
+   */
+  private static int skipZeroTerminated(byte[] buf, int pos, int end) {
+    while (pos < end && buf[pos] != 0)
+      pos++;
+    return pos + 1;
+  }
+
+  private static int readIntLittleEndian(byte[] buf, int pos) {
+    return (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16)
+        | ((buf[pos + 3] & 0xff) << 24);
+  }
+
+  /**
+   * @return The index of the first header candidate at or after from, or regionEnd if there is none before it.
+   */
+  private static int nextHeaderCandidate(byte[] buf, int from, int regionEnd, int length) {
+    int limit = Math.min(regionEnd, length - GzipMemberScanner.HEADER_CHECK_LENGTH + 1);
+    for (int i = from; i < limit; i++)
+      if (GzipMemberScanner.isHeaderCandidate(buf, i))
+        return i;
+    return regionEnd;
+  }
+
+  /**
+   * @return The index of the last header candidate, or 0 if there is none after index 0.
+   */
+  private static int lastHeaderCandidate(byte[] buf, int length) {
+    for (int i = length - GzipMemberScanner.HEADER_CHECK_LENGTH; i > 0; i--)
+      if (GzipMemberScanner.isHeaderCandidate(buf, i))
+        return i;
+    return 0;
+  }
+
+  /**
+   * Compressed data read from the input. The region of a chunk directly follows the region of the previous chunk.
+   */
+  private static class Chunk {
+    /** Position of the data in the compressed stream. */
+    private final long offset;
+    private final byte[] data;
+    /** Index after the last byte of the region of this chunk, the remaining data is part of the next chunk. */
+    private final int regionEnd;
+
+    private Chunk(long offset, byte[] data, int regionEnd) {
+      this.offset = offset;
+      this.data = data;
+      this.regionEnd = regionEnd;
+    }
+  }
+
+  private static enum InflateResult {
+    /** The member was inflated and its CRC matches. */
+    COMPLETE,
+    /** The member continues after the available data. */
+    NEEDS_INPUT,
+    /** There is no valid member. */
+    INVALID
+  }
+
+  /**
+   * Result of inflating a member. Instances are re-used, see {@link #init(long, int)}.
+   */
+  private static class Member {
+    /** Position of the member in the compressed stream. */
+    private long start;
+    /** Number of compressed bytes that were available for inflating the member. */
+    private int segmentLength;
+    private InflateResult result;
+    /** Number of compressed bytes of the member, if {@link InflateResult#COMPLETE}. */
+    private int consumed;
+    /** Buffer of the decompressed data, valid up to {@link #length}. Might be <code>null</code> before inflating. */
+    private byte[] data;
+    private int length;
+
+    /**
+     * Prepare this instance for inflating the member at the given position, keeping the {@link #data} buffer.
+     */
+    private void init(long start, int segmentLength) {
+      this.start = start;
+      this.segmentLength = segmentLength;
+      result = null;
+      consumed = 0;
+      length = 0;
+    }
+  }
+}
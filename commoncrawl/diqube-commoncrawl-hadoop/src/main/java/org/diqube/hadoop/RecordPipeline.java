@@ -0,0 +1,201 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Processes records on multiple threads: A reader thread reads the input records into items, worker threads process
+ * the items and the thread calling {@link #run()} writes them. Used by the mappers if
+ * {@link CommonCrawlDiqube.CommonCrawlBaseMapper#CONF_THREADS} is set.
+ * 
+ * <p>
+ * A fixed number of items is created ({@link #ITEMS_PER_THREAD} per worker thread) and re-used for multiple records,
+ * so this limits the number of records in flight. The items are written in the order in which the workers finish them,
+ * which is not necessarily the order of the input.
+ * 
+ * <p>
+ * If a step fails on any thread, including {@link Error}s, {@link #run()} throws and the other threads are interrupted.
+ *
+ * @param <T>
+ *          Type of the items.
+ * @author Bastian Gloeckle
+ */
+/* package */ class RecordPipeline<T> {
+  /** Number of items per worker thread, i.e. the number of records that can be in flight. */
+  /* package */ static final int ITEMS_PER_THREAD = 4;
+  /** Prefix of the names of the threads of the pipeline. */
+  /* package */ static final String THREAD_NAME_PREFIX = "commoncrawl-map-";
+
+  /** Passed through the queues of the pipeline to signal that a thread has finished. */
+  private static final Object END = new Object();
+  /** Passed to the writing thread to signal that a thread of the pipeline failed. */
+  private static final Object FAILED = new Object();
+
+  private final int numThreads;
+  private final Supplier<T> itemFactory;
+  private final Reader<T> reader;
+  private final Supplier<Worker<T>> workerFactory;
+  private final Writer<T> writer;
+
+  /**
+   * @param numThreads
+   *          Number of worker threads.
+   * @param itemFactory
+   *          Creates the items.
+   * @param reader
+   *          Reads the input records, called on the reader thread only.
+   * @param workerFactory
+   *          Creates a {@link Worker} for each worker thread, called on the thread calling {@link #run()}.
+   * @param writer
+   *          Writes the processed items, called on the thread calling {@link #run()}.
+   */
+  /* package */ RecordPipeline(int numThreads, Supplier<T> itemFactory, Reader<T> reader,
+      Supplier<Worker<T>> workerFactory, Writer<T> writer) {
+    this.numThreads = numThreads;
+    this.itemFactory = itemFactory;
+    this.reader = reader;
+    this.workerFactory = workerFactory;
+    this.writer = writer;
+  }
+
+  /**
+   * Process all input records, returns after all of them have been written.
+   * 
+   * @throws IOException
+   *           If the reader or a worker failed, the {@link IOException} that was thrown or one wrapping the failure.
+   *           Exceptions of the writer are thrown as-is.
+   */
+  @SuppressWarnings("unchecked")
+  /* package */ void run() throws IOException, InterruptedException {
+    int numItems = numThreads * ITEMS_PER_THREAD;
+    // the capacities are chosen so that put() never blocks, the number of free items limits the records in flight.
+    BlockingQueue<T> freeItems = new ArrayBlockingQueue<>(numItems);
+    BlockingQueue<Object> workQueue = new ArrayBlockingQueue<>(numItems + numThreads);
+    BlockingQueue<Object> writeQueue = new ArrayBlockingQueue<>(numItems + 2 * numThreads + 1);
+    for (int i = 0; i < numItems; i++)
+      freeItems.add(itemFactory.get());
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads + 1,
+        new ThreadFactoryBuilder().setNameFormat(THREAD_NAME_PREFIX + "%d").setDaemon(true).build());
+    try {
+      executor.submit(task(failure, writeQueue, () -> {
+        while (true) {
+          T item = freeItems.take();
+          if (!reader.read(item))
+            break;
+          workQueue.put(item);
+        }
+        for (int i = 0; i < numThreads; i++)
+          workQueue.put(END);
+      }));
+
+      for (int i = 0; i < numThreads; i++) {
+        Worker<T> worker = workerFactory.get();
+        executor.submit(task(failure, writeQueue, () -> {
+          Object item;
+          while ((item = workQueue.take()) != END) {
+            worker.process((T) item);
+            writeQueue.put(item);
+          }
+          writeQueue.put(END);
+        }));
+      }
+
+      int runningWorkers = numThreads;
+      while (runningWorkers > 0) {
+        Object item = writeQueue.take();
+        if (item == END)
+          runningWorkers--;
+        else if (item == FAILED) {
+          if (failure.get() instanceof IOException)
+            throw (IOException) failure.get();
+          throw new IOException("Failed to process records", failure.get());
+        } else {
+          writer.write((T) item);
+          freeItems.put((T) item);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return A task for the executor that executes the given step and reports a failure to the writing thread, which
+   *         rethrows it. This includes {@link Error}s, as otherwise the writing thread would wait for the failed thread
+   *         forever.
+   */
+  private Callable<Void> task(AtomicReference<Throwable> failure, BlockingQueue<Object> writeQueue, Step step) {
+    return () -> {
+      try {
+        step.run();
+      } catch (Throwable t) {
+        if (failure.compareAndSet(null, t))
+          writeQueue.put(FAILED);
+      }
+      return null;
+    };
+  }
+
+  /**
+   * Reads the input records.
+   */
+  /* package */ static interface Reader<T> {
+    /**
+     * Read the next record into the given item.
+     * 
+     * @return <code>false</code> if there are no more records, the item is not used then.
+     */
+    public boolean read(T item) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Processes items, not thread-safe.
+   */
+  /* package */ static interface Worker<T> {
+    public void process(T item) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Writes processed items. The item is re-used after this method returns.
+   */
+  /* package */ static interface Writer<T> {
+    public void write(T item) throws IOException, InterruptedException;
+  }
+
+  /**
+   * A step of the pipeline that is executed on its own thread.
+   */
+  private static interface Step {
+    public void run() throws Exception;
+  }
+}
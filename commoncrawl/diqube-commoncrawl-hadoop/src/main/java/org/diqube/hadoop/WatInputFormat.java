@@ -22,8 +22,14 @@ package org.diqube.hadoop;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
 
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
@@ -34,83 +40,208 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveRecord;
+import org.archive.io.warc.WARCReader;
 import org.archive.io.warc.WARCReaderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
 
 /**
  * Input format for reading .wat or .wat.gz files.
  * 
  * <p>
- * The {@link RecordReader} which is returned will provide only a single {@link ArchiveReader}, which can then be used
- * in the mapper to iterate over the entries in the .wat file. Unfortunately, we cannot return {@link ArchiveRecord}s
- * directly in this input format, as the current {@link ArchiveRecord} will be {@link ArchiveRecord#close()}ed when
- * iterating through the {@link ArchiveReader}.
+ * The {@link RecordReader} which is returned provides one {@link ArchiveRecord} per record of the .wat file, keyed by
+ * its WARC-Target-URI. Only the records containing the JSON metadata of a crawled URI are provided (see
+ * {@link #targetUriOf(ArchiveRecord)}), the other records are skipped and counted in {@link Counter#SKIPPED_RECORDS}.
+ * Note that an {@link ArchiveRecord} is only valid until the next record is read, as it will be
+ * {@link ArchiveRecord#close()}ed when iterating through the underlying {@link ArchiveReader}.
  * 
+ * <p>
+ * .wat.gz files consist of one gzip member per record and are split into multiple {@link FileSplit}s (according to the
+ * usual split size settings of {@link FileInputFormat}), so multiple mappers can work on a single file. The records of
+ * a split are those whose gzip member starts inside the split, see {@link GzipMemberScanner}. Uncompressed .wat files
+ * are not split.
  *
  * @author Bastian Gloeckle
  */
-public class WatInputFormat extends FileInputFormat<Text, ArchiveReader> {
+public class WatInputFormat extends FileInputFormat<Text, ArchiveRecord> {
+  private static final Logger logger = LoggerFactory.getLogger(WatInputFormat.class);
+
+  /** Job configuration key: <code>false</code> to process each .wat.gz file by a single mapper. */
+  public static final String CONF_SPLITTABLE = "diqube.commoncrawl.input.splittable";
+  /**
+   * Job configuration key: Number of threads that inflate the gzip members of .wat.gz files concurrently, see
+   * {@link ParallelGzipInputStream}. Values <= 1 inflate the members one after another on the thread reading the
+   * records.
+   */
+  public static final String CONF_INFLATE_THREADS = "diqube.commoncrawl.input.inflatethreads";
+
+  /** Hadoop counters reported by the {@link WatRecordReader}. */
+  public static enum Counter {
+    /** Records that have been provided to the mapper. */
+    RECORDS,
+    /** Records that are no JSON metadata records or that do not have a valid target URI. */
+    SKIPPED_RECORDS
+  }
 
   @Override
-  public RecordReader<Text, ArchiveReader> createRecordReader(InputSplit split, TaskAttemptContext context)
+  public RecordReader<Text, ArchiveRecord> createRecordReader(InputSplit split, TaskAttemptContext context)
       throws IOException, InterruptedException {
     return new WatRecordReader();
   }
 
   @Override
   protected boolean isSplitable(JobContext context, Path filename) {
-    // not easily splittable.
-    return false;
+    // uncompressed files are not easily splittable.
+    return filename.getName().endsWith(".gz") && context.getConfiguration().getBoolean(CONF_SPLITTABLE, true);
+  }
+
+  /**
+   * @return The WARC-Target-URI of the given record or <code>null</code> if the record should not be processed.
+   */
+  /* package */ static String targetUriOf(ArchiveRecord archiveRecord) {
+    // only work on those records that have actual JSON content and that contains the metadata of the crawl.
+    if (!archiveRecord.getHeader().getMimetype().equals("application/json") || //
+        !archiveRecord.getHeader().getHeaderValue("WARC-Type").equals("metadata"))
+      return null;
+
+    // Filter out entries that do not denote a valid URI - e.g. the data seems to contain results from retrieving
+    // the target data file itself (= the .wat file). We only want to work on real internet URIs.
+    String targetUriString = (String) archiveRecord.getHeader().getHeaderValue("WARC-Target-URI");
+    try {
+      URI targetUri = new URI(targetUriString);
+      if (targetUri.getScheme() == null) {
+        logger.info("Ignoring entry for WARC-Target-URI '{}' as it does not contain a scheme.", targetUriString);
+        return null;
+      }
+    } catch (URISyntaxException e) {
+      logger.info("Ignoring entry for WARC-Target-URI '{}' as it is not a well-formed URI.", targetUriString);
+      return null;
+    }
+    return targetUriString;
   }
 
   /**
-   * Simple {@link RecordReader} which returns a single {@link ArchiveReader} for a whole input file.
+   * {@link RecordReader} which returns the {@link ArchiveRecord}s of an input split one by one.
+   * 
+   * <p>
+   * The progress is calculated from the (compressed) bytes of the split that have been read from the
+   * {@link FSDataInputStream}.
    * 
    * Only works on {@link FileSplit} inputs.
    */
-  public static class WatRecordReader extends RecordReader<Text, ArchiveReader> {
+  public static class WatRecordReader extends RecordReader<Text, ArchiveRecord> {
     private FSDataInputStream inStream;
     private ArchiveReader archiveReader;
-    private boolean singleEntryRead;
-    private Path sourcePath;
+    private Iterator<ArchiveRecord> recordIterator;
+    private TaskAttemptContext context;
+    /** Position of the first byte of the split in the file. */
+    private long start;
+    /** Position after the last byte of the split in the file. */
+    private long end;
+    private Text currentKey = new Text();
+    private ArchiveRecord currentValue;
 
     @Override
     public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
-      sourcePath = ((FileSplit) split).getPath();
-      inStream = sourcePath.getFileSystem(context.getConfiguration()).open(sourcePath);
-      archiveReader = WARCReaderFactory.get(sourcePath.getName(), new BufferedInputStream(inStream), true);
-      singleEntryRead = false;
+      this.context = context;
+      FileSplit fileSplit = (FileSplit) split;
+      Path sourcePath = fileSplit.getPath();
+      FileSystem fs = sourcePath.getFileSystem(context.getConfiguration());
+      inStream = fs.open(sourcePath);
+
+      long fileLength = fs.getFileStatus(sourcePath).getLen();
+      if (fileSplit.getStart() == 0 && fileSplit.getLength() >= fileLength) {
+        start = 0;
+        end = fileLength;
+        archiveReader = openArchiveReader(sourcePath.getName(), inStream, true, context);
+      } else {
+        GzipMemberScanner scanner = new GzipMemberScanner(inStream, fileLength);
+        start = (fileSplit.getStart() == 0) ? 0 : scanner.findMemberStart(fileSplit.getStart());
+        long splitEnd = fileSplit.getStart() + fileSplit.getLength();
+        end = (splitEnd >= fileLength) ? fileLength : scanner.findMemberStart(splitEnd);
+        if (start >= end) {
+          // no member starts inside this split.
+          archiveReader = null;
+          return;
+        }
+
+        inStream.seek(start);
+        archiveReader =
+            openArchiveReader(sourcePath.getName(), ByteStreams.limit(inStream, end - start), start == 0, context);
+      }
+      recordIterator = archiveReader.iterator();
+    }
+
+    private ArchiveReader openArchiveReader(String name, InputStream in, boolean atFirstRecord,
+        TaskAttemptContext context) throws IOException {
+      int inflateThreads = context.getConfiguration().getInt(CONF_INFLATE_THREADS, 1);
+      if (inflateThreads > 1 && name.endsWith(".gz"))
+        return new InflatedWarcReader(name, new ParallelGzipInputStream(in, inflateThreads));
+      return WARCReaderFactory.get(name, new BufferedInputStream(in), atFirstRecord);
     }
 
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
-      if (singleEntryRead)
+      currentValue = null;
+      if (archiveReader == null)
         return false;
-      return (singleEntryRead = true);
+
+      // iterating closes the previous record.
+      while (recordIterator.hasNext()) {
+        ArchiveRecord archiveRecord = recordIterator.next();
+        String targetUriString = targetUriOf(archiveRecord);
+        if (targetUriString == null) {
+          context.getCounter(Counter.SKIPPED_RECORDS).increment(1);
+          continue;
+        }
+
+        context.getCounter(Counter.RECORDS).increment(1);
+        currentKey.set(targetUriString);
+        currentValue = archiveRecord;
+        return true;
+      }
+      return false;
     }
 
     @Override
     public Text getCurrentKey() throws IOException, InterruptedException {
-      return new Text(sourcePath.toString());
+      return currentKey;
     }
 
     @Override
-    public ArchiveReader getCurrentValue() throws IOException, InterruptedException {
-      return archiveReader;
+    public ArchiveRecord getCurrentValue() throws IOException, InterruptedException {
+      return currentValue;
     }
 
     @Override
     public float getProgress() throws IOException, InterruptedException {
-      if (singleEntryRead)
+      if (archiveReader == null || end <= start)
         return 1;
-      return 0;
+      // the position includes what has been read ahead by the buffer, which is good enough.
+      return Math.min(1f, (inStream.getPos() - start) / (float) (end - start));
     }
 
     @Override
     public void close() throws IOException {
-      archiveReader.close();
+      if (archiveReader != null)
+        archiveReader.close();
       inStream.close();
     }
 
   }
 
+  /**
+   * {@link WARCReader} on data that has been inflated already, like the uncompressed reader of
+   * {@link WARCReaderFactory}.
+   */
+  private static class InflatedWarcReader extends WARCReader {
+    private InflatedWarcReader(String name, InputStream inflated) {
+      setIn(new CountingInputStream(inflated));
+      setCompressed(false);
+      initialize(name);
+    }
+  }
+
 }
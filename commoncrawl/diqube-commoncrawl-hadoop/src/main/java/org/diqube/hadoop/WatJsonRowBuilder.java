@@ -0,0 +1,466 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.diqube.hadoop.CommonCrawlDiqube.CommonCrawlBaseMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Builds the row data ({@link CommonCrawlRowWritable#getData()}) from the JSON of a WAT metadata record by consuming
+ * the token stream of a {@link JsonParser}.
+ * 
+ * <p>
+ * The data is added to the row directly while parsing, no intermediary map structure of the whole record is built.
+ * Field names are cleaned and the values are converted to the types of the {@link WatSchema} on the fly. Only the
+ * fields that are needed by {@link CommonCrawlDeriveData} (see {@link CommonCrawlDeriveData#INPUT_FIELDS}) are
+ * materialized into a map, these are added to the row the same way. Of the links, only their URLs are materialized if
+ * the links are not added to the row.
+ * 
+ * <p>
+ * Only the fields selected by a {@link FieldProjection} are added to the row. The subtrees of all other fields are
+ * skipped in the token stream, unless they contain input fields of {@link CommonCrawlDeriveData}.
+ * 
+ * <p>
+ * The information about the fields (full name, cleaned name, type etc.) is cached, as the records of a WAT file mostly
+ * share the same fields.
+ * 
+ * <p>
+ * Values that cannot be converted to the type of their field are dropped, which is logged once per field and counted
+ * (see {@link #getDroppedValues()}).
+ * 
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatJsonRowBuilder {
+  private static final Logger logger = LoggerFactory.getLogger(WatJsonRowBuilder.class);
+
+  /** Hadoop counters of the rows built by a {@link WatJsonRowBuilder}. */
+  public static enum Counter {
+    /** Values that have been dropped as they could not be converted to the type of their field in the schema. */
+    DROPPED_VALUES
+  }
+
+  /** The object in which the WARC-Target-URI is set, see {@link #build}. */
+  private static final String TARGET_URI_PARENT = "Envelope.WARC-Header-Metadata";
+  private static final String[] TARGET_URI_PARENT_PATH = TARGET_URI_PARENT.split("\\.");
+  private static final String TARGET_URI = "WARC-Target-URI";
+  private static final String LINKS = "Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.Links";
+  /** The field of a link that is used by {@link CommonCrawlDeriveData}. */
+  private static final String LINK_URL = "url";
+
+  /**
+   * Maximum number of cached {@link Field}s. The JSON contains e.g. the names of all HTTP headers, of which there are
+   * potentially a lot.
+   */
+  private static final int MAX_CACHED_FIELDS = 16 * 1024;
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final ObjectMapper mapper = new ObjectMapper(jsonFactory);
+  private final boolean filterFullLinkList;
+  private final WatSchema schema;
+
+  private final Field rootField;
+  private int cachedFields = 0;
+
+  /** The target URI of the record that is currently built. */
+  private String targetUri;
+  private long droppedValues = 0;
+
+  /**
+   * @param filterFullLinkList
+   *          <code>true</code> if the links of the record should not be added to the row. They are available to
+   *          {@link CommonCrawlDeriveData} nevertheless.
+   */
+  public WatJsonRowBuilder(boolean filterFullLinkList) {
+    this(filterFullLinkList, FieldProjection.ALL, WatSchema.EMPTY);
+  }
+
+  /**
+   * @param filterFullLinkList
+   *          <code>true</code> if the links of the record should not be added to the row. Only used if the projection
+   *          keeps all fields, otherwise the links are added to the row if the projection selects them.
+   * @param projection
+   *          Selects the fields that are added to the row.
+   * @param schema
+   *          The types of the fields.
+   */
+  public WatJsonRowBuilder(boolean filterFullLinkList, FieldProjection projection, WatSchema schema) {
+    this.filterFullLinkList = filterFullLinkList && projection.isAll();
+    this.schema = schema;
+    rootField = new Field("", "", "", projection.root());
+  }
+
+  /**
+   * Add the data of a JSON WAT metadata record to a row.
+   * 
+   * @param json
+   *          UTF-8 encoded JSON.
+   * @param length
+   *          Number of valid bytes in json.
+   * @param targetUri
+   *          The URI of the record. Unfortunately, the URI is sometimes (?) not yet contained in the JSON, it is
+   *          therefore always set here, both in the row and in the returned map.
+   * @param data
+   *          The top level data of the row.
+   * @return The input for {@link CommonCrawlDeriveData#deriveData(Map)}, containing only the
+   *         {@link CommonCrawlDeriveData#INPUT_FIELDS}. The maps of the links contain at least their "url".
+   */
+  public Map<String, Object> build(byte[] json, int length, String targetUri, CommonCrawlRowWritable.Data data)
+      throws IOException {
+    this.targetUri = targetUri;
+
+    Map<String, Object> derived = new HashMap<>();
+    Map<String, Object> targetUriParent = derived;
+    for (String part : TARGET_URI_PARENT_PATH) {
+      Map<String, Object> child = new HashMap<>();
+      targetUriParent.put(part, child);
+      targetUriParent = child;
+    }
+    targetUriParent.put(TARGET_URI, targetUri);
+
+    try (JsonParser p = jsonFactory.createParser(json, 0, length)) {
+      if (p.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("WAT metadata record is no JSON object.");
+      p.nextToken();
+      readFields(p, rootField, data, derived);
+    }
+    return derived;
+  }
+
+  /**
+   * Read the fields of an object until its END_OBJECT token. The parser is positioned on the first FIELD_NAME (or the
+   * END_OBJECT).
+   * 
+   * @param data
+   *          The data to add the fields to or <code>null</code> if the object is not projected, but contains
+   *          {@link CommonCrawlDeriveData#INPUT_FIELDS}.
+   * @param derived
+   *          The map to put the {@link CommonCrawlDeriveData#INPUT_FIELDS} into or <code>null</code> if there are none
+   *          in this object.
+   */
+  @SuppressWarnings("unchecked")
+  private void readFields(JsonParser p, Field field, CommonCrawlRowWritable.Data data, Map<String, Object> derived)
+      throws IOException {
+    for (; p.getCurrentToken() == JsonToken.FIELD_NAME; p.nextToken()) {
+      Field child = field.child(p.getCurrentName());
+      JsonToken token = p.nextToken();
+
+      if (child.targetUri) {
+        // set in the parent later on.
+        p.skipChildren();
+        continue;
+      }
+
+      boolean projected = data != null && child.projection != null;
+
+      if (child.links && derived != null && token == JsonToken.START_ARRAY && (!projected || filterFullLinkList)) {
+        // the links are a major part of the record, but only their URLs are needed to derive data.
+        derived.put(child.name, readLinkUrls(p));
+        continue;
+      }
+
+      if (child.deriveInput && derived != null) {
+        Object value = mapper.readValue(p, Object.class);
+        derived.put(child.name, value);
+        if (projected && !(filterFullLinkList && child.links))
+          addValue(value, child, data, false);
+        continue;
+      }
+
+      if (!projected && !(child.deriveInputParent && derived != null)) {
+        // neither added to the row nor needed to derive data.
+        p.skipChildren();
+        continue;
+      }
+
+      if (token == JsonToken.START_OBJECT) {
+        Map<String, Object> childDerived = null;
+        if (child.deriveInputParent && derived != null)
+          childDerived = (Map<String, Object>) derived.computeIfAbsent(child.name, k -> new HashMap<>());
+
+        // empty objects are not added to the row.
+        if (p.nextToken() != JsonToken.END_OBJECT || child.targetUriParent)
+          readFields(p, child, projected ? data.withNewDiqubeData(child.cleanName) : null, childDerived);
+      } else if (!projected)
+        p.skipChildren();
+      else if (token == JsonToken.START_ARRAY)
+        readArray(p, child, data);
+      else if (child.fullyProjected)
+        addValue(p, token, child, data, false);
+    }
+
+    if (field.targetUriParent && data != null && field.child(TARGET_URI).fullyProjected)
+      data.withData(CommonCrawlBaseMapper.cleanFieldName(TARGET_URI), targetUri);
+  }
+
+  /**
+   * Read the URLs of the links until the END_ARRAY token. The parser is positioned on the START_ARRAY.
+   * 
+   * @return A map for each link that has a URL, containing only that URL.
+   */
+  private List<Map<String, String>> readLinkUrls(JsonParser p) throws IOException {
+    List<Map<String, String>> res = new ArrayList<>();
+    JsonToken token;
+    while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+      if (token != JsonToken.START_OBJECT) {
+        p.skipChildren();
+        continue;
+      }
+      String url = null;
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        boolean isUrl = LINK_URL.equals(p.getCurrentName());
+        if (p.nextToken() == JsonToken.VALUE_STRING && isUrl)
+          url = p.getText();
+        else
+          p.skipChildren();
+      }
+      if (url != null)
+        res.add(Collections.singletonMap(LINK_URL, url));
+    }
+    return res;
+  }
+
+  /**
+   * Add a value that has been materialized by the {@link ObjectMapper} to the row, the same way as if it had been read
+   * from the token stream. Only the projected children are added.
+   */
+  @SuppressWarnings("unchecked")
+  private void addValue(Object value, Field field, CommonCrawlRowWritable.Data data, boolean repeated)
+      throws IOException {
+    if (value == null)
+      logger.debug("Ignoring null value of field {}.", field.cleanName);
+    else if (value instanceof Map) {
+      Map<String, Object> map = (Map<String, Object>) value;
+      // empty objects are not added to the row.
+      if (map.isEmpty())
+        return;
+      CommonCrawlRowWritable.Data childData =
+          (repeated) ? data.addNewRepeatedDiqubeData(field.cleanName) : data.withNewDiqubeData(field.cleanName);
+      for (Map.Entry<String, Object> entry : map.entrySet()) {
+        Field child = field.child(entry.getKey());
+        if (child.projection != null)
+          addValue(entry.getValue(), child, childData, false);
+      }
+    } else if (value instanceof List) {
+      // arrays of arrays are not supported.
+      if (!repeated)
+        for (Object entry : (List<Object>) value)
+          addValue(entry, field, data, true);
+    } else if (!field.fullyProjected)
+      // only some fields of objects below this field are projected, not the value itself.
+      return;
+    else if (value instanceof String)
+      addString(data, field, (String) value, repeated);
+    else if (value instanceof Integer || value instanceof Long)
+      addLong(data, field, ((Number) value).longValue(), repeated);
+    else if (value instanceof Double || value instanceof Float)
+      addDouble(data, field, ((Number) value).doubleValue(), repeated);
+    else if (value instanceof Boolean)
+      addLong(data, field, ((Boolean) value) ? 1L : 0L, repeated);
+    else
+      throw new IOException("Unsupported value type: " + value.toString());
+  }
+
+  /**
+   * Read the entries of an array until its END_ARRAY token. The parser is positioned on the START_ARRAY.
+   */
+  private void readArray(JsonParser p, Field field, CommonCrawlRowWritable.Data data) throws IOException {
+    JsonToken token;
+    while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == JsonToken.START_OBJECT) {
+        if (p.nextToken() != JsonToken.END_OBJECT)
+          readFields(p, field, data.addNewRepeatedDiqubeData(field.cleanName), null);
+      } else if (token == JsonToken.START_ARRAY)
+        // arrays of arrays are not supported.
+        p.skipChildren();
+      else if (field.fullyProjected)
+        addValue(p, token, field, data, true);
+    }
+  }
+
+  private void addValue(JsonParser p, JsonToken token, Field field, CommonCrawlRowWritable.Data data, boolean repeated)
+      throws IOException {
+    switch (token) {
+    case VALUE_STRING:
+      addString(data, field, p.getText(), repeated);
+      break;
+    case VALUE_NUMBER_INT:
+      if (p.getNumberType() == JsonParser.NumberType.BIG_INTEGER)
+        throw new IOException("Unsupported number type: " + p.getText());
+      addLong(data, field, p.getLongValue(), repeated);
+      break;
+    case VALUE_NUMBER_FLOAT:
+      addDouble(data, field, p.getDoubleValue(), repeated);
+      break;
+    case VALUE_TRUE:
+    case VALUE_FALSE:
+      addLong(data, field, (token == JsonToken.VALUE_TRUE) ? 1L : 0L, repeated);
+      break;
+    case VALUE_NULL:
+      logger.debug("Ignoring null value of field {}.", field.cleanName);
+      break;
+    default:
+      // ignore.
+    }
+  }
+
+  /**
+   * Add a string value, converted to the type of the field.
+   */
+  private void addString(CommonCrawlRowWritable.Data data, Field field, String value, boolean repeated)
+      throws IOException {
+    try {
+      if (field.type == WatSchema.Type.LONG)
+        addLong(data, field, Long.parseLong(value), repeated);
+      else if (field.type == WatSchema.Type.DOUBLE)
+        addDouble(data, field, Double.parseDouble(value), repeated);
+      else if (repeated)
+        data.addRepeatedData(field.cleanName, value);
+      else
+        data.withData(field.cleanName, value);
+    } catch (NumberFormatException e) {
+      // e.g. the type was inferred from sample records that all contained numbers.
+      dropValue(field, value);
+    }
+  }
+
+  /**
+   * Add a long value, converted to the type of the field.
+   */
+  private void addLong(CommonCrawlRowWritable.Data data, Field field, long value, boolean repeated)
+      throws IOException {
+    if (field.type == WatSchema.Type.STRING)
+      addString(data, field, Long.toString(value), repeated);
+    else if (field.type == WatSchema.Type.DOUBLE)
+      addDouble(data, field, value, repeated);
+    else if (repeated)
+      data.addRepeatedData(field.cleanName, value);
+    else
+      data.withData(field.cleanName, value);
+  }
+
+  /**
+   * Add a double value, converted to the type of the field.
+   */
+  private void addDouble(CommonCrawlRowWritable.Data data, Field field, double value, boolean repeated)
+      throws IOException {
+    if (field.type == WatSchema.Type.STRING)
+      addString(data, field, Double.toString(value), repeated);
+    else if (field.type == WatSchema.Type.LONG)
+      dropValue(field, value);
+    else if (repeated)
+      data.addRepeatedData(field.cleanName, value);
+    else
+      data.withData(field.cleanName, value);
+  }
+
+  /**
+   * Count a value that cannot be converted to the type of the field, the first one of each field is logged.
+   */
+  private void dropValue(Field field, Object value) {
+    droppedValues++;
+    if (!field.droppedValueLogged) {
+      field.droppedValueLogged = true;
+      logger.warn("Ignoring value '{}' of field {}, as it is no {}. Further values of the field that cannot be "
+          + "converted are ignored without logging.", value, field.fullName, field.type);
+    } else
+      logger.debug("Ignoring value '{}' of field {}, as it is no {}.", value, field.fullName, field.type);
+  }
+
+  /**
+   * @return Number of values that have been dropped as they could not be converted to the type of their field, see
+   *         {@link Counter#DROPPED_VALUES}.
+   */
+  public long getDroppedValues() {
+    return droppedValues;
+  }
+
+  /**
+   * Information about a field in the JSON, identified by its full (dotted) name.
+   */
+  private class Field {
+    private final String name;
+    private final String fullName;
+    private final String cleanName;
+    /** Type of the field, <code>null</code> if the type of the JSON value is used. */
+    private final WatSchema.Type type;
+    /** Field is one of {@link CommonCrawlDeriveData#INPUT_FIELDS}. */
+    private final boolean deriveInput;
+    /** One of {@link CommonCrawlDeriveData#INPUT_FIELDS} is a child of this field. */
+    private final boolean deriveInputParent;
+    private final boolean targetUriParent;
+    private final boolean targetUri;
+    private final boolean links;
+    /** State of the field in the {@link FieldProjection}, <code>null</code> if the field is not added to the row. */
+    private final FieldProjection.State projection;
+    /**
+     * The field is projected including all its children. Scalar values are added to the row only if this is set, for
+     * other projected fields only some of the fields of the objects below them are added.
+     */
+    private final boolean fullyProjected;
+    private Map<String, Field> children = new HashMap<>();
+    private boolean droppedValueLogged = false;
+
+    private Field(String name, String fullName, String cleanName, FieldProjection.State projection) {
+      this.name = name;
+      this.fullName = fullName;
+      this.cleanName = cleanName;
+      this.projection = projection;
+      fullyProjected = projection != null && projection.isFull();
+      type = schema.getType(fullName);
+      deriveInput = CommonCrawlDeriveData.INPUT_FIELDS.contains(fullName);
+      deriveInputParent = "".equals(fullName)
+          || CommonCrawlDeriveData.INPUT_FIELDS.stream().anyMatch(f -> f.startsWith(fullName + "."));
+      targetUriParent = TARGET_URI_PARENT.equals(fullName);
+      targetUri = (TARGET_URI_PARENT + "." + TARGET_URI).equals(fullName);
+      links = LINKS.equals(fullName);
+    }
+
+    private Field child(String childName) {
+      Field res = children.get(childName);
+      if (res == null) {
+        String childFullName = ("".equals(fullName)) ? childName : fullName + "." + childName;
+        res = new Field(childName, childFullName, CommonCrawlBaseMapper.cleanFieldName(childName),
+            (projection != null) ? projection.child(childName) : null);
+        if (cachedFields < MAX_CACHED_FIELDS) {
+          children.put(childName, res);
+          cachedFields++;
+        }
+      }
+      return res;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.archive.io.ArchiveRecord;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Growable buffer holding the content of a WAT record, which is re-used for all records read by a task.
+ * 
+ * <p>
+ * The content of an {@link ArchiveRecord} is read directly into the buffer, which then is parsed without copying it
+ * again. The buffer only grows if a record is larger than all records before.
+ * 
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatRecordBuffer {
+  private static final int INITIAL_SIZE = 64 * 1024;
+
+  /** Hash function used to calculate the {@link #getFingerprint()}. */
+  private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+  private byte[] data = new byte[INITIAL_SIZE];
+  private int length = 0;
+  private long fingerprint;
+
+  /**
+   * Read the full content of a record into this buffer, replacing the previous content.
+   */
+  public void read(InputStream in) throws IOException {
+    length = 0;
+    int read;
+    while ((read = in.read(data, length, data.length - length)) != -1) {
+      length += read;
+      if (length == data.length)
+        data = Arrays.copyOf(data, data.length * 2);
+    }
+    fingerprint = FINGERPRINT.hashBytes(data, 0, length).asLong();
+  }
+
+  /**
+   * @return The buffer, valid up to {@link #getLength()}. Only valid until the next call to {@link #read(InputStream)}.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return 64 bit fingerprint of the content. It identifies the record and is used to distribute the rows (see
+   *         {@link CommonCrawlMapKey#getFingerprint()}) and to find duplicate records (see
+   *         {@link CommonCrawlDeriveData#FINGERPRINT}).
+   */
+  public long getFingerprint() {
+    return fingerprint;
+  }
+}
@@ -0,0 +1,270 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Types of the columns created from the fields of the WAT JSON, identified by the dotted path of the original field
+ * names. Fields that are not contained keep the type of their JSON value.
+ * 
+ * <p>
+ * The WAT JSON contains numbers as strings, the schema is used to convert those. It is loaded from a properties
+ * resource (see {@link #CONF_SCHEMA}). If that resource is not available, the schema is inferred from a sample of the
+ * input records using an {@link Inferrer} before the job starts and is then transported to the tasks in the job
+ * configuration.
+ * 
+ * <p>
+ * {@link WatJsonRowBuilder} looks up the type of each field only once, as it caches the information about the fields.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatSchema {
+  private static final Logger logger = LoggerFactory.getLogger(WatSchema.class);
+
+  /**
+   * Job configuration key: Name of the resource to load the schema from, or {@link #INFER} to infer the schema from
+   * the input.
+   */
+  public static final String CONF_SCHEMA = "diqube.commoncrawl.schema";
+  public static final String DEFAULT_SCHEMA = "/wat-schema.properties";
+  public static final String INFER = "infer";
+  /**
+   * Job configuration key: The inferred schema in the properties format of {@link #load(InputStream)}, Base64
+   * encoded, see {@link #setInferred(Configuration)}.
+   */
+  private static final String CONF_INFERRED_SCHEMA = "diqube.commoncrawl.schema.inferred";
+
+  public static enum Type {
+    STRING, LONG, DOUBLE
+  }
+
+  /** Schema without any types, i.e. all fields keep the type of their JSON value. */
+  public static final WatSchema EMPTY = new WatSchema(new HashMap<>());
+
+  private final Map<String, Type> types;
+
+  public WatSchema(Map<String, Type> types) {
+    this.types = types;
+  }
+
+  /**
+   * @return The type of the given field or <code>null</code> if the type of the JSON value should be used.
+   */
+  public Type getType(String fullFieldName) {
+    return types.get(fullFieldName);
+  }
+
+  /**
+   * Load a schema from a properties file: Keys are the dotted paths of the fields, values the names of {@link Type}s.
+   */
+  public static WatSchema load(InputStream is) throws IOException {
+    Properties properties = new Properties();
+    properties.load(is);
+    Map<String, Type> types = new HashMap<>();
+    for (String fieldName : properties.stringPropertyNames()) {
+      try {
+        types.put(fieldName, Type.valueOf(properties.getProperty(fieldName).trim()));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid type of field '" + fieldName + "': " + properties.getProperty(fieldName));
+      }
+    }
+    return new WatSchema(types);
+  }
+
+  /**
+   * @return The schema to be used by the tasks of a job: The inferred schema if there is one, otherwise the schema
+   *         loaded from the configured resource.
+   * @throws IOException
+   *           if there is neither an inferred schema nor the resource.
+   */
+  public static WatSchema fromConfiguration(Configuration conf) throws IOException {
+    String inferred = conf.get(CONF_INFERRED_SCHEMA);
+    if (inferred != null)
+      return load(new ByteArrayInputStream(Base64.getDecoder().decode(inferred)));
+
+    WatSchema res = loadResource(conf);
+    if (res == null)
+      throw new IOException("WAT schema resource '" + conf.get(CONF_SCHEMA, DEFAULT_SCHEMA) + "' not available.");
+    return res;
+  }
+
+  /**
+   * @return The schema loaded from the resource configured in {@link #CONF_SCHEMA} or <code>null</code> if the
+   *         resource is not available or {@link #INFER} is configured.
+   */
+  public static WatSchema loadResource(Configuration conf) throws IOException {
+    String resource = conf.get(CONF_SCHEMA, DEFAULT_SCHEMA);
+    if (INFER.equals(resource))
+      return null;
+
+    try (InputStream is = WatSchema.class.getResourceAsStream(resource)) {
+      if (is == null) {
+        logger.info("WAT schema resource '{}' not available.", resource);
+        return null;
+      }
+      return load(is);
+    }
+  }
+
+  /**
+   * Store this schema in the given configuration, so it is used by {@link #fromConfiguration(Configuration)}.
+   * 
+   * <p>
+   * The field names are arbitrary JSON keys that might contain e.g. commas or '=', the schema is therefore stored in
+   * the escaped properties format, which is Base64 encoded to be a safe configuration value.
+   */
+  public void setInferred(Configuration conf) throws IOException {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Type> entry : types.entrySet())
+      properties.setProperty(entry.getKey(), entry.getValue().name());
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    properties.store(baos, null);
+    conf.set(CONF_INFERRED_SCHEMA, Base64.getEncoder().encodeToString(baos.toByteArray()));
+  }
+
+  public int size() {
+    return types.size();
+  }
+
+  /**
+   * Infers a {@link WatSchema} from sample records.
+   * 
+   * <p>
+   * A field whose values are all strings containing an integer, integers or booleans is a {@link Type#LONG}, a field
+   * containing integers and floating point numbers is a {@link Type#DOUBLE}. All other fields containing strings are
+   * {@link Type#STRING}s.
+   * 
+   * <p>
+   * Note that a value of a field that has been inferred to be a number but contains a different string later on is
+   * dropped, see {@link WatJsonRowBuilder.Counter#DROPPED_VALUES}.
+   */
+  public static class Inferrer {
+    private static final int STRING = 1;
+    private static final int LONG_STRING = 1 << 1;
+    private static final int LONG = 1 << 2;
+    private static final int DOUBLE = 1 << 3;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    /** Bitmask of the kinds of values seen, by the full name of the fields. */
+    private final Map<String, Integer> seen = new HashMap<>();
+
+    /**
+     * Add a sample record.
+     * 
+     * @param json
+     *          UTF-8 encoded JSON.
+     * @param length
+     *          Number of valid bytes in json.
+     */
+    public void add(byte[] json, int length) throws IOException {
+      try (JsonParser p = jsonFactory.createParser(json, 0, length)) {
+        if (p.nextToken() != JsonToken.START_OBJECT)
+          throw new IOException("WAT metadata record is no JSON object.");
+        readFields(p, "");
+      }
+    }
+
+    /**
+     * Read the fields of an object, the parser is positioned on its START_OBJECT.
+     */
+    private void readFields(JsonParser p, String fullName) throws IOException {
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String childFullName = ("".equals(fullName)) ? p.getCurrentName() : fullName + "." + p.getCurrentName();
+        readValue(p, p.nextToken(), childFullName);
+      }
+    }
+
+    private void readValue(JsonParser p, JsonToken token, String fullName) throws IOException {
+      switch (token) {
+      case START_OBJECT:
+        readFields(p, fullName);
+        break;
+      case START_ARRAY:
+        // the entries of an array share the path of the array, arrays of arrays are not supported.
+        while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+          if (token == JsonToken.START_ARRAY)
+            p.skipChildren();
+          else
+            readValue(p, token, fullName);
+        }
+        break;
+      case VALUE_STRING:
+        seen(fullName, isLong(p.getText()) ? LONG_STRING : STRING);
+        break;
+      case VALUE_NUMBER_INT:
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+        seen(fullName, LONG);
+        break;
+      case VALUE_NUMBER_FLOAT:
+        seen(fullName, DOUBLE);
+        break;
+      default:
+        // ignore.
+      }
+    }
+
+    private void seen(String fullName, int kind) {
+      seen.merge(fullName, kind, (a, b) -> a | b);
+    }
+
+    private static boolean isLong(String s) {
+      try {
+        Long.parseLong(s);
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    public WatSchema build() {
+      Map<String, Type> types = new HashMap<>();
+      for (Map.Entry<String, Integer> entry : seen.entrySet()) {
+        int kinds = entry.getValue();
+        Type type;
+        if ((kinds & STRING) != 0)
+          type = Type.STRING;
+        else if ((kinds & DOUBLE) != 0)
+          type = ((kinds & LONG_STRING) != 0) ? Type.STRING : Type.DOUBLE;
+        else
+          type = Type.LONG;
+        types.put(entry.getKey(), type);
+      }
+      return new WatSchema(types);
+    }
+  }
+}
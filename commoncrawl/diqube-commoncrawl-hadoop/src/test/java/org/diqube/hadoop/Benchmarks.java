@@ -0,0 +1,69 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import org.testng.SkipException;
+
+/**
+ * Helpers for the benchmarks in the tests of this module.
+ *
+ * <p>
+ * Benchmarks take a while and their results are only meaningful on an otherwise idle machine, therefore they are
+ * skipped unless the system property {@value #ENABLE_PROPERTY} is set to <code>true</code>, e.g. using
+ * <code>mvn test -Ddiqube.benchmark=true</code>. Results are printed to stdout.
+ *
+ * @author Bastian Gloeckle
+ */
+/* package */ class Benchmarks {
+  /* package */ static final String ENABLE_PROPERTY = "diqube.benchmark";
+
+  private Benchmarks() {
+  }
+
+  /**
+   * Throws a {@link SkipException} if benchmarks are not enabled.
+   */
+  /* package */ static void skipUnlessEnabled() {
+    if (!Boolean.getBoolean(ENABLE_PROPERTY))
+      throw new SkipException("Benchmarks are disabled, set -D" + ENABLE_PROPERTY + "=true to run them.");
+  }
+
+  /**
+   * Execute the given task a few times to warm up and then measure it.
+   * 
+   * @return The minimum number of nanoseconds one execution of the task took.
+   */
+  /* package */ static long measure(Runnable task) {
+    for (int i = 0; i < 3; i++)
+      task.run();
+    long res = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      long start = System.nanoTime();
+      task.run();
+      res = Math.min(res, System.nanoTime() - start);
+    }
+    return res;
+  }
+
+  /* package */ static void report(String format, Object... args) {
+    System.out.println(String.format(format, args));
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that {@link CommonCrawlDiqube.CommonCrawlBucketPartitioner} spreads the buckets evenly across the partitions.
+ *
+ * @author Bastian Gloeckle
+ */
+public class CommonCrawlBucketPartitionerTest {
+  private static final int[] NUM_PARTITIONS = new int[] { 7, 10, 31, 32, 62, 64, 93, 100 };
+  /** Country IDs of the buckets: Most rows of a crawl come from a few countries. */
+  private static final int[] COUNTRY_IDS = new int[] { -1, 0, 5, 31, 62 };
+
+  @Test
+  public void bucketsSpreadEvenly() {
+    CommonCrawlMapKey.BucketIds bucketIds = new CommonCrawlMapKey.BucketIds(new Configuration());
+    for (int numPartitions : NUM_PARTITIONS) {
+      for (int[] countryIds : new int[][] { COUNTRY_IDS, { 5 } }) {
+        int[] buckets = new int[numPartitions];
+        int numBuckets = 0;
+        for (String tld : withUnknown(CommonCrawlMapKey.BucketIds.DEFAULT_TLDS)) {
+          for (String server : withUnknown(CommonCrawlMapKey.BucketIds.DEFAULT_SERVERS)) {
+            for (int countryId : countryIds) {
+              CommonCrawlMapKey key =
+                  new CommonCrawlMapKey(bucketIds.getTldId(tld), bucketIds.getServerId(server), countryId, 0L);
+              buckets[new CommonCrawlDiqube.CommonCrawlBucketPartitioner().getPartition(key, null, numPartitions)]++;
+              numBuckets++;
+            }
+          }
+        }
+
+        // the buckets should be spread like random values, so the counts per partition are binomially distributed.
+        double mean = (double) numBuckets / numPartitions;
+        double variance = 0;
+        int min = Integer.MAX_VALUE;
+        for (int count : buckets) {
+          variance += (count - mean) * (count - mean) / numPartitions;
+          min = Math.min(min, count);
+        }
+        double binomialVariance = mean * (1 - 1.0 / numPartitions);
+        String msg = numBuckets + " buckets with " + countryIds.length + " countries in " + numPartitions
+            + " partitions: min " + min + ", variance " + variance + ", binomial variance " + binomialVariance;
+        Assert.assertTrue(min > 0, msg);
+        Assert.assertTrue(variance <= 1.5 * 1.5 * binomialVariance, msg);
+      }
+    }
+  }
+
+  @Test
+  public void fingerprintIgnored() {
+    CommonCrawlDiqube.CommonCrawlBucketPartitioner partitioner = new CommonCrawlDiqube.CommonCrawlBucketPartitioner();
+    for (long fingerprint : new long[] { 1L, -1L, Long.MIN_VALUE, 0x123456789L })
+      Assert.assertEquals(partitioner.getPartition(new CommonCrawlMapKey(3, 4, 5, fingerprint), null, 31),
+          partitioner.getPartition(new CommonCrawlMapKey(3, 4, 5, 0L), null, 31));
+  }
+
+  private static String[] withUnknown(String[] known) {
+    String[] res = new String[known.length + 10];
+    System.arraycopy(known, 0, res, 0, known.length);
+    for (int i = 0; i < 10; i++)
+      res[known.length + i] = "unknown" + i;
+    return res;
+  }
+}
@@ -0,0 +1,116 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link CommonCrawlMapKey} and its {@link CommonCrawlMapKey.Comparator}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class CommonCrawlMapKeyTest {
+  /** Values that are likely to be compared wrongly if the comparison is signed. */
+  private static final int[] SPECIAL_INTS = new int[] { 0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0x80, 0xFF };
+  private static final long[] SPECIAL_LONGS = new long[] { 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 0xFFFFFFFFL,
+      0x80000000L };
+
+  @Test
+  public void comparatorSameAsCompareTo() throws IOException {
+    Random random = new Random(0);
+    CommonCrawlMapKey.BucketIds bucketIds = new CommonCrawlMapKey.BucketIds(new Configuration());
+    CommonCrawlMapKey.Comparator comparator = new CommonCrawlMapKey.Comparator();
+
+    CommonCrawlMapKey[] keys = new CommonCrawlMapKey[500];
+    for (int i = 0; i < keys.length; i++) {
+      // known and unknown (= hashed, negative) IDs, unknown countries (-1), equal prefixes and special values.
+      int tldId = (random.nextBoolean()) ? bucketIds.getTldId("com") : bucketIds.getTldId("tld" + random.nextInt(3));
+      int serverId = (random.nextBoolean()) ? bucketIds.getServerId("nginx")
+          : bucketIds.getServerId("server" + random.nextInt(3));
+      int countryId = (random.nextBoolean()) ? -1 : random.nextInt(3);
+      long fingerprint =
+          (random.nextBoolean()) ? random.nextLong() : SPECIAL_LONGS[random.nextInt(SPECIAL_LONGS.length)];
+      if (i % 10 == 0) {
+        tldId = SPECIAL_INTS[random.nextInt(SPECIAL_INTS.length)];
+        serverId = SPECIAL_INTS[random.nextInt(SPECIAL_INTS.length)];
+        countryId = SPECIAL_INTS[random.nextInt(SPECIAL_INTS.length)];
+      }
+      keys[i] = new CommonCrawlMapKey(tldId, serverId, countryId, fingerprint);
+    }
+
+    // serialize all keys into one buffer, so they are compared at different offsets.
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeByte(42);
+    for (CommonCrawlMapKey key : keys)
+      key.write(out);
+    byte[] buf = out.getData();
+
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < keys.length; j++) {
+        int expected = Integer.signum(keys[i].compareTo(keys[j]));
+        int actual = Integer.signum(comparator.compare(buf, 1 + i * CommonCrawlMapKey.LENGTH, CommonCrawlMapKey.LENGTH,
+            buf, 1 + j * CommonCrawlMapKey.LENGTH, CommonCrawlMapKey.LENGTH));
+        Assert.assertEquals(actual, expected, "Wrong result when comparing " + keys[i] + " to " + keys[j]);
+      }
+    }
+  }
+
+  @Test
+  public void compareToIsUnsigned() {
+    Assert.assertTrue(new CommonCrawlMapKey(1, 0, 0, 0L).compareTo(new CommonCrawlMapKey(-1, 0, 0, 0L)) < 0);
+    Assert.assertTrue(new CommonCrawlMapKey(0, 0, 0, 0L).compareTo(new CommonCrawlMapKey(0, 0, -1, 0L)) < 0);
+    Assert.assertTrue(new CommonCrawlMapKey(0, 0, 0, 1L).compareTo(new CommonCrawlMapKey(0, 0, 0, -1L)) < 0);
+    Assert.assertTrue(new CommonCrawlMapKey(0, 0, 0, 0L).compareTo(new CommonCrawlMapKey(0, 0, 0, 0L)) == 0);
+  }
+
+  @Test
+  public void knownIdsBeforeHashedIds() {
+    CommonCrawlMapKey.BucketIds bucketIds = new CommonCrawlMapKey.BucketIds(new Configuration());
+    int known = bucketIds.getTldId("us");
+    int hashed = bucketIds.getTldId("not-a-known-tld");
+
+    Assert.assertTrue(hashed < 0, "Hashed IDs should have the highest bit set.");
+    Assert.assertTrue(new CommonCrawlMapKey(known, 0, 0, 0L).compareTo(new CommonCrawlMapKey(hashed, 0, 0, 0L)) < 0);
+  }
+
+  @Test
+  public void serialization() throws IOException {
+    Random random = new Random(1);
+    for (int i = 0; i < 100; i++) {
+      CommonCrawlMapKey key = new CommonCrawlMapKey(random.nextInt(), random.nextInt(), random.nextInt(),
+          random.nextLong());
+      DataOutputBuffer out = new DataOutputBuffer();
+      key.write(out);
+
+      Assert.assertEquals(out.getLength(), CommonCrawlMapKey.LENGTH);
+      byte[] bytes = key.toBytes();
+      for (int j = 0; j < CommonCrawlMapKey.LENGTH; j++)
+        Assert.assertEquals(bytes[j], out.getData()[j], "Wrong byte at " + j);
+      Assert.assertEquals(CommonCrawlMapKey.fromBytes(bytes), key);
+    }
+  }
+}
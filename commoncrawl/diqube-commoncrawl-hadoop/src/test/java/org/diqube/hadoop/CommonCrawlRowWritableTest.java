@@ -0,0 +1,317 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.diqube.hadoop.CommonCrawlDiqube.CommonCrawlBaseMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the serialization of {@link CommonCrawlRowWritable} and compares it to the Java serialization of the
+ * {@link DiqubeRow} and the derived data map that was used before.
+ *
+ * @author Bastian Gloeckle
+ */
+public class CommonCrawlRowWritableTest {
+  private static final int NUM_BENCHMARK_ROWS = 10_000;
+
+  @Test
+  public void roundTrip() throws IOException {
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+    DiqubeRow expected = new DiqubeRow();
+    fill(row.getData());
+    fill(expected.withData());
+    row.getDerivedData().withData("tld", "com").withData("unknown_derived", -1L);
+    row.setGeoEntry(123456);
+
+    CommonCrawlRowWritable read = roundTrip(row, new CommonCrawlRowWritable(new Configuration()));
+
+    assertSameData(read, expected);
+    DiqubeRow derived = new DiqubeRow();
+    read.addDerivedDataTo(derived.withData());
+    DiqubeRow expectedDerived = new DiqubeRow();
+    expectedDerived.withData().withData("tld", "com").withData("unknown_derived", -1L);
+    Assert.assertEquals(WatJsonRowBuilderTest.serialize(derived), WatJsonRowBuilderTest.serialize(expectedDerived));
+    Assert.assertEquals(read.getGeoEntry(), 123456);
+  }
+
+  @Test
+  public void emptyRow() throws IOException {
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+    // empty nested data is not added.
+    row.getData().withNewDiqubeData("container").withNewDiqubeData("not_in_dictionary");
+    row.getData().addNewRepeatedDiqubeData("links");
+
+    CommonCrawlRowWritable read = roundTrip(row, new CommonCrawlRowWritable(new Configuration()));
+
+    assertSameData(read, new DiqubeRow());
+    Assert.assertEquals(read.getGeoEntry(), -1);
+  }
+
+  @Test
+  public void reusedInstances() throws IOException {
+    Configuration conf = new Configuration();
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(conf);
+    CommonCrawlRowWritable read = new CommonCrawlRowWritable(conf);
+
+    fill(row.getData());
+    roundTrip(row, read);
+
+    // second row uses other names not contained in the dictionary, in a different order.
+    row.clear();
+    DiqubeRow expected = new DiqubeRow();
+    row.getData().withData("second_only", "x").withData("not_in_dictionary", 2L).withData("second_only_2", 1.5)
+        .withNewDiqubeData("container").withData("offset", Long.MIN_VALUE);
+    expected.withData().withData("second_only", "x").withData("not_in_dictionary", 2L).withData("second_only_2", 1.5)
+        .withNewDiqubeData("container").withData("offset", Long.MIN_VALUE);
+
+    roundTrip(row, read);
+    assertSameData(read, expected);
+    Assert.assertEquals(read.getGeoEntry(), -1);
+  }
+
+  @Test
+  public void customDictionary() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setStrings(CommonCrawlRowWritable.CONF_FIELD_NAMES, "not_in_dictionary", "container");
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(conf);
+    DiqubeRow expected = new DiqubeRow();
+    fill(row.getData());
+    fill(expected.withData());
+
+    assertSameData(roundTrip(row, new CommonCrawlRowWritable(conf)), expected);
+  }
+
+  /**
+   * The serialized rows have to be smaller than the ones serialized with Java serialization as before.
+   */
+  @Test
+  public void smallerThanJavaSerialization() throws IOException {
+    CommonCrawlRowWritable row = watRow();
+    DiqubeRow javaRow = new DiqubeRow();
+    row.addDataTo(javaRow.withData());
+    Map<String, Object> derived = derivedData();
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    row.write(out);
+    int writableBytes = out.getLength();
+    int javaBytes = javaSerialize(javaRow, derived, row.getGeoEntry()).length;
+
+    Benchmarks.report("Serialized row: CommonCrawlRowWritable %d bytes, Java serialization %d bytes", writableBytes,
+        javaBytes);
+    Assert.assertTrue(writableBytes < javaBytes, "Expected " + writableBytes + " < " + javaBytes);
+  }
+
+  /**
+   * Compares the CPU time of serializing a row in the mapper and deserializing it to a {@link DiqubeRow} in the
+   * reducer.
+   */
+  @Test
+  public void serializationBenchmark() throws IOException {
+    Benchmarks.skipUnlessEnabled();
+
+    CommonCrawlRowWritable row = watRow();
+    DiqubeRow javaRow = new DiqubeRow();
+    row.addDataTo(javaRow.withData());
+    Map<String, Object> derived = derivedData();
+
+    DataOutputBuffer out = new DataOutputBuffer();
+    DataInputBuffer in = new DataInputBuffer();
+    CommonCrawlRowWritable read = new CommonCrawlRowWritable(new Configuration());
+    long writableNanos = Benchmarks.measure(() -> {
+      try {
+        for (int i = 0; i < NUM_BENCHMARK_ROWS; i++) {
+          out.reset();
+          row.write(out);
+          in.reset(out.getData(), out.getLength());
+          read.readFields(in);
+          DiqubeRow res = new DiqubeRow();
+          read.addDataTo(res.withData());
+          read.addDerivedDataTo(res.getData().withNewDiqubeData("derived"));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    long javaNanos = Benchmarks.measure(() -> {
+      try {
+        for (int i = 0; i < NUM_BENCHMARK_ROWS; i++) {
+          byte[] bytes = javaSerialize(javaRow, derived, row.getGeoEntry());
+          try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            ois.readObject();
+            ois.readObject();
+            ois.readInt();
+          }
+        }
+      } catch (IOException | ClassNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    Benchmarks.report("Serialize + deserialize row: CommonCrawlRowWritable %.1f us, Java serialization %.1f us",
+        writableNanos / 1000. / NUM_BENCHMARK_ROWS, javaNanos / 1000. / NUM_BENCHMARK_ROWS);
+  }
+
+  /**
+   * Add data with nested and repeated data, names contained in the dictionary and names not contained in it (some of
+   * them multiple times) and all kinds of values.
+   */
+  private static void fill(CommonCrawlRowWritable.Data data) throws IOException {
+    data.withData("not_in_dictionary", "value").withData("content", "\u00e4\u00f6\u00fc \u20ac").withData("offset", -1L)
+        .withData("count", Long.MIN_VALUE).withData("length", Long.MAX_VALUE).withData("double", -0.25)
+        .withData("", "");
+    CommonCrawlRowWritable.Data container = data.withNewDiqubeData("container");
+    container.withData("filename", "x.warc.gz").withData("not_in_dictionary", 0L);
+    // empty objects are not added.
+    container.withNewDiqubeData("gzip_metadata");
+    container.withNewDiqubeData("nested_empty").withNewDiqubeData("nested_empty");
+    container.withNewDiqubeData("nested").withNewDiqubeData("nested").withData("deepest", 1L);
+    container.withData("after_nested", "y");
+
+    data.addRepeatedData("scripts", "a").addRepeatedData("scripts", "b").addRepeatedData("numbers", -5L)
+        .addRepeatedData("numbers", 5L).addRepeatedData("doubles", Double.NaN);
+    for (int i = 0; i < 3; i++) {
+      CommonCrawlRowWritable.Data link = data.addNewRepeatedDiqubeData("links");
+      link.withData("url", "http://example.com/" + i).withData("link_attribute_" + (i % 2), (long) -i);
+      link.addNewRepeatedDiqubeData("links").addRepeatedData("path", "p" + i);
+    }
+    data.addNewRepeatedDiqubeData("links");
+    data.withData("last", "z");
+  }
+
+  /**
+   * Same as {@link #fill(CommonCrawlRowWritable.Data)} without the empty data, as {@link DiqubeRow}.
+   */
+  private static void fill(DiqubeRow.DiqubeData data) {
+    data.withData("not_in_dictionary", "value").withData("content", "\u00e4\u00f6\u00fc \u20ac").withData("offset", -1L)
+        .withData("count", Long.MIN_VALUE).withData("length", Long.MAX_VALUE).withData("double", -0.25)
+        .withData("", "");
+    DiqubeRow.DiqubeData container = data.withNewDiqubeData("container");
+    container.withData("filename", "x.warc.gz").withData("not_in_dictionary", 0L);
+    container.withNewDiqubeData("nested").withNewDiqubeData("nested").withData("deepest", 1L);
+    container.withData("after_nested", "y");
+
+    data.addRepeatedData("scripts", "a").addRepeatedData("scripts", "b").addRepeatedData("numbers", -5L)
+        .addRepeatedData("numbers", 5L).addRepeatedData("doubles", Double.NaN);
+    for (int i = 0; i < 3; i++) {
+      DiqubeRow.DiqubeData link = data.addNewRepeatedDiqubeData("links");
+      link.withData("url", "http://example.com/" + i).withData("link_attribute_" + (i % 2), (long) -i);
+      link.addNewRepeatedDiqubeData("links").addRepeatedData("path", "p" + i);
+    }
+    data.withData("last", "z");
+  }
+
+  private static CommonCrawlRowWritable roundTrip(CommonCrawlRowWritable row, CommonCrawlRowWritable target)
+      throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    row.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    target.readFields(in);
+    Assert.assertEquals(in.getPosition(), out.getLength(), "Not all bytes read.");
+    return target;
+  }
+
+  private static void assertSameData(CommonCrawlRowWritable row, DiqubeRow expected) throws IOException {
+    DiqubeRow actual = new DiqubeRow();
+    row.addDataTo(actual.withData());
+    Assert.assertEquals(WatJsonRowBuilderTest.serialize(actual), WatJsonRowBuilderTest.serialize(expected),
+        "Rows differ: " + actual + " vs. " + expected);
+  }
+
+  /**
+   * @return A row with the data of a typical WAT record and the data derived from it.
+   */
+  private static CommonCrawlRowWritable watRow() throws IOException {
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+    WatSchema schema;
+    try (InputStream is = WatSchema.class.getResourceAsStream(WatSchema.DEFAULT_SCHEMA)) {
+      schema = WatSchema.load(is);
+    }
+    byte[] json = WatJsonRowBuilderTest.FULL_RECORD.getBytes(StandardCharsets.UTF_8);
+    new WatJsonRowBuilder(false, FieldProjection.ALL, schema).build(json, json.length, "http://example.com/",
+        row.getData());
+    CommonCrawlBaseMapper.addToRow(row.getDerivedData(), derivedData());
+    row.getDerivedData().withData(CommonCrawlDeriveData.FINGERPRINT, 0x123456789abcdefL);
+    row.setGeoEntry(4711);
+    return row;
+  }
+
+  /**
+   * @return Derived data like {@link CommonCrawlDeriveData} creates it, without
+   *         {@link CommonCrawlDeriveData#IP_GEO_ENTRY}.
+   */
+  private static Map<String, Object> derivedData() {
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put(CommonCrawlDeriveData.TLD, "com");
+    res.put(CommonCrawlDeriveData.DOMAIN, "example.com");
+    res.put(CommonCrawlDeriveData.SUBDOMAIN, "www");
+    res.put(CommonCrawlDeriveData.DOMAIN_SCHEME, "http");
+    res.put(CommonCrawlDeriveData.CACHE_SECONDS, 600L);
+    res.put(CommonCrawlDeriveData.SERVER, "Apache");
+    res.put(CommonCrawlDeriveData.SERVER_VERSION, "2.4");
+    List<Object> components = new ArrayList<>();
+    Map<String, Object> component = new LinkedHashMap<>();
+    component.put(CommonCrawlDeriveData.SERVER_COMPONENTS_COMPONENT, "Apache");
+    component.put(CommonCrawlDeriveData.SERVER_COMPONENTS_VERSION, "2.4");
+    components.add(component);
+    res.put(CommonCrawlDeriveData.SERVER_COMPONENTS, components);
+    List<Object> topLinkDomains = new ArrayList<>();
+    for (String domain : Arrays.asList("iana.org", "example.com")) {
+      Map<String, Object> linkDomain = new LinkedHashMap<>();
+      linkDomain.put(CommonCrawlDeriveData.TOP_LINK_DOMAINS_DOMAIN, domain);
+      linkDomain.put(CommonCrawlDeriveData.TOP_LINK_DOMAINS_COUNT, 1L);
+      topLinkDomains.add(linkDomain);
+    }
+    res.put(CommonCrawlDeriveData.TOP_LINK_DOMAINS, topLinkDomains);
+    return res;
+  }
+
+  /**
+   * Serialize a row like the mapper did before {@link CommonCrawlRowWritable} was used.
+   */
+  private static byte[] javaSerialize(DiqubeRow row, Map<String, Object> derived, int geoEntry) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+      oos.writeObject(row);
+      oos.writeObject(derived);
+      oos.writeInt(geoEntry);
+    }
+    return baos.toByteArray();
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link FieldProjection}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class FieldProjectionTest {
+  @Test
+  public void allKeepsEverythingFully() {
+    FieldProjection.State root = FieldProjection.ALL.root();
+    Assert.assertTrue(FieldProjection.ALL.isAll());
+    Assert.assertTrue(root.isFull(), "Root should be full");
+    Assert.assertTrue(root.child("Envelope").child("Format").isFull(), "Child should be full");
+  }
+
+  @Test
+  public void emptyConfigurationIsAll() {
+    Assert.assertSame(FieldProjection.fromConfiguration(new Configuration()), FieldProjection.ALL,
+        "Expected ALL projection");
+
+    Configuration conf = new Configuration();
+    conf.set(FieldProjection.CONF_FIELDS, " Envelope.Format , Container ");
+    FieldProjection projection = FieldProjection.fromConfiguration(conf);
+    Assert.assertFalse(projection.isAll());
+    Assert.assertTrue(projection.root().child("Container").isFull(), "Container should be full");
+    Assert.assertTrue(projection.root().child("Envelope").child("Format").isFull(), "Format should be full");
+  }
+
+  @Test
+  public void prefixOfPatternIsPartial() {
+    FieldProjection.State root = projection("Envelope.WARC-Header-Metadata.WARC-Target-URI").root();
+    Assert.assertFalse(root.isFull(), "Root should be partial");
+
+    FieldProjection.State envelope = root.child("Envelope");
+    Assert.assertNotNull(envelope, "Envelope should be traversed");
+    Assert.assertFalse(envelope.isFull(), "Envelope should be partial");
+    Assert.assertNull(envelope.child("Format"), "Format should not be kept");
+    Assert.assertNull(root.child("Container"), "Container should not be kept");
+
+    FieldProjection.State metadata = envelope.child("WARC-Header-Metadata");
+    Assert.assertFalse(metadata.isFull(), "WARC-Header-Metadata should be partial");
+    Assert.assertNull(metadata.child("WARC-Type"), "WARC-Type should not be kept");
+    FieldProjection.State uri = metadata.child("WARC-Target-URI");
+    Assert.assertTrue(uri.isFull(), "WARC-Target-URI should be full");
+    Assert.assertTrue(uri.child("anything").isFull(), "Children of full fields should be full");
+  }
+
+  @Test
+  public void wildcardSegmentMatchesAnyFieldButIsPartial() {
+    FieldProjection.State envelope = projection("Envelope.*.Server").root().child("Envelope");
+
+    // "*" matches "Format", but "Format" is only a prefix of the pattern and must not be kept as a value.
+    FieldProjection.State format = envelope.child("Format");
+    Assert.assertNotNull(format, "Format should be traversed");
+    Assert.assertFalse(format.isFull(), "Format should be partial");
+
+    FieldProjection.State headers = envelope.child("Headers");
+    Assert.assertFalse(headers.isFull(), "Headers should be partial");
+    Assert.assertTrue(headers.child("Server").isFull(), "Server should be full");
+    Assert.assertNull(headers.child("Date"), "Date should not be kept");
+    Assert.assertNull(headers.child("Server-Info"), "Server-Info should not be kept");
+  }
+
+  @Test
+  public void wildcardWithinSegment() {
+    FieldProjection.State metadata = projection("Envelope.WARC-Header-Metadata.WARC-*-Address").root()
+        .child("Envelope").child("WARC-Header-Metadata");
+    Assert.assertTrue(metadata.child("WARC-IP-Address").isFull(), "WARC-IP-Address should be full");
+    Assert.assertTrue(metadata.child("WARC--Address").isFull(), "Wildcard should match empty string");
+    Assert.assertNull(metadata.child("WARC-IP-Address2"), "Suffix should have to match");
+    Assert.assertNull(metadata.child("X-WARC-IP-Address"), "Prefix should have to match");
+    Assert.assertNull(metadata.child("WARC-Type"), "WARC-Type should not be kept");
+  }
+
+  @Test
+  public void specialCharactersAreLiteral() {
+    FieldProjection.State root = projection("A+B(c)").root();
+    Assert.assertTrue(root.child("A+B(c)").isFull(), "Literal name should match");
+    Assert.assertNull(root.child("AAB(c)"), "'+' should not be a regex quantifier");
+  }
+
+  @Test
+  public void fullPatternWinsOverPartialPattern() {
+    FieldProjection.State envelope = projection("Envelope.*.Server", "Envelope.Format").root().child("Envelope");
+    Assert.assertTrue(envelope.child("Format").isFull(), "Format should be full");
+    Assert.assertFalse(envelope.child("Headers").isFull(), "Headers should be partial");
+
+    FieldProjection.State both = projection("Envelope.*.Server", "Envelope").root().child("Envelope");
+    Assert.assertTrue(both.isFull(), "Envelope should be full");
+  }
+
+  private static FieldProjection projection(String... patterns) {
+    return new FieldProjection(Arrays.asList(patterns));
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link GeoIpSnapshotCompiler}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class GeoIpSnapshotCompilerTest {
+  @Test
+  public void compilesSnapshotAndId() throws IOException {
+    File dir = Files.createTempDirectory("diqube-geoip-").toFile();
+    try {
+      writeCsvFiles(dir);
+      File snapshotFile = new File(dir, "out/" + GeoIpSnapshot.FILE_NAME);
+      GeoIpSnapshotCompiler.main(new String[] { dir.getPath(), snapshotFile.getPath(), "RADIX_TRIE" });
+
+      IpGeoResolver res = GeoIpSnapshot.open(snapshotFile).getGeoResolver();
+      Assert.assertEquals(res.getSourceBackend(), IpRangeIndex.Backend.RADIX_TRIE);
+      IpAddress ip = new IpAddress();
+      ip.parse("10.1.2.3");
+      Assert.assertEquals(res.getCity(res.resolve(ip)), "Inner");
+      Assert.assertEquals(res.getCountry(res.resolve(ip)), "Country");
+      Assert.assertEquals(res.getAsn(res.resolve(ip)), "AS1 outer");
+
+      String id = new String(Files.readAllBytes(new File(dir, "out/" + GeoIpSnapshot.ID_FILE_NAME).toPath()),
+          StandardCharsets.UTF_8);
+      Assert.assertTrue(id.matches("[0-9a-f]{64}"), "Not a SHA-256: " + id);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void missingCsvFailsAndRemovesOldSnapshot() throws IOException {
+    File dir = Files.createTempDirectory("diqube-geoip-").toFile();
+    try {
+      writeCsvFiles(dir);
+      new File(dir, CommonCrawlDeriveData.GEOLITE_ASN_6.substring(1)).delete();
+      File snapshotFile = new File(dir, GeoIpSnapshot.FILE_NAME);
+      File idFile = new File(dir, GeoIpSnapshot.ID_FILE_NAME);
+      Files.write(snapshotFile.toPath(), new byte[] { 1, 2, 3 });
+      Files.write(idFile.toPath(), new byte[] { 1, 2, 3 });
+
+      try {
+        GeoIpSnapshotCompiler.main(new String[] { dir.getPath(), snapshotFile.getPath() });
+        Assert.fail("Missing CSV file not detected");
+      } catch (FileNotFoundException e) {
+        Assert.assertTrue(e.getMessage().contains(CommonCrawlDeriveData.GEOLITE_ASN_6.substring(1)), e.getMessage());
+      }
+      Assert.assertFalse(snapshotFile.exists(), "Old snapshot left behind");
+      Assert.assertFalse(idFile.exists(), "Old snapshot ID left behind");
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void wrongArgumentsThrow() throws IOException {
+    GeoIpSnapshotCompiler.main(new String[] { "onlyOne" });
+  }
+
+  private void writeCsvFiles(File dir) throws IOException {
+    write(dir, CommonCrawlDeriveData.GEOLITE_CITY_4, "network,geoname_id\n10.0.0.0/8,1\n10.1.0.0/16,2\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_CITY_6, "network,geoname_id\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_CITY_DESCRIPTION,
+        "geoname_id,locale_code,city_name\n1,en,Outer\n2,en,Inner\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_COUNTRY_4, "network,geoname_id\n10.0.0.0/8,1\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_COUNTRY_6, "network,geoname_id\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_COUNTRY_DESCRIPTION,
+        "geoname_id,locale_code,country_name\n1,en,Country\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_ASN_4, "167772160,184549375,AS1 outer\n");
+    write(dir, CommonCrawlDeriveData.GEOLITE_ASN_6, "");
+  }
+
+  private void write(File dir, String resourceName, String content) throws IOException {
+    Files.write(new File(dir, resourceName.substring(1)).toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        delete(child);
+    file.delete();
+  }
+}
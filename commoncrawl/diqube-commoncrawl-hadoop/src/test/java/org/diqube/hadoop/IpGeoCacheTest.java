@@ -0,0 +1,225 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link IpGeoCache} against a {@link LinkedHashMap} with the same eviction policy.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpGeoCacheTest {
+  private static final int OPERATIONS = 200_000;
+
+  @DataProvider(name = "policies")
+  public Object[][] policies() {
+    return new Object[][] { { IpGeoCache.EvictionPolicy.LRU }, { IpGeoCache.EvictionPolicy.FIFO } };
+  }
+
+  @Test(dataProvider = "policies")
+  public void sameAsLinkedHashMap(IpGeoCache.EvictionPolicy policy) {
+    for (int capacity : new int[] { 1, 2, 3, 64, 1000 }) {
+      Random random = new Random(capacity);
+      IpGeoCache cache = new IpGeoCache(capacity, policy);
+      long[] evictions = new long[1];
+      Map<String, Integer> expected = new LinkedHashMap<String, Integer>(16, 0.75f,
+          policy == IpGeoCache.EvictionPolicy.LRU) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+          if (size() > capacity) {
+            evictions[0]++;
+            return true;
+          }
+          return false;
+        }
+      };
+
+      IpAddress ip = new IpAddress();
+      long expectedHits = 0;
+      String ipString = null;
+      for (int i = 0; i < OPERATIONS; i++) {
+        // about twice as many distinct IPs as fit into the cache, both IPv4 and IPv6, often repeating the last one.
+        if (ipString == null || random.nextBoolean()) {
+          int n = random.nextInt(2 * capacity + 1);
+          ipString = (n % 2 == 0) ? "10.0." + (n / 256) + "." + (n % 256) : "2001:db8::" + Integer.toHexString(n);
+        } else
+          ipString = new String(ipString);
+
+        Integer expectedEntry = expected.get(ipString);
+        int entry;
+        if (random.nextBoolean())
+          entry = cache.get(ipString, ip);
+        else {
+          Assert.assertTrue(ip.parse(ipString));
+          entry = cache.get(ip);
+        }
+        Assert.assertEquals(entry, (expectedEntry == null) ? IpGeoCache.NOT_CACHED : (int) expectedEntry,
+            "Wrong entry for " + ipString + " in operation " + i + " with capacity " + capacity);
+        if (expectedEntry != null)
+          expectedHits++;
+        else {
+          int newEntry = random.nextInt(100) - 1;
+          Assert.assertTrue(ip.parse(ipString));
+          cache.put(ip, newEntry);
+          expected.put(ipString, newEntry);
+        }
+      }
+
+      Assert.assertEquals(cache.getHits(), expectedHits);
+      Assert.assertEquals(cache.getMisses(), OPERATIONS - expectedHits);
+      Assert.assertEquals(cache.getEvictions(), evictions[0]);
+    }
+  }
+
+  @Test
+  public void lruEvictsLeastRecentlyRequested() {
+    IpGeoCache cache = new IpGeoCache(2, IpGeoCache.EvictionPolicy.LRU);
+    cache.put(ip("10.0.0.1"), 1);
+    cache.put(ip("10.0.0.2"), 2);
+    Assert.assertEquals(cache.get(ip("10.0.0.1")), 1);
+    cache.put(ip("10.0.0.3"), 3);
+
+    Assert.assertEquals(cache.get(ip("10.0.0.2")), IpGeoCache.NOT_CACHED);
+    Assert.assertEquals(cache.get(ip("10.0.0.1")), 1);
+    Assert.assertEquals(cache.get(ip("10.0.0.3")), 3);
+    Assert.assertEquals(cache.getEvictions(), 1);
+  }
+
+  @Test
+  public void fifoEvictsFirstAdded() {
+    IpGeoCache cache = new IpGeoCache(2, IpGeoCache.EvictionPolicy.FIFO);
+    cache.put(ip("10.0.0.1"), 1);
+    cache.put(ip("10.0.0.2"), 2);
+    Assert.assertEquals(cache.get(ip("10.0.0.1")), 1);
+    cache.put(ip("10.0.0.3"), 3);
+
+    Assert.assertEquals(cache.get(ip("10.0.0.1")), IpGeoCache.NOT_CACHED);
+    Assert.assertEquals(cache.get(ip("10.0.0.2")), 2);
+    Assert.assertEquals(cache.get(ip("10.0.0.3")), 3);
+  }
+
+  @Test
+  public void ip4DoesNotCollideWithIp6() {
+    IpGeoCache cache = new IpGeoCache(16, IpGeoCache.EvictionPolicy.LRU);
+    cache.put(ip("10.0.0.1"), 1);
+    cache.put(ip("::10.0.0.1"), 2);
+
+    Assert.assertEquals(cache.get(ip("10.0.0.1")), 1);
+    Assert.assertEquals(cache.get(ip("::10.0.0.1")), 2);
+    // the same address in different notations shares one entry.
+    Assert.assertEquals(cache.get(ip("::ffff:10.0.0.1")), 1);
+    Assert.assertEquals(cache.get(ip("2001:DB8::1")), IpGeoCache.NOT_CACHED);
+    cache.put(ip("2001:db8::1"), 3);
+    Assert.assertEquals(cache.get(ip("2001:0db8:0:0::0001")), 3);
+  }
+
+  @Test
+  public void repeatedRawIpIsNotParsedAgain() {
+    IpGeoCache cache = new IpGeoCache(1, IpGeoCache.EvictionPolicy.LRU);
+    IpAddress parsed = new IpAddress();
+    Assert.assertEquals(cache.get("10.0.0.1", parsed), IpGeoCache.NOT_CACHED);
+    Assert.assertEquals(parsed.getIp4(), 0x0a000001);
+    cache.put(parsed, 1);
+    Assert.assertEquals(cache.get("10.0.0.1", parsed), 1);
+
+    IpAddress notParsed = new IpAddress();
+    Assert.assertEquals(cache.get(new String("10.0.0.1"), notParsed), 1);
+    Assert.assertFalse(notParsed.isIpv4(), "IP was parsed again");
+    Assert.assertEquals(cache.getHits(), 2);
+
+    // the slot of the last hit is re-used for a different IP.
+    cache.put(ip("10.0.0.2"), 2);
+    Assert.assertEquals(cache.get("10.0.0.1", parsed), IpGeoCache.NOT_CACHED);
+    Assert.assertEquals(cache.get("10.0.0.2", parsed), 2);
+  }
+
+  @Test
+  public void invalidRawIpIsNotCached() {
+    IpGeoCache cache = new IpGeoCache(16, IpGeoCache.EvictionPolicy.LRU);
+    cache.put(ip("10.0.0.1"), 1);
+    Assert.assertEquals(cache.get("10.0.0.1", new IpAddress()), 1);
+
+    Assert.assertEquals(cache.get("example.com", new IpAddress()), -1);
+    Assert.assertEquals(cache.get("10.0.0.256", new IpAddress()), -1);
+    Assert.assertEquals(cache.getHits(), 1);
+    Assert.assertEquals(cache.getMisses(), 0);
+  }
+
+  @Test
+  public void zeroCapacityCachesNothing() {
+    IpGeoCache cache = new IpGeoCache(0, IpGeoCache.EvictionPolicy.LRU);
+    cache.put(ip("10.0.0.1"), 1);
+
+    Assert.assertEquals(cache.get(ip("10.0.0.1")), IpGeoCache.NOT_CACHED);
+    Assert.assertEquals(cache.getMisses(), 1);
+    Assert.assertEquals(cache.getEvictions(), 0);
+  }
+
+  @Test
+  public void getAndPutDoNotAllocate() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+      throw new SkipException("Allocation counters of threads not supported by this JVM.");
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threadBean.isThreadAllocatedMemorySupported())
+      throw new SkipException("Allocation counters of threads not supported by this JVM.");
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    IpGeoCache cache = new IpGeoCache(IpGeoCache.DEFAULT_CAPACITY, IpGeoCache.EvictionPolicy.LRU);
+    IpAddress[] ips = new IpAddress[2 * IpGeoCache.DEFAULT_CAPACITY];
+    for (int i = 0; i < ips.length; i++)
+      ips[i] = ip("10." + (i >>> 16) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff));
+    Random random = new Random(0);
+    int[] order = new int[OPERATIONS];
+    for (int i = 0; i < order.length; i++)
+      order[i] = random.nextInt(ips.length);
+    // warm up, so the code is compiled.
+    getOrPut(cache, ips, order);
+
+    long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    getOrPut(cache, ips, order);
+    long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+    Assert.assertTrue(allocated < 1024, "Allocated " + allocated + " bytes for " + OPERATIONS + " operations");
+  }
+
+  private void getOrPut(IpGeoCache cache, IpAddress[] ips, int[] order) {
+    for (int i : order)
+      if (cache.get(ips[i]) == IpGeoCache.NOT_CACHED)
+        cache.put(ips[i], i);
+  }
+
+  private IpAddress ip(String ip) {
+    IpAddress res = new IpAddress();
+    Assert.assertTrue(res.parse(ip), "Invalid IP " + ip);
+    return res;
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link IpGeoResolver#merge(IpValueResolver, IpValueResolver, IpAsnResolver, IpRangeIndex.Backend)} on source
+ * data with nested ranges.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpGeoResolverTest {
+  @Test
+  public void radixTrieMergeResolvesMostSpecificRange() throws IOException {
+    IpGeoResolver res = IpGeoResolver.merge(cityResolver(), countryResolver(), asnResolver(),
+        IpRangeIndex.Backend.RADIX_TRIE);
+
+    Assert.assertEquals(res.getSourceBackend(), IpRangeIndex.Backend.RADIX_TRIE);
+    assertNested(res);
+  }
+
+  @Test
+  public void snapshotRecordsSourceBackend() throws IOException {
+    File file = File.createTempFile("diqube-test-", "-" + GeoIpSnapshot.FILE_NAME);
+    try {
+      GeoIpSnapshot.write(file, cityResolver(), countryResolver(), asnResolver(), IpRangeIndex.Backend.RADIX_TRIE);
+      IpGeoResolver res = GeoIpSnapshot.open(file).getGeoResolver();
+
+      Assert.assertEquals(res.getSourceBackend(), IpRangeIndex.Backend.RADIX_TRIE);
+      assertNested(res);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void snapshotSourceTablesCanBeMergedAgain() throws IOException {
+    File file = File.createTempFile("diqube-test-", "-" + GeoIpSnapshot.FILE_NAME);
+    try {
+      GeoIpSnapshot.write(file, cityResolver(), countryResolver(), asnResolver(), IpRangeIndex.Backend.SORTED_RANGES);
+      GeoIpSnapshot snapshot = GeoIpSnapshot.open(file);
+      Assert.assertEquals(snapshot.getGeoResolver().getSourceBackend(), IpRangeIndex.Backend.SORTED_RANGES);
+
+      IpGeoResolver res = IpGeoResolver.merge(snapshot.getCityResolver(), snapshot.getCountryResolver(),
+          snapshot.getAsnResolver(), IpRangeIndex.Backend.RADIX_TRIE);
+      assertNested(res);
+    } finally {
+      file.delete();
+    }
+  }
+
+  private void assertNested(IpGeoResolver res) {
+    assertCity(res, "10.0.255.255", "Outer");
+    assertCity(res, "10.1.0.0", "Inner");
+    assertCity(res, "10.1.2.3", "Inner");
+    assertCity(res, "10.1.255.255", "Inner");
+    assertCity(res, "10.2.0.0", "Outer");
+    assertCity(res, "11.0.0.0", null);
+    assertCity(res, "2001:db8:1::1", "Inner");
+    assertCity(res, "2001:db8:2::1", "Outer");
+
+    IpAddress ip = new IpAddress();
+    ip.parse("10.1.2.3");
+    Assert.assertEquals(res.getCountry(res.resolve(ip)), "Country");
+    Assert.assertEquals(res.getAsn(res.resolve(ip)), "AS2 inner");
+    ip.parse("10.2.0.0");
+    Assert.assertEquals(res.getAsn(res.resolve(ip)), "AS1 outer");
+  }
+
+  private void assertCity(IpGeoResolver res, String ip, String expected) {
+    IpAddress addr = new IpAddress();
+    Assert.assertTrue(addr.parse(ip), "Invalid IP " + ip);
+    Assert.assertEquals(res.getCity(res.resolve(addr)), expected, "Wrong city for " + ip);
+  }
+
+  private IpValueResolver cityResolver() throws IOException {
+    IpValueResolver res = new IpValueResolver();
+    res.load(csv("network,geoname_id\n10.0.0.0/8,1\n10.1.0.0/16,2\n"),
+        csv("network,geoname_id\n2001:db8::/32,1\n2001:db8:1::/48,2\n"),
+        csv("geoname_id,locale_code,city_name\n1,en,Outer\n2,en,Inner\n"), "city_name");
+    return res;
+  }
+
+  private IpValueResolver countryResolver() throws IOException {
+    IpValueResolver res = new IpValueResolver();
+    res.load(csv("network,geoname_id\n10.0.0.0/8,1\n"), csv("network,geoname_id\n"),
+        csv("geoname_id,locale_code,country_name\n1,en,Country\n"), "country_name");
+    return res;
+  }
+
+  private IpAsnResolver asnResolver() throws IOException {
+    IpAsnResolver res = new IpAsnResolver();
+    // 10.0.0.0 - 10.255.255.255 and 10.1.0.0 - 10.1.255.255
+    res.load(csv("167772160,184549375,AS1 outer\n167837696,167903231,AS2 inner\n"), csv(""));
+    return res;
+  }
+
+  private InputStream csv(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+}
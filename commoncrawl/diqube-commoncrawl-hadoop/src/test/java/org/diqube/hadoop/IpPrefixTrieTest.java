@@ -0,0 +1,243 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link IpPrefixTrie} against {@link IpRangeTableIndex} and against a brute-force longest-prefix match.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpPrefixTrieTest {
+  private static final int NUM_RANGES = 2_000;
+  private static final int NUM_LOOKUPS = 20_000;
+
+  @Test
+  public void ip4SameAsSortedRanges() {
+    Random random = new Random(1);
+    // random non-overlapping ranges that do not need to be aligned to networks.
+    int[] points = new int[2 * NUM_RANGES];
+    for (int i = 0; i < points.length; i++)
+      points[i] = random.nextInt() ^ Integer.MIN_VALUE;
+    Arrays.sort(points);
+    Ip4RangeTable.Builder builder = new Ip4RangeTable.Builder();
+    for (int i = 0; i < NUM_RANGES; i++) {
+      if (i > 0 && points[2 * i] == points[2 * i - 1])
+        continue;
+      builder.add(points[2 * i] ^ Integer.MIN_VALUE, points[2 * i + 1] ^ Integer.MIN_VALUE, i);
+    }
+    Ip4RangeTable table = builder.build();
+    IpRangeIndex trie = IpPrefixTrie.create(table, new Ip6RangeTable.Builder().build());
+    IpRangeIndex sorted = new IpRangeTableIndex(table, new Ip6RangeTable.Builder().build());
+
+    for (int i = 0; i < table.size(); i++)
+      for (int ip : new int[] { table.getStart(i) - 1, table.getStart(i), table.getEnd(i), table.getEnd(i) + 1 })
+        Assert.assertEquals(trie.lookup4(ip), sorted.lookup4(ip), "Wrong value for " + Integer.toUnsignedString(ip));
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      int ip = random.nextInt();
+      Assert.assertEquals(trie.lookup4(ip), sorted.lookup4(ip), "Wrong value for " + Integer.toUnsignedString(ip));
+    }
+  }
+
+  @Test
+  public void ip6SameAsSortedRanges() {
+    Random random = new Random(2);
+    // use few distinct "hi" values, so there are ranges inside a single "hi" and ranges spanning multiple.
+    long[][] points = new long[2 * NUM_RANGES][];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new long[] { random.nextInt(64) - 32, random.nextLong() };
+    Arrays.sort(points, UNSIGNED_128);
+    Ip6RangeTable.Builder builder = new Ip6RangeTable.Builder();
+    for (int i = 0; i < NUM_RANGES; i++) {
+      if (i > 0 && UNSIGNED_128.compare(points[2 * i], points[2 * i - 1]) == 0)
+        continue;
+      builder.add(points[2 * i][0], points[2 * i][1], points[2 * i + 1][0], points[2 * i + 1][1], i);
+    }
+    Ip6RangeTable table = builder.build();
+    IpRangeIndex trie = IpPrefixTrie.create(new Ip4RangeTable.Builder().build(), table);
+    IpRangeIndex sorted = new IpRangeTableIndex(new Ip4RangeTable.Builder().build(), table);
+
+    for (int i = 0; i < table.size(); i++) {
+      long startHi = table.getStartHi(i);
+      long startLo = table.getStartLo(i);
+      long endHi = table.getEndHi(i);
+      long endLo = table.getEndLo(i);
+      assertSame6(trie, sorted, startHi - ((startLo == 0L) ? 1 : 0), startLo - 1);
+      assertSame6(trie, sorted, startHi, startLo);
+      assertSame6(trie, sorted, endHi, endLo);
+      assertSame6(trie, sorted, endHi + ((endLo == -1L) ? 1 : 0), endLo + 1);
+    }
+    for (int i = 0; i < NUM_LOOKUPS; i++)
+      assertSame6(trie, sorted, random.nextInt(64) - 32, random.nextLong());
+  }
+
+  @Test
+  public void ip4LongestPrefixMatch() {
+    Random random = new Random(3);
+    // nested networks: use few distinct addresses with random prefix lengths.
+    int[] bases = new int[16];
+    for (int i = 0; i < bases.length; i++)
+      bases[i] = random.nextInt();
+    List<long[]> prefixes = new ArrayList<>();
+    Ip4RangeTable.Builder builder = new Ip4RangeTable.Builder();
+    for (int i = 0; i < NUM_RANGES / 10; i++) {
+      int len = random.nextInt(33);
+      int mask = (int) (0xffffffffL >>> len);
+      int start = bases[random.nextInt(bases.length)] & ~mask;
+      int end = start | mask;
+      prefixes.add(new long[] { start, end, len, i });
+      builder.add(start, end, i);
+    }
+    IpRangeIndex trie = IpPrefixTrie.create(builder.build(), new Ip6RangeTable.Builder().build());
+
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      int base = bases[random.nextInt(bases.length)];
+      int ip = (i % 2 == 0) ? base ^ (1 << random.nextInt(32)) : random.nextInt();
+      // brute force: longest containing prefix, the last one added if the same prefix was added multiple times.
+      int expected = IpRangeIndex.NO_VALUE;
+      int expectedLen = -1;
+      for (long[] prefix : prefixes) {
+        boolean contains = Integer.compareUnsigned((int) prefix[0], ip) <= 0
+            && Integer.compareUnsigned(ip, (int) prefix[1]) <= 0;
+        if (contains && prefix[2] >= expectedLen) {
+          expected = (int) prefix[3];
+          expectedLen = (int) prefix[2];
+        }
+      }
+      Assert.assertEquals(trie.lookup4(ip), expected, "Wrong value for " + Integer.toUnsignedString(ip));
+    }
+  }
+
+  @Test
+  public void ip6LongestPrefixMatch() {
+    Random random = new Random(4);
+    long[][] bases = new long[16][];
+    for (int i = 0; i < bases.length; i++)
+      bases[i] = new long[] { random.nextLong(), random.nextLong() };
+    List<long[]> prefixes = new ArrayList<>();
+    Ip6RangeTable.Builder builder = new Ip6RangeTable.Builder();
+    for (int i = 0; i < NUM_RANGES / 10; i++) {
+      int len = random.nextInt(129);
+      long[] base = bases[random.nextInt(bases.length)];
+      long maskHi = IpSubnet.hostMaskHi(128 - len);
+      long maskLo = IpSubnet.hostMaskLo(128 - len);
+      long startHi = base[0] & ~maskHi;
+      long startLo = base[1] & ~maskLo;
+      prefixes.add(new long[] { startHi, startLo, startHi | maskHi, startLo | maskLo, len, i });
+      builder.add(startHi, startLo, startHi | maskHi, startLo | maskLo, i);
+    }
+    IpRangeIndex trie = IpPrefixTrie.create(new Ip4RangeTable.Builder().build(), builder.build());
+
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      long[] base = bases[random.nextInt(bases.length)];
+      long[] ip;
+      if (i % 2 == 0) {
+        int bit = random.nextInt(128);
+        ip = new long[] { base[0] ^ ((bit < 64) ? 1L << bit : 0L), base[1] ^ ((bit >= 64) ? 1L << (bit - 64) : 0L) };
+      } else
+        ip = new long[] { random.nextLong(), random.nextLong() };
+
+      int expected = IpRangeIndex.NO_VALUE;
+      long expectedLen = -1;
+      for (long[] prefix : prefixes) {
+        boolean contains = UNSIGNED_128.compare(new long[] { prefix[0], prefix[1] }, ip) <= 0
+            && UNSIGNED_128.compare(ip, new long[] { prefix[2], prefix[3] }) <= 0;
+        if (contains && prefix[4] >= expectedLen) {
+          expected = (int) prefix[5];
+          expectedLen = prefix[4];
+        }
+      }
+      Assert.assertEquals(trie.lookup6(ip[0], ip[1]), expected,
+          "Wrong value for " + Long.toHexString(ip[0]) + ":" + Long.toHexString(ip[1]));
+    }
+  }
+
+  @Test
+  public void fullRanges() {
+    IpRangeIndex trie = IpPrefixTrie.create(new Ip4RangeTable.Builder().add(0, -1, 4).build(),
+        new Ip6RangeTable.Builder().add(0L, 0L, -1L, -1L, 6).build());
+
+    Assert.assertEquals(trie.lookup4(0), 4);
+    Assert.assertEquals(trie.lookup4(-1), 4);
+    Assert.assertEquals(trie.lookup6(0L, 0L), 6);
+    Assert.assertEquals(trie.lookup6(-1L, -1L), 6);
+    Assert.assertEquals(trie.lookup6(Long.MIN_VALUE, 0L), 6);
+  }
+
+  @Test
+  public void lookupBatchSameAsLookup() {
+    Random random = new Random(5);
+    Ip4RangeTable ip4Table = new Ip4RangeTable.Builder().add(0x0a000000, 0x0affffff, 1) // 10.0.0.0/8
+        .add(0xc0a80000, 0xc0a8ffff, 2) // 192.168.0.0/16
+        .build();
+    Ip6RangeTable ip6Table = new Ip6RangeTable.Builder().add(0x20010db800000000L, 0L, 0x20010db8ffffffffL, -1L, 3)
+        .build();
+
+    IpAddress[] ips = new IpAddress[1000];
+    for (int i = 0; i < ips.length; i++) {
+      ips[i] = new IpAddress();
+      String ip;
+      switch (random.nextInt(3)) {
+      case 0:
+        ip = ((random.nextBoolean()) ? "10." + random.nextInt(256) : "192.168") + "." + random.nextInt(256) + "."
+            + random.nextInt(256);
+        break;
+      case 1:
+        ip = ((random.nextBoolean()) ? "2001:db8:" : "2001:db9:") + Integer.toHexString(random.nextInt(0x10000))
+            + "::" + Integer.toHexString(random.nextInt(0x10000));
+        break;
+      default:
+        ip = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+      }
+      Assert.assertTrue(ips[i].parse(ip), "Could not parse " + ip);
+    }
+
+    for (IpRangeIndex.Backend backend : IpRangeIndex.Backend.values()) {
+      IpRangeIndex index = backend.create(ip4Table, ip6Table);
+      int[] res = new int[ips.length];
+      index.lookupBatch(ips, ips.length, res);
+      for (int i = 0; i < ips.length; i++) {
+        IpAddress ip = ips[i];
+        int expected = (ip.isIpv4()) ? index.lookup4(ip.getIp4()) : index.lookup6(ip.getHi(), ip.getLo());
+        Assert.assertEquals(res[i], expected, backend + ": Wrong value at " + i);
+      }
+    }
+  }
+
+  private static void assertSame6(IpRangeIndex trie, IpRangeIndex sorted, long ipHi, long ipLo) {
+    Assert.assertEquals(trie.lookup6(ipHi, ipLo), sorted.lookup6(ipHi, ipLo),
+        "Wrong value for " + Long.toHexString(ipHi) + ":" + Long.toHexString(ipLo));
+  }
+
+  /** Orders 128 bit addresses given as { hi, lo }. */
+  private static final Comparator<long[]> UNSIGNED_128 = (a, b) -> {
+    int res = Long.compareUnsigned(a[0], b[0]);
+    return (res != 0) ? res : Long.compareUnsigned(a[1], b[1]);
+  };
+}
@@ -0,0 +1,185 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Benchmarks the lookups of all {@link IpRangeIndex.Backend}s against each other for tables of different sizes.
+ *
+ * <p>
+ * The tables contain random non-overlapping CIDR networks, which resembles the GeoLite data: For IPv4 with prefix
+ * lengths between /16 and /28, for IPv6 between /32 and /64. Half of the looked up addresses are inside a network,
+ * the other half are random.
+ *
+ * @author Bastian Gloeckle
+ */
+public class IpRangeIndexBenchmarkTest {
+  private static final int[] TABLE_SIZES = new int[] { 1_000, 10_000, 100_000, 1_000_000 };
+  private static final int NUM_LOOKUPS = 1_000_000;
+
+  /** Sum of the lookup results, so the JIT cannot remove the lookups. */
+  private long sink = 0;
+
+  @Test
+  public void lookup4() {
+    Benchmarks.skipUnlessEnabled();
+
+    Random random = new Random(0);
+    for (int tableSize : TABLE_SIZES) {
+      Ip4RangeTable table = randomTable4(random, tableSize);
+      int[] ips = new int[NUM_LOOKUPS];
+      for (int i = 0; i < NUM_LOOKUPS; i++) {
+        if (i % 2 == 0) {
+          int idx = random.nextInt(table.size());
+          ips[i] = table.getStart(idx) | (random.nextInt() & (table.getEnd(idx) ^ table.getStart(idx)));
+        } else
+          ips[i] = random.nextInt();
+      }
+
+      int[] expected = null;
+      for (IpRangeIndex.Backend backend : IpRangeIndex.Backend.values()) {
+        IpRangeIndex index = backend.create(table, new Ip6RangeTable.Builder().build());
+
+        int[] res = new int[NUM_LOOKUPS];
+        for (int i = 0; i < NUM_LOOKUPS; i++)
+          res[i] = index.lookup4(ips[i]);
+        if (expected == null)
+          expected = res;
+        else
+          Assert.assertTrue(Arrays.equals(expected, res), backend + " returned different results.");
+
+        long nanos = Benchmarks.measure(() -> {
+          for (int i = 0; i < NUM_LOOKUPS; i++)
+            sink += index.lookup4(ips[i]);
+        });
+        Benchmarks.report("lookup4 %-13s %,9d ranges: %6.1f ns/lookup", backend, table.size(),
+            (double) nanos / NUM_LOOKUPS);
+      }
+    }
+  }
+
+  @Test
+  public void lookup6() {
+    Benchmarks.skipUnlessEnabled();
+
+    Random random = new Random(0);
+    for (int tableSize : TABLE_SIZES) {
+      Ip6RangeTable table = randomTable6(random, tableSize);
+      long[] ipHis = new long[NUM_LOOKUPS];
+      long[] ipLos = new long[NUM_LOOKUPS];
+      randomAddresses(random, table, ipHis, ipLos);
+
+      int[] expected = null;
+      for (IpRangeIndex.Backend backend : IpRangeIndex.Backend.values()) {
+        IpRangeIndex index = backend.create(new Ip4RangeTable.Builder().build(), table);
+
+        int[] res = new int[NUM_LOOKUPS];
+        for (int i = 0; i < NUM_LOOKUPS; i++)
+          res[i] = index.lookup6(ipHis[i], ipLos[i]);
+        if (expected == null)
+          expected = res;
+        else
+          Assert.assertTrue(Arrays.equals(expected, res), backend + " returned different results.");
+
+        long nanos = Benchmarks.measure(() -> {
+          for (int i = 0; i < NUM_LOOKUPS; i++)
+            sink += index.lookup6(ipHis[i], ipLos[i]);
+        });
+        Benchmarks.report("lookup6 %-13s %,9d ranges: %6.1f ns/lookup", backend, table.size(),
+            (double) nanos / NUM_LOOKUPS);
+      }
+    }
+  }
+
+  /**
+   * @return A table with about the given number of non-overlapping random networks, the value of each is its index.
+   */
+  private static Ip4RangeTable randomTable4(Random random, int size) {
+    // sort unsigned, like the addresses are compared.
+    int[] ips = new int[size];
+    for (int i = 0; i < size; i++)
+      ips[i] = random.nextInt() ^ Integer.MIN_VALUE;
+    Arrays.sort(ips);
+
+    Ip4RangeTable.Builder builder = new Ip4RangeTable.Builder();
+    int prevEnd = 0;
+    boolean first = true;
+    for (int i = 0; i < size; i++) {
+      int mask = -1 >>> (16 + random.nextInt(13));
+      int start = (ips[i] ^ Integer.MIN_VALUE) & ~mask;
+      if (!first && Integer.compareUnsigned(start, prevEnd) <= 0)
+        // overlaps the previous network.
+        continue;
+      builder.add(start, start | mask, i);
+      prevEnd = start | mask;
+      first = false;
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return A table with about the given number of non-overlapping random networks, the value of each is its index.
+   */
+  private static Ip6RangeTable randomTable6(Random random, int size) {
+    long[] his = new long[size];
+    // sort unsigned, like the addresses are compared.
+    for (int i = 0; i < size; i++)
+      his[i] = random.nextLong() ^ Long.MIN_VALUE;
+    Arrays.sort(his);
+    for (int i = 0; i < size; i++)
+      his[i] ^= Long.MIN_VALUE;
+
+    Ip6RangeTable.Builder builder = new Ip6RangeTable.Builder();
+    long prevEndHi = 0L;
+    boolean first = true;
+    for (int i = 0; i < size; i++) {
+      long mask = IpSubnet.hostMaskHi(128 - 32 - random.nextInt(33));
+      long startHi = his[i] & ~mask;
+      if (!first && Long.compareUnsigned(startHi, prevEndHi) <= 0)
+        // overlaps the previous network.
+        continue;
+      builder.add(startHi, 0L, startHi | mask, -1L, i);
+      prevEndHi = startHi | mask;
+      first = false;
+    }
+    return builder.build();
+  }
+
+  /**
+   * Fill the arrays with addresses, every second is inside a random range of the table.
+   */
+  private static void randomAddresses(Random random, Ip6RangeTable table, long[] ipHis, long[] ipLos) {
+    for (int i = 0; i < ipHis.length; i++) {
+      if (i % 2 == 0) {
+        int idx = random.nextInt(table.size());
+        long mask = table.getEndHi(idx) ^ table.getStartHi(idx);
+        ipHis[i] = table.getStartHi(idx) | (random.nextLong() & mask);
+      } else
+        ipHis[i] = random.nextLong();
+      ipLos[i] = random.nextLong();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link ParallelGzipInputStream} and benchmarks it against {@link GZIPInputStream}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class ParallelGzipInputStreamTest {
+  private static final int[] THREADS = new int[] { 1, 2, 4 };
+  private static final int NUM_RECORDS = 2_000;
+  private static final int NUM_BENCHMARK_RECORDS = 20_000;
+
+  @Test
+  public void sameDataAsRecords() throws IOException {
+    List<byte[]> records = syntheticWat(new Random(0), NUM_RECORDS);
+    // an empty member.
+    records.add(NUM_RECORDS / 2, new byte[0]);
+    assertInflatesTo(gzip(records, Deflater.DEFAULT_COMPRESSION), records);
+  }
+
+  @Test
+  public void falseHeaderInsideMember() throws IOException {
+    List<byte[]> records = syntheticWat(new Random(1), 10);
+    // stored without compression, the data of the record is contained in the member as-is: a complete, valid gzip
+    // member with a valid CRC inside of the member.
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    record.write("before".getBytes(StandardCharsets.UTF_8));
+    record.write(gzip(records.subList(0, 2), Deflater.DEFAULT_COMPRESSION));
+    record.write("after".getBytes(StandardCharsets.UTF_8));
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(records.subList(2, 5), Deflater.DEFAULT_COMPRESSION));
+    compressed.write(gzip(Arrays.asList(record.toByteArray()), Deflater.NO_COMPRESSION));
+    compressed.write(gzip(records.subList(5, 10), Deflater.DEFAULT_COMPRESSION));
+
+    List<byte[]> expected = new ArrayList<>(records.subList(2, 5));
+    expected.add(record.toByteArray());
+    expected.addAll(records.subList(5, 10));
+    assertInflatesTo(compressed.toByteArray(), expected);
+  }
+
+  @Test
+  public void memberLargerThanChunk() throws IOException {
+    Random random = new Random(2);
+    List<byte[]> records = syntheticWat(random, 20);
+    // random data does not compress, so the member is larger than the chunks.
+    byte[] large = new byte[3 * ParallelGzipInputStream.CHUNK_SIZE + 17];
+    random.nextBytes(large);
+    records.add(10, large);
+    assertInflatesTo(gzip(records, Deflater.DEFAULT_COMPRESSION), records);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void corruptMemberFails() throws IOException {
+    byte[] compressed = gzip(syntheticWat(new Random(3), NUM_RECORDS), Deflater.DEFAULT_COMPRESSION);
+    compressed[compressed.length / 2] ^= 0x55;
+    inflate(compressed, 2);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void truncatedInputFails() throws IOException {
+    byte[] compressed = gzip(syntheticWat(new Random(4), 100), Deflater.DEFAULT_COMPRESSION);
+    inflate(Arrays.copyOf(compressed, compressed.length - 5), 2);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void readAfterCloseFails() throws IOException {
+    byte[] compressed = gzip(syntheticWat(new Random(5), NUM_RECORDS), Deflater.DEFAULT_COMPRESSION);
+    InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), 4);
+    in.read(new byte[100]);
+    // members are being inflated concurrently while closing.
+    in.close();
+    in.read();
+  }
+
+  @Test
+  public void benchmark() throws IOException {
+    Benchmarks.skipUnlessEnabled();
+
+    List<byte[]> records = syntheticWat(new Random(6), NUM_BENCHMARK_RECORDS);
+    byte[] compressed = gzip(records, Deflater.DEFAULT_COMPRESSION);
+    long length = records.stream().mapToLong(r -> r.length).sum();
+
+    long nanos = Benchmarks.measure(() -> {
+      try {
+        readFully(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    report("GZIPInputStream", length, nanos);
+
+    for (int threads : new int[] { 1, 2, 4, 8 }) {
+      nanos = Benchmarks.measure(() -> {
+        try {
+          inflate(compressed, threads);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      report("ParallelGzipInputStream, " + threads + " threads", length, nanos);
+    }
+  }
+
+  private void report(String name, long length, long nanos) {
+    Benchmarks.report("%-37s %,d MB in %6.1f ms: %6.1f MB/s", name, length >> 20, nanos / 1e6,
+        length / (nanos / 1e9) / (1 << 20));
+  }
+
+  private void assertInflatesTo(byte[] compressed, List<byte[]> records) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (byte[] record : records)
+      expected.write(record);
+    for (int threads : THREADS)
+      Assert.assertTrue(Arrays.equals(inflate(compressed, threads), expected.toByteArray()),
+          "Wrong data when inflating using " + threads + " threads");
+  }
+
+  private static byte[] inflate(byte[] compressed, int threads) throws IOException {
+    try (InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), threads)) {
+      return readFully(in);
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    // not a multiple of anything, so reads end inside of members.
+    byte[] buf = new byte[4099];
+    int read;
+    while ((read = in.read(buf)) != -1)
+      res.write(buf, 0, read);
+    return res.toByteArray();
+  }
+
+  /**
+   * @return The records compressed as one gzip member each, like in a .wat.gz file.
+   */
+  /* package */ static byte[] gzip(List<byte[]> records, int level) throws IOException {
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    for (byte[] record : records) {
+      // closing the ByteArrayOutputStream has no effect.
+      try (GZIPOutputStream out = new GZIPOutputStream(res) {
+        {
+          def.setLevel(level);
+        }
+      }) {
+        out.write(record);
+      }
+    }
+    return res.toByteArray();
+  }
+
+  /**
+   * @return WARC records with JSON metadata of random URIs, similar to the records of a WAT file.
+   */
+  /* package */ static List<byte[]> syntheticWat(Random random, int numRecords) throws IOException {
+    List<byte[]> res = new ArrayList<>();
+    for (int i = 0; i < numRecords; i++) {
+      String host = "www.host" + random.nextInt(numRecords / 10 + 1) + ".com";
+      StringBuilder links = new StringBuilder();
+      for (int j = random.nextInt(100); j > 0; j--)
+        links.append(String.format("{\"path\":\"A@/href\",\"url\":\"http://%s/page/%d\",\"text\":\"Link %d\"},",
+            (random.nextInt(4) == 0) ? "www.other" + random.nextInt(1000) + ".org" : host, random.nextInt(10_000), j));
+      String json = String.format("{\"Envelope\":{\"WARC-Header-Metadata\":{\"WARC-Target-URI\":\"http://%s/%d\","
+          + "\"WARC-IP-Address\":\"%d.%d.%d.%d\",\"Content-Length\":\"%d\"},\"Payload-Metadata\":{"
+          + "\"HTTP-Response-Metadata\":{\"Headers\":{\"Server\":\"Apache/2.%d\"},\"HTML-Metadata\":{"
+          + "\"Links\":[%s{}]}}}}}", host, random.nextInt(), random.nextInt(256), random.nextInt(256),
+          random.nextInt(256), random.nextInt(256), random.nextInt(100_000), random.nextInt(5), links);
+      res.add(warcRecord(random, "http://" + host + "/" + i, json.getBytes(StandardCharsets.UTF_8)));
+    }
+    return res;
+  }
+
+  /**
+   * @return A WARC metadata record with the given JSON content.
+   */
+  /* package */ static byte[] warcRecord(Random random, String targetUri, byte[] content) throws IOException {
+    String header = "WARC/1.0\r\nWARC-Type: metadata\r\nWARC-Target-URI: " + targetUri + "\r\n"
+        + "WARC-Date: 2015-08-28T09:37:43Z\r\nWARC-Record-ID: <urn:uuid:"
+        + new UUID(random.nextLong(), random.nextLong()) + ">\r\nContent-Type: application/json\r\n"
+        + "Content-Length: " + content.length + "\r\n\r\n";
+    ByteArrayOutputStream res = new ByteArrayOutputStream();
+    res.write(header.getBytes(StandardCharsets.UTF_8));
+    res.write(content);
+    res.write("\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+    return res.toByteArray();
+  }
+}
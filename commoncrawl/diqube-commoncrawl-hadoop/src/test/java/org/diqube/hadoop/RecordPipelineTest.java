@@ -0,0 +1,286 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link RecordPipeline} and benchmarks how building rows scales with the number of its threads.
+ *
+ * @author Bastian Gloeckle
+ */
+public class RecordPipelineTest {
+  private static final int NUM_RECORDS = 10_000;
+  private static final int NUM_BENCHMARK_RECORDS = 20_000;
+  /** Time limit of the tests, which would hang if the pipeline did not finish or propagate a failure correctly. */
+  private static final long TIMEOUT_MS = 60_000;
+
+  @DataProvider(name = "threads")
+  public Object[][] threads() {
+    return new Object[][] { { 1 }, { 2 }, { 3 }, { 8 } };
+  }
+
+  @DataProvider(name = "failingRecords")
+  public Object[][] failingRecords() {
+    return new Object[][] { { 0 }, { 100 }, { NUM_RECORDS - 1 } };
+  }
+
+  @Test(dataProvider = "threads", timeOut = TIMEOUT_MS)
+  public void everyRecordWrittenOnce(int numThreads) throws IOException, InterruptedException {
+    Random random = new Random(numThreads);
+    List<Integer> slowRecords = new ArrayList<>();
+    for (int i = 0; i < NUM_RECORDS / 100; i++)
+      slowRecords.add(random.nextInt(NUM_RECORDS));
+    // the workers finish in a different order than the input, the last record is finished last.
+    slowRecords.add(NUM_RECORDS - 1);
+
+    List<Integer> written = run(numThreads, NUM_RECORDS, record -> {
+    }, record -> {
+      if (slowRecords.contains(record))
+        Thread.sleep(record == NUM_RECORDS - 1 ? 50 : 1);
+    }, record -> {
+    });
+    assertEachWrittenOnce(written, NUM_RECORDS);
+    assertThreadsTerminate();
+  }
+
+  @Test(timeOut = TIMEOUT_MS)
+  public void emptyInput() throws IOException, InterruptedException {
+    Assert.assertEquals(run(4, 0, noop(), noop(), noop()), new ArrayList<>(), "Expected no records");
+    assertThreadsTerminate();
+  }
+
+  @Test(timeOut = TIMEOUT_MS)
+  public void fewerRecordsThanThreads() throws IOException, InterruptedException {
+    assertEachWrittenOnce(run(8, 3, noop(), noop(), noop()), 3);
+    assertThreadsTerminate();
+  }
+
+  @Test(dataProvider = "failingRecords", timeOut = TIMEOUT_MS)
+  public void readerExceptionIsThrown(int failingRecord) throws InterruptedException {
+    IOException failure = new IOException("test");
+    assertFails(failure, failure, record -> {
+      if (record == failingRecord)
+        throw failure;
+    }, noop(), noop());
+  }
+
+  @Test(dataProvider = "failingRecords", timeOut = TIMEOUT_MS)
+  public void workerExceptionIsThrown(int failingRecord) throws InterruptedException {
+    IOException failure = new IOException("test");
+    assertFails(failure, failure, noop(), record -> {
+      if (record == failingRecord)
+        throw failure;
+    }, noop());
+  }
+
+  @Test(dataProvider = "failingRecords", timeOut = TIMEOUT_MS)
+  public void workerRuntimeExceptionIsWrapped(int failingRecord) throws InterruptedException {
+    RuntimeException failure = new IllegalStateException("test");
+    assertFails(null, failure, noop(), record -> {
+      if (record == failingRecord)
+        throw failure;
+    }, noop());
+  }
+
+  @Test(dataProvider = "failingRecords", timeOut = TIMEOUT_MS)
+  public void workerErrorIsWrapped(int failingRecord) throws InterruptedException {
+    // e.g. an OutOfMemoryError, the pipeline would hang if the failed worker was not reported.
+    Error failure = new Error("test");
+    assertFails(null, failure, noop(), record -> {
+      if (record == failingRecord)
+        throw failure;
+    }, noop());
+  }
+
+  @Test(dataProvider = "failingRecords", timeOut = TIMEOUT_MS)
+  public void writerExceptionIsThrown(int failingRecord) throws InterruptedException {
+    IOException failure = new IOException("test");
+    assertFails(failure, failure, noop(), noop(), record -> {
+      if (record == failingRecord)
+        throw failure;
+    });
+  }
+
+  @Test
+  public void benchmark() {
+    Benchmarks.skipUnlessEnabled();
+
+    byte[] json = WatJsonRowBuilderTest.FULL_RECORD.getBytes(StandardCharsets.UTF_8);
+    WatJsonRowBuilder builder = new WatJsonRowBuilder(true);
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+    long nanos = Benchmarks.measure(() -> {
+      try {
+        for (int i = 0; i < NUM_BENCHMARK_RECORDS; i++) {
+          row.clear();
+          builder.build(json, json.length, "http://example.com/", row.getData());
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    report("No pipeline", nanos);
+
+    for (int threads : new int[] { 1, 2, 4, 8 }) {
+      nanos = Benchmarks.measure(() -> {
+        AtomicInteger nextRecord = new AtomicInteger();
+        try {
+          new RecordPipeline<CommonCrawlRowWritable>(threads, () -> new CommonCrawlRowWritable(new Configuration()),
+              item -> nextRecord.getAndIncrement() < NUM_BENCHMARK_RECORDS, () -> {
+                WatJsonRowBuilder workerBuilder = new WatJsonRowBuilder(true);
+                return item -> {
+                  item.clear();
+                  workerBuilder.build(json, json.length, "http://example.com/", item.getData());
+                };
+              }, item -> {
+              }).run();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      report("Pipeline, " + threads + " threads", nanos);
+    }
+  }
+
+  private void report(String name, long nanos) {
+    Benchmarks.report("%-22s %,d rows in %7.1f ms: %,9.0f rows/s (%d processors)", name, NUM_BENCHMARK_RECORDS,
+        nanos / 1e6, NUM_BENCHMARK_RECORDS / (nanos / 1e9), Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Run a pipeline on the given number of records, checking on which threads the steps are executed.
+   * 
+   * @return The records in the order they have been written.
+   */
+  private List<Integer> run(int numThreads, int numRecords, Hook readHook, Hook processHook, Hook writeHook)
+      throws IOException, InterruptedException {
+    Thread callingThread = Thread.currentThread();
+    AtomicReference<Thread> readerThread = new AtomicReference<>();
+    AtomicInteger createdItems = new AtomicInteger();
+    AtomicInteger nextRecord = new AtomicInteger();
+    List<Integer> res = new ArrayList<>();
+
+    new RecordPipeline<Item>(numThreads, () -> {
+      createdItems.incrementAndGet();
+      return new Item();
+    }, item -> {
+      readerThread.compareAndSet(null, Thread.currentThread());
+      Assert.assertSame(Thread.currentThread(), readerThread.get(), "Records should be read on a single thread");
+      Assert.assertTrue(Thread.currentThread() != callingThread, "Records should not be read on the calling thread");
+      if (nextRecord.get() == numRecords)
+        return false;
+      item.record = nextRecord.getAndIncrement();
+      item.processed = -1;
+      readHook.call(item.record);
+      return true;
+    }, () -> {
+      Assert.assertSame(Thread.currentThread(), callingThread, "Workers should be created on the calling thread");
+      return item -> {
+        processHook.call(item.record);
+        item.processed = item.record;
+      };
+    }, item -> {
+      Assert.assertSame(Thread.currentThread(), callingThread, "Items should be written on the calling thread");
+      // the item must not have been re-used before being written.
+      Assert.assertEquals(item.processed, item.record, "Item has not been processed");
+      writeHook.call(item.record);
+      res.add(item.record);
+    }).run();
+
+    Assert.assertEquals(createdItems.get(), numThreads * RecordPipeline.ITEMS_PER_THREAD,
+        "Wrong number of items created");
+    return res;
+  }
+
+  /**
+   * Run a pipeline that fails and check the thrown exception.
+   * 
+   * @param expected
+   *          The exception that should be thrown or <code>null</code> if an {@link IOException} should be thrown that
+   *          wraps the given cause.
+   */
+  private void assertFails(IOException expected, Throwable cause, Hook readHook, Hook processHook, Hook writeHook)
+      throws InterruptedException {
+    try {
+      run(4, NUM_RECORDS, readHook, processHook, writeHook);
+      Assert.fail("Expected the pipeline to fail");
+    } catch (IOException e) {
+      if (expected != null)
+        Assert.assertSame(e, expected, "Wrong exception thrown");
+      else
+        Assert.assertSame(e.getCause(), cause, "Wrong cause of the thrown exception");
+    }
+    // the threads blocked in the pipeline are interrupted.
+    assertThreadsTerminate();
+  }
+
+  private void assertEachWrittenOnce(List<Integer> written, int numRecords) {
+    List<Integer> sorted = new ArrayList<>(written);
+    Collections.sort(sorted);
+    Assert.assertEquals(sorted, IntStream.range(0, numRecords).boxed().collect(Collectors.toList()),
+        "Records should be written exactly once");
+  }
+
+  /**
+   * Wait for the threads of all pipelines to terminate.
+   */
+  private static void assertThreadsTerminate() throws InterruptedException {
+    for (Thread thread : Thread.getAllStackTraces().keySet())
+      if (thread.getName().startsWith(RecordPipeline.THREAD_NAME_PREFIX)) {
+        thread.join(TIMEOUT_MS);
+        Assert.assertFalse(thread.isAlive(), "Thread " + thread.getName() + " did not terminate");
+      }
+  }
+
+  private static Hook noop() {
+    return record -> {
+    };
+  }
+
+  private static class Item {
+    private int record;
+    private int processed;
+  }
+
+  /**
+   * Called by a step of the pipeline for each record.
+   */
+  private static interface Hook {
+    public void call(int record) throws IOException, InterruptedException;
+  }
+}
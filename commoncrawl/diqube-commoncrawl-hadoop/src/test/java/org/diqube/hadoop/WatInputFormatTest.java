@@ -0,0 +1,298 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the {@link WatInputFormat.WatRecordReader}s of the splits of a .wat.gz file read each record exactly once,
+ * wherever the file is split, see {@link GzipMemberScanner}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatInputFormatTest {
+  private static final int NUM_RECORDS = 50;
+
+  @Test
+  public void twoSplitsAroundHeaderCandidates() throws IOException, InterruptedException {
+    WatFile wat = new WatFile(new Random(0), 0);
+    try {
+      Assert.assertTrue(wat.falseCandidates.size() >= 2, "Expected false header candidates in the file");
+
+      // split right before, at and inside the headers of the members and the false candidates.
+      Set<Long> cuts = new TreeSet<>();
+      for (List<Long> candidates : Arrays.asList(wat.memberStarts, wat.falseCandidates))
+        for (long candidate : candidates)
+          for (long cut = candidate - 1; cut <= candidate + GzipMemberScanner.HEADER_CHECK_LENGTH; cut++)
+            if (cut > 0 && cut < wat.length)
+              cuts.add(cut);
+      assertMemberStartsFound(wat, cuts);
+      for (long cut : cuts)
+        assertEachRecordReadOnce(wat, cut);
+    } finally {
+      wat.file.delete();
+    }
+  }
+
+  @Test
+  public void manySplitsAtRandomOffsets() throws IOException, InterruptedException {
+    Random random = new Random(1);
+    WatFile wat = new WatFile(random, 0);
+    try {
+      for (int i = 0; i < 20; i++) {
+        Set<Long> cuts = new TreeSet<>();
+        for (int j = 1 + random.nextInt(NUM_RECORDS); j > 0; j--)
+          cuts.add(1 + (long) (random.nextDouble() * (wat.length - 1)));
+        assertEachRecordReadOnce(wat, cuts.stream().mapToLong(Long::longValue).toArray());
+      }
+    } finally {
+      wat.file.delete();
+    }
+  }
+
+  @Test
+  public void splitsSmallerThanMembers() throws IOException, InterruptedException {
+    WatFile wat = new WatFile(new Random(2), 0);
+    try {
+      for (long size : new long[] { 1, 97, 1000 }) {
+        long[] cuts = new long[(int) ((wat.length - 1) / size)];
+        for (int i = 0; i < cuts.length; i++)
+          cuts[i] = (i + 1) * size;
+        assertEachRecordReadOnce(wat, cuts);
+      }
+    } finally {
+      wat.file.delete();
+    }
+  }
+
+  @Test
+  public void headerAcrossScanBuffers() throws IOException, InterruptedException {
+    // the scan for the next member needs to read multiple buffers.
+    WatFile wat = new WatFile(new Random(4), 2 * GzipMemberScanner.BUFFER_SIZE);
+    try {
+      long next = wat.memberStarts.get(wat.largeRecord + 1);
+      // the first buffer ends inside the header of the next member.
+      List<Long> cuts = new ArrayList<>();
+      for (int overlap = 1; overlap < GzipMemberScanner.HEADER_CHECK_LENGTH; overlap++)
+        cuts.add(next - GzipMemberScanner.BUFFER_SIZE + overlap);
+      assertMemberStartsFound(wat, cuts);
+      for (long cut : cuts)
+        assertEachRecordReadOnce(wat, cut);
+    } finally {
+      wat.file.delete();
+    }
+  }
+
+  @Test
+  public void singleSplit() throws IOException, InterruptedException {
+    WatFile wat = new WatFile(new Random(3), 0);
+    try {
+      assertEachRecordReadOnce(wat);
+    } finally {
+      wat.file.delete();
+    }
+  }
+
+  @Test
+  public void parallelInflation() throws IOException, InterruptedException {
+    Random random = new Random(5);
+    // a member larger than a chunk of the ParallelGzipInputStream.
+    WatFile wat = new WatFile(random, ParallelGzipInputStream.CHUNK_SIZE + 1);
+    try {
+      for (int threads : new int[] { 2, 4 }) {
+        Configuration conf = new Configuration();
+        conf.setInt(WatInputFormat.CONF_INFLATE_THREADS, threads);
+        assertEachRecordReadOnce(wat, conf);
+        for (int i = 0; i < 5; i++) {
+          Set<Long> cuts = new TreeSet<>();
+          for (int j = 1 + random.nextInt(NUM_RECORDS); j > 0; j--)
+            cuts.add(1 + (long) (random.nextDouble() * (wat.length - 1)));
+          assertEachRecordReadOnce(wat, conf, cuts.stream().mapToLong(Long::longValue).toArray());
+        }
+      }
+    } finally {
+      wat.file.delete();
+    }
+  }
+
+  /**
+   * Check that the {@link GzipMemberScanner} finds the first member starting at or after each of the offsets.
+   */
+  private void assertMemberStartsFound(WatFile wat, Collection<Long> offsets) throws IOException {
+    try (FSDataInputStream in = FileSystem.getLocal(new Configuration()).open(new Path(wat.file.toURI()))) {
+      GzipMemberScanner scanner = new GzipMemberScanner(in, wat.length);
+      for (long offset : offsets) {
+        long expected = wat.memberStarts.stream().filter(start -> start >= offset).findFirst().orElse(wat.length);
+        Assert.assertEquals(scanner.findMemberStart(offset), expected, "Wrong member start found from " + offset);
+      }
+    }
+  }
+
+  /**
+   * Split the file at the given offsets and check that the records of all splits are the records of the file.
+   */
+  private void assertEachRecordReadOnce(WatFile wat, long... cuts) throws IOException, InterruptedException {
+    assertEachRecordReadOnce(wat, new Configuration(), cuts);
+  }
+
+  private void assertEachRecordReadOnce(WatFile wat, Configuration conf, long... cuts)
+      throws IOException, InterruptedException {
+    List<String> actual = new ArrayList<>();
+    long start = 0;
+    for (int i = 0; i <= cuts.length; i++) {
+      long end = (i < cuts.length) ? cuts[i] : wat.length;
+      actual.addAll(read(wat, conf, start, end - start));
+      start = end;
+    }
+    Assert.assertEquals(actual, wat.targetUris, "Wrong records when splitting at " + Arrays.toString(cuts));
+  }
+
+  /**
+   * @return The target URIs of the records of the split.
+   */
+  private List<String> read(WatFile wat, Configuration conf, long start, long length)
+      throws IOException, InterruptedException {
+    Counters counters = new Counters();
+    TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID(), new StatusReporter() {
+      @Override
+      public Counter getCounter(Enum<?> name) {
+        return counters.findCounter(name);
+      }
+
+      @Override
+      public Counter getCounter(String group, String name) {
+        return counters.findCounter(group, name);
+      }
+
+      @Override
+      public void progress() {
+      }
+
+      @Override
+      public float getProgress() {
+        return 0;
+      }
+
+      @Override
+      public void setStatus(String status) {
+      }
+    });
+
+    List<String> res = new ArrayList<>();
+    try (WatInputFormat.WatRecordReader reader = new WatInputFormat.WatRecordReader()) {
+      reader.initialize(new FileSplit(new Path(wat.file.toURI()), start, length, new String[0]), context);
+      while (reader.nextKeyValue())
+        res.add(reader.getCurrentKey().toString());
+    }
+    Assert.assertEquals(counters.findCounter(WatInputFormat.Counter.RECORDS).getValue(), res.size(),
+        "Wrong number of records counted");
+    return res;
+  }
+
+  /**
+   * A .wat.gz file of synthetic records, one gzip member each. Some records contain the bytes of a gzip header, which
+   * are not the start of a gzip member containing a WARC record.
+   */
+  private static class WatFile {
+    private final File file;
+    private final long length;
+    private final List<String> targetUris = new ArrayList<>();
+    private final List<Long> memberStarts = new ArrayList<>();
+    private final List<Long> falseCandidates = new ArrayList<>();
+    /** Index of the record with random content, -1 if there is none. */
+    private final int largeRecord;
+
+    /**
+     * @param largeRecordSize
+     *          Size of the content of an additional record with random content, 0 for none.
+     */
+    private WatFile(Random random, int largeRecordSize) throws IOException {
+      List<byte[]> records = ParallelGzipInputStreamTest.syntheticWat(random, NUM_RECORDS);
+      List<Boolean> stored = new ArrayList<>(Collections.nCopies(records.size(), false));
+      for (int i = 0; i < NUM_RECORDS; i += NUM_RECORDS / 5) {
+        // stored without compression, the content of the record is contained in the file as-is.
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(new byte[] { 'x', 0x1f, (byte) 0x8b, 8, 0, 'y' });
+        // a complete gzip member, but not of a WARC record.
+        content.write(ParallelGzipInputStreamTest
+            .gzip(Arrays.asList("no WARC record".getBytes(StandardCharsets.UTF_8)), Deflater.DEFAULT_COMPRESSION));
+        records.add(i, ParallelGzipInputStreamTest.warcRecord(random, "http://stored/" + i, content.toByteArray()));
+        stored.add(i, true);
+      }
+      if (largeRecordSize > 0) {
+        largeRecord = records.size() / 2 + 1;
+        byte[] content = new byte[largeRecordSize];
+        random.nextBytes(content);
+        records.add(largeRecord, ParallelGzipInputStreamTest.warcRecord(random, "http://large/", content));
+        stored.add(largeRecord, true);
+      } else
+        largeRecord = -1;
+
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      for (int i = 0; i < records.size(); i++) {
+        byte[] record = records.get(i);
+        String header = new String(record, StandardCharsets.ISO_8859_1);
+        int uriStart = header.indexOf("WARC-Target-URI: ") + "WARC-Target-URI: ".length();
+        targetUris.add(header.substring(uriStart, header.indexOf('\r', uriStart)));
+
+        memberStarts.add((long) data.size());
+        int level = stored.get(i) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+        data.write(ParallelGzipInputStreamTest.gzip(Arrays.asList(record), level));
+      }
+      byte[] bytes = data.toByteArray();
+      length = bytes.length;
+
+      for (int i = 0; i + GzipMemberScanner.HEADER_CHECK_LENGTH <= bytes.length; i++)
+        if (GzipMemberScanner.isHeaderCandidate(bytes, i) && !memberStarts.contains((long) i))
+          falseCandidates.add((long) i);
+
+      file = File.createTempFile("diqube-test-", ".wat.gz");
+      Files.write(file.toPath(), bytes);
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests that {@link WatJsonRowBuilder} creates the same rows as the previous implementation of the mapper did, which
+ * parsed the whole record into a map using an {@link ObjectMapper} and added that map to the row.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatJsonRowBuilderTest {
+  private static final String LINKS = "Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.Links";
+
+  /** The fields the previous implementation converted to LONG, equal to the ones in wat-schema.properties. */
+  private static final Set<String> LONG_FIELDS = new HashSet<>(Arrays.asList( //
+      "Container.Gzip-Metadata.Footer-Length", "Container.Gzip-Metadata.Deflate-Length",
+      "Container.Gzip-Metadata.Header-Length", "Container.Gzip-Metadata.Inflated-Length", "Container.Offset", //
+      "Envelope.WARC-Header-Length", "Envelope.Actual-Content-Length", "Envelope.WARC-Header-Metadata.Content-Length",
+      "Envelope.Payload-Metadata.Trailing-Slop-Length",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers-Length",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Entity-Length",
+      "Envelope.Payload-Metadata.HTTP-Response-Metadata.Entity-Trailing-Slop-Bytes"));
+
+  /** A record that contains the target URI, all LONG_FIELDS, links and all kinds of values. */
+  /* package */ static final String FULL_RECORD = json("{'Container':{'Filename':'x.warc.gz','Compressed':true,"
+      + "'Offset':'1234','Gzip-Metadata':{'Deflate-Length':'500','Header-Length':'10','Footer-Length':'8',"
+      + "'Inflated-Length':'2000'}},'Envelope':{'Format':'WARC','WARC-Header-Length':'300',"
+      + "'Actual-Content-Length':'1700','WARC-Header-Metadata':{'WARC-Type':'response',"
+      + "'WARC-Target-URI':'http://example.com/old','WARC-Date':'2015-08-28T09:37:43Z','Content-Length':'1700',"
+      + "'WARC-IP-Address':'93.184.216.34'},'Block-Digest':'sha1:ABC','Payload-Metadata':{"
+      + "'Trailing-Slop-Length':'0','Actual-Content-Type':'application/http; msgtype=response',"
+      + "'HTTP-Response-Metadata':{'Response-Message':{'Status':'200','Version':'HTTP/1.1','Reason':'OK'},"
+      + "'Headers-Length':'250','Entity-Length':'1450','Entity-Trailing-Slop-Bytes':'0','Headers':{"
+      + "'Server':'Apache/2.4','Date':'Fri, 28 Aug 2015 09:37:43 GMT','Cache-Control':'max-age=600',"
+      + "'Expires':'Fri, 28 Aug 2015 09:47:43 GMT','X-Weird.Name#1':'a','Content-Type':'text/html'},"
+      + "'HTML-Metadata':{'Head':{'Title':'Example','Metas':[{'name':'description','content':'An example'},"
+      + "{},{'name':'keywords','content':'a, b'}],'Link':[{'path':'LINK@/href','url':'/style.css',"
+      + "'rel':'stylesheet'}]},'Links':[{'path':'A@/href','url':'http://www.iana.org/domains/example',"
+      + "'text':'More information...'},{'path':'A@/href','url':'/relative'},{'path':'A@/href'}]}}}},"
+      + "'Numbers':{'Int':42,'Big':12345678901234,'Negative':-7,'Float':1.5,'True':true,'False':false,"
+      + "'Null':null,'Repeated':[1,2.5,'three',true,null,[4,5],{'nested':'x'}],'Empty':[],'EmptyObject':{}}}");
+
+  /** A record without the target URI and links. */
+  private static final String SMALL_RECORD = json("{'Container':{'Offset':'0'},'Envelope':{"
+      + "'WARC-Header-Metadata':{'WARC-Type':'metadata','WARC-IP-Address':'2001:db8::1'},'Payload-Metadata':{"
+      + "'HTTP-Response-Metadata':{'Headers':{'Server':'nginx'}}}}}");
+
+  private static final String TARGET_URI = "http://example.com/";
+
+  @Test
+  public void sameRowAsMapWithLinks() throws IOException {
+    assertSameAsMap(FULL_RECORD, false);
+  }
+
+  @Test
+  public void sameRowAsMapWithoutLinks() throws IOException {
+    assertSameAsMap(FULL_RECORD, true);
+  }
+
+  @Test
+  public void sameRowAsMapWithoutTargetUri() throws IOException {
+    assertSameAsMap(SMALL_RECORD, false);
+    assertSameAsMap(SMALL_RECORD, true);
+  }
+
+  @DataProvider(name = "projections")
+  public Object[][] projections() {
+    return new Object[][] { //
+        // "*" matches objects and values, only the objects are traversed.
+        { Arrays.asList("Envelope.*.Server") }, //
+        { Arrays.asList("Envelope.*.HTTP-Response-Metadata.Headers.Server") }, //
+        { Arrays.asList("*.*") }, //
+        { Arrays.asList("Envelope.WARC-Header-Metadata.WARC-Target-URI") }, //
+        { Arrays.asList("Envelope.WARC-Header-Metadata.WARC-*") }, //
+        { Arrays.asList("Env*.WARC-Header-Metadata.*-Address", "*.Offset") }, //
+        // prefixes and wildcards matching arrays of objects and values.
+        { Arrays.asList("Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.Head.Metas.name") }, //
+        { Arrays.asList("Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.*.*.url") }, //
+        { Arrays.asList("Numbers.Repeated.nested", "Numbers.Empty*") }, //
+        // input fields of CommonCrawlDeriveData.
+        { Arrays.asList("Envelope.Payload-Metadata.HTTP-Response-Metadata.HTML-Metadata.Links.url") }, //
+        { Arrays.asList("Envelope.Payload-Metadata.HTTP-Response-Metadata.Headers", "Container") }, //
+        { Arrays.asList("Envelope.*.Server", "Envelope") } };
+  }
+
+  @Test(dataProvider = "projections")
+  public void projectedRowSameAsProjectedMap(List<String> patterns) throws IOException {
+    assertSameAsMap(FULL_RECORD, false, patterns);
+    assertSameAsMap(SMALL_RECORD, false, patterns);
+  }
+
+  @Test
+  public void valuesNotMatchingSchemaAreDropped() throws IOException {
+    Map<String, WatSchema.Type> types = new HashMap<>();
+    types.put("Container.Offset", WatSchema.Type.LONG);
+    types.put("Container.Ratio", WatSchema.Type.LONG);
+    types.put("Container.Length", WatSchema.Type.LONG);
+    WatJsonRowBuilder builder = new WatJsonRowBuilder(false, FieldProjection.ALL, new WatSchema(types));
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+
+    byte[] bytes = json("{'Container':{'Offset':'abc','Ratio':0.5,'Length':'12'}}").getBytes(StandardCharsets.UTF_8);
+    for (int i = 1; i <= 2; i++) {
+      row.clear();
+      builder.build(bytes, bytes.length, TARGET_URI, row.getData());
+      Assert.assertEquals(builder.getDroppedValues(), 2L * i, "Wrong number of dropped values");
+    }
+
+    DiqubeRow actual = new DiqubeRow();
+    row.addDataTo(actual.withData());
+    DiqubeRow expected = new DiqubeRow();
+    expected.withData().withNewDiqubeData("container").withData("length", 12L);
+    Assert.assertEquals(serialize(actual), serialize(expected), "Rows differ: " + actual + " vs. " + expected);
+  }
+
+  private void assertSameAsMap(String json, boolean filterFullLinkList) throws IOException {
+    assertSameAsMap(json, filterFullLinkList, null);
+  }
+
+  /**
+   * @param patterns
+   *          The patterns of the {@link FieldProjection} or <code>null</code> to keep all fields.
+   */
+  @SuppressWarnings("unchecked")
+  private void assertSameAsMap(String json, boolean filterFullLinkList, List<String> patterns) throws IOException {
+    // previous implementation.
+    Map<String, Object> map =
+        new ObjectMapper().readValue(json, new TypeReference<LinkedHashMap<String, Object>>() {
+        });
+    // the target URI is always set, the builder sets it as last field of its object.
+    @SuppressWarnings("unchecked")
+    Map<String, Object> headerMetadata =
+        (Map<String, Object>) ((Map<String, Object>) map.get("Envelope")).get("WARC-Header-Metadata");
+    headerMetadata.remove("WARC-Target-URI");
+    headerMetadata.put("WARC-Target-URI", TARGET_URI);
+
+    Map<String, Object> expectedDeriveInput = new LinkedHashMap<>();
+    for (String field : CommonCrawlDeriveData.INPUT_FIELDS) {
+      // derive data was executed before the links were removed.
+      Object value = CommonCrawlUtil.resolveValue(map, field);
+      expectedDeriveInput.put(field, (value instanceof List) ? new ArrayList<>((List<?>) value) : value);
+    }
+
+    if (filterFullLinkList)
+      CommonCrawlUtil.<List<?>, Object> executeOnValue(map, LINKS, lst -> {
+        lst.clear();
+        return null;
+      });
+    if (patterns != null)
+      map = (Map<String, Object>) project(map, new ArrayList<>(), patterns);
+    DiqubeRow expected = new DiqubeRow();
+    if (map != null)
+      addToRow(expected.withData(), "", map);
+
+    // builder.
+    WatSchema schema;
+    try (InputStream is = WatSchema.class.getResourceAsStream(WatSchema.DEFAULT_SCHEMA)) {
+      schema = WatSchema.load(is);
+    }
+    FieldProjection projection = (patterns != null) ? new FieldProjection(patterns) : FieldProjection.ALL;
+    WatJsonRowBuilder builder = new WatJsonRowBuilder(filterFullLinkList, projection, schema);
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    Map<String, Object> deriveInput = builder.build(bytes, bytes.length, TARGET_URI, row.getData());
+    DiqubeRow actual = new DiqubeRow();
+    row.addDataTo(actual.withData());
+
+    Assert.assertEquals(serialize(actual), serialize(expected), "Rows differ: " + actual + " vs. " + expected);
+    for (String field : CommonCrawlDeriveData.INPUT_FIELDS) {
+      Object actualValue = CommonCrawlUtil.resolveValue(deriveInput, field);
+      Object expectedValue = expectedDeriveInput.get(field);
+      if (LINKS.equals(field)) {
+        // only the URLs of the links are guaranteed to be contained.
+        actualValue = linkUrls(actualValue);
+        expectedValue = linkUrls(expectedValue);
+      }
+      Assert.assertEquals(actualValue, expectedValue, "Wrong input to derive data for field " + field);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> linkUrls(Object links) {
+    if (links == null)
+      return null;
+    return ((List<Map<String, Object>>) links).stream().map(link -> (String) link.get("url"))
+        .filter(url -> url != null).collect(Collectors.toList());
+  }
+
+  /**
+   * Reference implementation of {@link FieldProjection} on a map of a whole record: A value is kept if its path matches
+   * one of the patterns, otherwise only the kept values of the objects inside of it are kept.
+   * 
+   * @return The projected value or <code>null</code> if nothing of the value is kept.
+   */
+  @SuppressWarnings("unchecked")
+  private static Object project(Object value, List<String> path, List<String> patterns) {
+    if (!path.isEmpty() && patterns.stream().anyMatch(pattern -> matches(pattern, path)))
+      return value;
+
+    if (value instanceof Map) {
+      Map<String, Object> res = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        List<String> childPath = new ArrayList<>(path);
+        childPath.add(entry.getKey());
+        Object child = project(entry.getValue(), childPath, patterns);
+        if (child != null)
+          res.put(entry.getKey(), child);
+      }
+      return (res.isEmpty()) ? null : res;
+    }
+    if (value instanceof List) {
+      List<Object> res = new ArrayList<>();
+      for (Object entry : (List<Object>) value) {
+        Object child = (entry instanceof Map) ? project(entry, path, patterns) : null;
+        if (child != null)
+          res.add(child);
+      }
+      return (res.isEmpty()) ? null : res;
+    }
+    return null;
+  }
+
+  private static boolean matches(String pattern, List<String> path) {
+    String[] segments = pattern.split("\\.");
+    if (segments.length != path.size())
+      return false;
+    for (int i = 0; i < segments.length; i++) {
+      String regex = Arrays.stream(segments[i].split("\\*", -1)).map(Pattern::quote).collect(Collectors.joining(".*"));
+      if (!path.get(i).matches(regex))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Java-serialize a {@link DiqubeRow} to compare it to another one, as it does not implement equals.
+   * 
+   * <p>
+   * Strings are interned, as the serialized form of equal strings depends on whether they are the same instance.
+   */
+  /* package */ static byte[] serialize(DiqubeRow row) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos) {
+      {
+        enableReplaceObject(true);
+      }
+
+      @Override
+      protected Object replaceObject(Object obj) throws IOException {
+        return (obj instanceof String) ? ((String) obj).intern() : obj;
+      }
+    }) {
+      oos.writeObject(row);
+    }
+    return baos.toByteArray();
+  }
+
+  private static String json(String singleQuoted) {
+    return singleQuoted.replace('\'', '"');
+  }
+
+  /**
+   * The previous implementation of adding the map of a record to the row, which converted the LONG_FIELDS.
+   */
+  @SuppressWarnings("unchecked")
+  private static void addToRow(DiqubeRow.DiqubeData res, String parentFieldName, Map<String, Object> values)
+      throws IOException {
+    for (String origFieldName : values.keySet()) {
+      Object overallValue = values.get(origFieldName);
+      String fullOrigFieldName = ("".equals(parentFieldName)) ? origFieldName : parentFieldName + "." + origFieldName;
+      String fieldName = CommonCrawlDiqube.CommonCrawlBaseMapper.cleanFieldName(origFieldName);
+
+      if (overallValue instanceof Iterable) {
+        for (Object value : (Iterable<Object>) overallValue) {
+          if (LONG_FIELDS.contains(fullOrigFieldName) && (value instanceof String))
+            value = Long.parseLong((String) value);
+
+          if (value instanceof String)
+            res.addRepeatedData(fieldName, (String) value);
+          else if (value instanceof Map && !((Map<String, Object>) value).isEmpty())
+            addToRow(res.addNewRepeatedDiqubeData(fieldName), fullOrigFieldName, (Map<String, Object>) value);
+          else if (value instanceof Integer || value instanceof Long)
+            res.addRepeatedData(fieldName, ((Number) value).longValue());
+          else if (value instanceof Float || value instanceof Double)
+            res.addRepeatedData(fieldName, ((Number) value).doubleValue());
+          else if (value instanceof Boolean)
+            res.addRepeatedData(fieldName, ((Boolean) value).booleanValue() ? 1L : 0L);
+        }
+      } else {
+        Object value = overallValue;
+        if (LONG_FIELDS.contains(fullOrigFieldName) && (value instanceof String))
+          value = Long.parseLong((String) value);
+
+        if (value instanceof String)
+          res.withData(fieldName, (String) value);
+        else if (value instanceof Map && !((Map<String, Object>) value).isEmpty())
+          addToRow(res.withNewDiqubeData(fieldName), fullOrigFieldName, (Map<String, Object>) value);
+        else if (value instanceof Integer || value instanceof Long)
+          res.withData(fieldName, ((Number) value).longValue());
+        else if (value instanceof Float || value instanceof Double)
+          res.withData(fieldName, ((Number) value).doubleValue());
+        else if (value instanceof Boolean)
+          res.withData(fieldName, ((Boolean) value).booleanValue() ? 1L : 0L);
+      }
+    }
+  }
+}
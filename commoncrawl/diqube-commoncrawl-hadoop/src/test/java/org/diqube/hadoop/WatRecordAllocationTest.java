@@ -0,0 +1,122 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the memory allocated when reading WAT records into a {@link WatRecordBuffer} and building their rows using a
+ * {@link WatJsonRowBuilder}, measured using the allocation counters of the current thread.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatRecordAllocationTest {
+  /** Number of links in the record, which makes it larger than the initial size of the {@link WatRecordBuffer}. */
+  private static final int LINKS = 1_000;
+  private static final int WARM_UP_RECORDS = 1_000;
+  private static final int RECORDS = 1_000;
+  /** Bytes building a row may allocate independent of the number of links, e.g. for the parser and the values. */
+  private static final long MAX_RECORD_ALLOCATION = 16 * 1024;
+  /** Bytes building a row may allocate per link, as their URLs are materialized for {@link CommonCrawlDeriveData}. */
+  private static final long MAX_LINK_ALLOCATION = 200;
+
+  private final byte[] record = largeRecord().getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void readDoesNotAllocateOnceGrown() throws IOException {
+    com.sun.management.ThreadMXBean threadBean = threadBean();
+    WatRecordBuffer buffer = new WatRecordBuffer();
+    ByteArrayInputStream in = new ByteArrayInputStream(record);
+    for (int i = 0; i < WARM_UP_RECORDS; i++)
+      read(buffer, in);
+    byte[] data = buffer.getData();
+
+    long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int i = 0; i < RECORDS; i++)
+      read(buffer, in);
+    long perRecord = (threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / RECORDS;
+
+    Assert.assertSame(buffer.getData(), data, "Buffer should not grow for records of the same size");
+    // only the fingerprint hash allocates a few objects, nothing depends on the size of the record.
+    Assert.assertTrue(perRecord < 1024,
+        "Expected reading not to allocate, but allocated " + perRecord + " bytes per record of " + record.length);
+  }
+
+  @Test
+  public void readAndBuildAllocationIsBounded() throws IOException {
+    com.sun.management.ThreadMXBean threadBean = threadBean();
+    WatRecordBuffer buffer = new WatRecordBuffer();
+    ByteArrayInputStream in = new ByteArrayInputStream(record);
+    WatJsonRowBuilder builder = new WatJsonRowBuilder(true);
+    CommonCrawlRowWritable row = new CommonCrawlRowWritable(new Configuration());
+    for (int i = 0; i < WARM_UP_RECORDS; i++)
+      readAndBuild(buffer, in, builder, row);
+
+    long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int i = 0; i < RECORDS; i++)
+      readAndBuild(buffer, in, builder, row);
+    long perRecord = (threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / RECORDS;
+
+    // the links are not added to the row and only their URLs are materialized. Nothing else depends on the size of the
+    // record: it is neither copied nor does anything accumulate in the buffer or the builder.
+    long max = MAX_RECORD_ALLOCATION + LINKS * MAX_LINK_ALLOCATION;
+    Assert.assertTrue(perRecord <= max,
+        "Expected at most " + max + " bytes per record of " + record.length + ", but allocated " + perRecord);
+  }
+
+  private void read(WatRecordBuffer buffer, ByteArrayInputStream in) throws IOException {
+    in.reset();
+    buffer.read(in);
+  }
+
+  private void readAndBuild(WatRecordBuffer buffer, ByteArrayInputStream in, WatJsonRowBuilder builder,
+      CommonCrawlRowWritable row) throws IOException {
+    read(buffer, in);
+    row.clear();
+    builder.build(buffer.getData(), buffer.getLength(), "http://example.com/", row.getData());
+  }
+
+  private static String largeRecord() {
+    StringBuilder links = new StringBuilder("'Links':[");
+    for (int i = 0; i < LINKS; i++)
+      links.append("{'path':'A@/href','url':'http://www.example").append(i % 50).append(".com/page/").append(i)
+          .append("','text':'Link text number ").append(i).append("'},");
+    return WatJsonRowBuilderTest.FULL_RECORD.replace("\"Links\":[", links.toString().replace('\'', '"'));
+  }
+
+  private static com.sun.management.ThreadMXBean threadBean() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+      throw new SkipException("Allocation counters of threads not supported by this JVM.");
+    com.sun.management.ThreadMXBean res = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!res.isThreadAllocatedMemorySupported())
+      throw new SkipException("Allocation counters of threads not supported by this JVM.");
+    res.setThreadAllocatedMemoryEnabled(true);
+    return res;
+  }
+}
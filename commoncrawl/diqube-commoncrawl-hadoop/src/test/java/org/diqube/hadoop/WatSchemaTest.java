@@ -0,0 +1,94 @@
+/**
+ * diqube: Distributed Query Base.
+ *
+ * Copyright (C) 2015 Bastian Gloeckle
+ *
+ * This file is part of diqube data examples.
+ *
+ * diqube data examples are free software: you can redistribute it
+ * and/or modify it under the terms of the GNU Affero General Public
+ * License as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.diqube.hadoop;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link WatSchema}.
+ *
+ * @author Bastian Gloeckle
+ */
+public class WatSchemaTest {
+  @Test
+  public void inferredSchemaRoundTrip() throws IOException {
+    Map<String, WatSchema.Type> types = new HashMap<>();
+    types.put("Envelope.Plain", WatSchema.Type.LONG);
+    types.put("Envelope.With,Comma", WatSchema.Type.DOUBLE);
+    types.put("Envelope.With=Equals", WatSchema.Type.STRING);
+    types.put("Envelope.With:Colon#Hash!Bang", WatSchema.Type.LONG);
+    types.put("Envelope. With Spaces ", WatSchema.Type.DOUBLE);
+    types.put("Envelope.With\\Backslash", WatSchema.Type.STRING);
+    types.put("Envelope.Unicode\u00e4\u4e2d", WatSchema.Type.LONG);
+    types.put("", WatSchema.Type.STRING);
+
+    Configuration conf = new Configuration();
+    new WatSchema(types).setInferred(conf);
+    WatSchema res = WatSchema.fromConfiguration(conf);
+
+    Assert.assertEquals(res.size(), types.size(), "Wrong number of fields");
+    for (Map.Entry<String, WatSchema.Type> e : types.entrySet())
+      Assert.assertEquals(res.getType(e.getKey()), e.getValue(), "Wrong type of field '" + e.getKey() + "'");
+  }
+
+  @Test
+  public void inferredSchemaPreferredOverResource() throws IOException {
+    Configuration conf = new Configuration();
+    Assert.assertNull(WatSchema.fromConfiguration(conf).getType("Some,Field"), "Expected default schema");
+
+    Map<String, WatSchema.Type> types = new HashMap<>();
+    types.put("Some,Field", WatSchema.Type.LONG);
+    new WatSchema(types).setInferred(conf);
+    Assert.assertEquals(WatSchema.fromConfiguration(conf).size(), 1, "Expected inferred schema only");
+  }
+
+  @Test
+  public void inferrer() throws IOException {
+    WatSchema.Inferrer inferrer = new WatSchema.Inferrer();
+    add(inferrer, "{'a':'1','b':'1','c':1,'d':'x','e':{'f,g':'2'}}");
+    add(inferrer, "{'a':'2','b':'y','c':1.5,'d':'3','e':{'f,g':'-7'}}");
+    WatSchema res = inferrer.build();
+
+    Assert.assertEquals(res.getType("a"), WatSchema.Type.LONG, "Wrong type of a");
+    Assert.assertEquals(res.getType("b"), WatSchema.Type.STRING, "Wrong type of b");
+    Assert.assertEquals(res.getType("c"), WatSchema.Type.DOUBLE, "Wrong type of c");
+    Assert.assertEquals(res.getType("d"), WatSchema.Type.STRING, "Wrong type of d");
+    Assert.assertEquals(res.getType("e.f,g"), WatSchema.Type.LONG, "Wrong type of e.f,g");
+
+    // names containing commas survive the job configuration.
+    Configuration conf = new Configuration();
+    res.setInferred(conf);
+    Assert.assertEquals(WatSchema.fromConfiguration(conf).getType("e.f,g"), WatSchema.Type.LONG,
+        "Wrong type of e.f,g after round trip");
+  }
+
+  private static void add(WatSchema.Inferrer inferrer, String singleQuoted) throws IOException {
+    byte[] json = singleQuoted.replace('\'', '"').getBytes(StandardCharsets.UTF_8);
+    inferrer.add(json, json.length);
+  }
+}